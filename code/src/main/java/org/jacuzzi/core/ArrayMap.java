@@ -3,12 +3,18 @@ package org.jacuzzi.core;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 @SuppressWarnings("unused")
 public class ArrayMap<K, V> implements Map<K, V>, Serializable {
     private static final int MAX_CAPACITY = 64;
+    private static final String MAPPED_ROWS_HEADER = "MAPPED_ROWS";
 
     private int size;
 
@@ -400,9 +406,25 @@ public class ArrayMap<K, V> implements Map<K, V>, Serializable {
         calculateTypes(keyTypes, rowRoll.getKeys());
         writeObjectArray(outputStream, keyTypes, rowRoll.getKeys());
 
+        int[] valueTypes = calculateValueTypes(n, rowRoll.getValueList());
+        for (int valueType : valueTypes) {
+            OutputStreamUtil.writeByte(outputStream, (byte) valueType);
+        }
+
+        for (Object[] values : rowRoll.getValueList()) {
+            writeObjectArray(outputStream, valueTypes, values);
+        }
+    }
+
+    private static int[] calculateValueTypes(int n, List<Object[]> valueList) {
         int[] valueTypes = new int[n];
         Arrays.fill(valueTypes, -1);
-        for (Object[] values : rowRoll.getValueList()) {
+
+        if (valueList == null) {
+            return valueTypes;
+        }
+
+        for (Object[] values : valueList) {
             calculateTypes(valueTypes, values);
             boolean containsMinusOne = false;
             for (int valueType : valueTypes) {
@@ -416,13 +438,135 @@ public class ArrayMap<K, V> implements Map<K, V>, Serializable {
             }
         }
 
-        for (int valueType : valueTypes) {
-            OutputStreamUtil.writeByte(outputStream, (byte) valueType);
+        return valueTypes;
+    }
+
+    /**
+     * Writes rowRoll into the file in the layout which can be opened by {@link #mapRowRoll(File)}.
+     * Unlike {@link #writeRowRoll(OutputStream, RowRoll)} the layout contains the offset of each row,
+     * so any row can be decoded without reading the preceding ones.
+     *
+     * @param file    File to write.
+     * @param rowRoll Rows to write.
+     * @throws IOException if can't write the file.
+     */
+    public static void writeMappedRowRoll(@Nonnull File file, @Nonnull RowRoll rowRoll) throws IOException {
+        try (CountingOutputStream outputStream = new CountingOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 65536))) {
+            String[] keys = rowRoll.getKeys() == null ? new String[0] : rowRoll.getKeys();
+            int size = rowRoll.size();
+
+            OutputStreamUtil.writeString(outputStream, MAPPED_ROWS_HEADER);
+            OutputStreamUtil.writeInt(outputStream, size);
+
+            int[] keyTypes = new int[keys.length];
+            calculateTypes(keyTypes, keys);
+            writeObjectArray(outputStream, keyTypes, keys);
+
+            int[] valueTypes = calculateValueTypes(keys.length, rowRoll.getValueList());
+            for (int valueType : valueTypes) {
+                OutputStreamUtil.writeByte(outputStream, (byte) valueType);
+            }
+
+            long[] offsets = new long[size + 1];
+            for (int i = 0; i < size; i++) {
+                offsets[i] = outputStream.getCount();
+                writeObjectArray(outputStream, valueTypes, rowRoll.getValueList().get(i));
+            }
+            offsets[size] = outputStream.getCount();
+
+            long indexOffset = outputStream.getCount();
+            for (long offset : offsets) {
+                OutputStreamUtil.writeLong(outputStream, offset);
+            }
+            OutputStreamUtil.writeLong(outputStream, indexOffset);
         }
+    }
 
-        for (Object[] values : rowRoll.getValueList()) {
-            writeObjectArray(outputStream, valueTypes, values);
+    /**
+     * Maps the file written by {@link #writeMappedRowRoll(File, RowRoll)} into memory.
+     * No rows are read on this call, each access decodes just the requested row.
+     *
+     * @param file File to map.
+     * @return Mapped rows.
+     * @throws IOException if can't map the file or it has unexpected format.
+     */
+    public static MappedRowRoll mapRowRoll(@Nonnull File file) throws IOException {
+        return openRowRoll(file, true);
+    }
+
+    /**
+     * Reads the file written by {@link #writeMappedRowRoll(File, RowRoll)} into heap buffers.
+     * Unlike {@link #mapRowRoll(File)} no mapping is left behind, so the file can be
+     * replaced or deleted right after the call (a mapped file stays locked on Windows until GC).
+     *
+     * @param file File to read.
+     * @return Rows backed by heap buffers.
+     * @throws IOException if can't read the file or it has unexpected format.
+     */
+    public static MappedRowRoll readMappedRowRoll(@Nonnull File file) throws IOException {
+        return openRowRoll(file, false);
+    }
+
+    private static MappedRowRoll openRowRoll(File file, boolean map) throws IOException {
+        ByteBuffer[] segments;
+        long length;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            length = channel.size();
+            if (length < Long.BYTES) {
+                throw new IOException("File " + file + " is too short to be mapped rows.");
+            }
+
+            segments = new ByteBuffer[(int) ((length + MappedRowRoll.SEGMENT_SIZE - 1) / MappedRowRoll.SEGMENT_SIZE)];
+            for (int i = 0; i < segments.length; i++) {
+                long position = i * MappedRowRoll.SEGMENT_SIZE;
+                int segmentLength = (int) Math.min(MappedRowRoll.SEGMENT_SIZE, length - position);
+                if (map) {
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, segmentLength);
+                } else {
+                    segments[i] = readFully(channel, position, segmentLength, file);
+                }
+                segments[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        // The header is small, so it always fits into the first segment.
+        ByteBuffer buffer = segments[0].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (!MAPPED_ROWS_HEADER.equals(ByteBufferUtil.readString(buffer))) {
+            throw new IOException("Expected '" + MAPPED_ROWS_HEADER + "' in " + file + '.');
+        }
+
+        int size = buffer.getInt();
+
+        Object[] objectKeys = readObjectArray(buffer, null);
+        String[] keys = new String[objectKeys.length];
+        for (int i = 0; i < objectKeys.length; i++) {
+            keys[i] = (String) objectKeys[i];
         }
+
+        int[] valueTypes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            valueTypes[i] = buffer.get();
+        }
+
+        long indexOffset = MappedRowRoll.readLong(segments, length - Long.BYTES);
+        if (indexOffset < 0 || indexOffset + (size + 1L) * Long.BYTES != length - Long.BYTES) {
+            throw new IOException("Unexpected index offset " + indexOffset + " in " + file + '.');
+        }
+
+        return new MappedRowRoll(segments, keys, valueTypes, size, indexOffset);
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length, File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + file + '.');
+            }
+        }
+        buffer.flip();
+        return buffer;
     }
 
     private static int convertHashMapRowsToBinaryArray(byte[] bytes, int offset, List<Row> rows) {
@@ -708,6 +852,81 @@ public class ArrayMap<K, V> implements Map<K, V>, Serializable {
         return result;
     }
 
+    static Object[] readObjectArray(ByteBuffer buffer, int[] types) {
+        int n = buffer.getInt();
+        Object[] result = new Object[n];
+
+        for (int i = 0; i < n; i++) {
+            result[i] = readObjectArrayItem(buffer, types == null ? 20 : types[i]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads the single item of the object array, skipping the preceding ones.
+     */
+    static Object readObjectArrayItem(ByteBuffer buffer, int[] types, int index) {
+        int n = buffer.getInt();
+        if (index < 0 || index >= n) {
+            throw new IllegalArgumentException("Illegal index: expected in [0, " + n + ") but " + index + " found.");
+        }
+
+        for (int i = 0; i < index; i++) {
+            byte nil = buffer.get();
+            if (nil == 0) {
+                continue;
+            }
+            if (nil != 1) {
+                throw new RuntimeException("Expected 1.");
+            }
+
+            int type = types[i];
+            if (type == 0 || type == 8) {
+                ((Buffer) buffer).position(buffer.position() + 1);
+            } else if (type == 2) {
+                ((Buffer) buffer).position(buffer.position() + 4);
+            } else if (type == 4 || type == 6 || type == 22) {
+                ((Buffer) buffer).position(buffer.position() + 8);
+            } else if (type == 20) {
+                int length = buffer.getInt();
+                ((Buffer) buffer).position(buffer.position() + length);
+            } else {
+                throw new RuntimeException("Unexpected type=" + type + ".");
+            }
+        }
+
+        return readObjectArrayItem(buffer, types[index]);
+    }
+
+    private static Object readObjectArrayItem(ByteBuffer buffer, int type) {
+        byte nil = buffer.get();
+        if (nil == 0) {
+            return null;
+        }
+        if (nil != 1) {
+            throw new RuntimeException("Expected 1.");
+        }
+
+        if (type == 0) {
+            return buffer.get();
+        } else if (type == 2) {
+            return buffer.getInt();
+        } else if (type == 4) {
+            return buffer.getLong();
+        } else if (type == 6) {
+            return buffer.getDouble();
+        } else if (type == 8) {
+            return buffer.get() != 0;
+        } else if (type == 20) {
+            return ByteBufferUtil.readString(buffer);
+        } else if (type == 22) {
+            return new Date(buffer.getLong());
+        } else {
+            throw new RuntimeException("Unexpected type=" + type + ".");
+        }
+    }
+
     private static int writeObjectArray(byte[] bytes, int offset, int[] types, Object[] array) {
         offset = ByteArrayUtil.writeInt(bytes, offset, array.length);
         for (int i = 0; i < array.length; i++) {
@@ -928,6 +1147,43 @@ public class ArrayMap<K, V> implements Map<K, V>, Serializable {
         }
     }
 
+    private static final class ByteBufferUtil {
+        private static String readString(ByteBuffer buffer) {
+            int length = buffer.getInt();
+            if (length == Integer.MIN_VALUE) {
+                return null;
+            } else {
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                return new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        private long getCount() {
+            return count;
+        }
+    }
+
     private static final class ByteArrayUtil {
         private static int writeByte(byte[] bytes, int offset, byte n) {
             bytes[offset++] = n;
@@ -0,0 +1,74 @@
+package org.jacuzzi.core;
+
+/**
+ * Snapshot of statistics of Bloom filter guarding find(id).
+ */
+public class BloomFilterStatistics {
+    private final long checkCount;
+    private final long negativeCount;
+    private final long falsePositiveCount;
+    private final long idCount;
+    private final long bitCount;
+    private final long rebuildCount;
+
+    BloomFilterStatistics(long checkCount, long negativeCount, long falsePositiveCount,
+                          long idCount, long bitCount, long rebuildCount) {
+        this.checkCount = checkCount;
+        this.negativeCount = negativeCount;
+        this.falsePositiveCount = falsePositiveCount;
+        this.idCount = idCount;
+        this.bitCount = bitCount;
+        this.rebuildCount = rebuildCount;
+    }
+
+    /**
+     * @return Number of ids checked by the filter.
+     */
+    public long getCheckCount() {
+        return checkCount;
+    }
+
+    /**
+     * @return Number of ids rejected by the filter without database access.
+     */
+    public long getNegativeCount() {
+        return negativeCount;
+    }
+
+    /**
+     * @return Number of ids passed by the filter, but not found in the database.
+     */
+    public long getFalsePositiveCount() {
+        return falsePositiveCount;
+    }
+
+    /**
+     * @return False positives divided by all absent ids, 0 if there were no absent ids.
+     */
+    public double getFalsePositiveRatio() {
+        long absentCount = negativeCount + falsePositiveCount;
+        return absentCount == 0 ? 0.0 : (double) falsePositiveCount / absentCount;
+    }
+
+    /**
+     * @return Number of ids added to the current filter.
+     */
+    public long getIdCount() {
+        return idCount;
+    }
+
+    public long getBitCount() {
+        return bitCount;
+    }
+
+    public long getRebuildCount() {
+        return rebuildCount;
+    }
+
+    @Override
+    public String toString() {
+        return "BloomFilterStatistics{checkCount=" + checkCount + ", negativeCount=" + negativeCount
+                + ", falsePositiveCount=" + falsePositiveCount + ", falsePositiveRatio=" + getFalsePositiveRatio()
+                + ", idCount=" + idCount + ", bitCount=" + bitCount + ", rebuildCount=" + rebuildCount + '}';
+    }
+}
@@ -0,0 +1,107 @@
+package org.jacuzzi.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings of Jacuzzi caches. Example:
+ * {@code
+ *  new CacheSettings().setMaxSize(100000).setTimeToLive(10, TimeUnit.MINUTES).setRefreshAheadRatio(0.8)
+ * }
+ */
+public class CacheSettings {
+    private int maxSize = 10000;
+    private long maxWeight = Long.MAX_VALUE;
+    private long timeToLiveMillis = TimeUnit.MINUTES.toMillis(5);
+    private long staleWhileRevalidateMillis;
+    private double refreshAheadRatio;
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param maxSize Maximal number of entries.
+     * @return This settings.
+     */
+    public CacheSettings setMaxSize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Expected positive maxSize, but " + maxSize + " found.");
+        }
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * @param maxWeight Maximal total weight of entries (approximate heap size in bytes).
+     * @return This settings.
+     */
+    public CacheSettings setMaxWeight(long maxWeight) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("Expected positive maxWeight, but " + maxWeight + " found.");
+        }
+        this.maxWeight = maxWeight;
+        return this;
+    }
+
+    public long getTimeToLiveMillis() {
+        return timeToLiveMillis;
+    }
+
+    /**
+     * @param timeToLive Time since loading after which the entry expires.
+     * @param unit       Time unit.
+     * @return This settings.
+     */
+    public CacheSettings setTimeToLive(long timeToLive, TimeUnit unit) {
+        if (timeToLive <= 0) {
+            throw new IllegalArgumentException("Expected positive timeToLive, but " + timeToLive + " found.");
+        }
+        this.timeToLiveMillis = unit.toMillis(timeToLive);
+        return this;
+    }
+
+    public long getStaleWhileRevalidateMillis() {
+        return staleWhileRevalidateMillis;
+    }
+
+    /**
+     * Expired entry is still returned during the given time after expiration,
+     * while it is reloaded in the background. Zero (default) disables it.
+     *
+     * @param staleWhileRevalidate Time after expiration while the stale entry can be returned.
+     * @param unit                 Time unit.
+     * @return This settings.
+     */
+    public CacheSettings setStaleWhileRevalidate(long staleWhileRevalidate, TimeUnit unit) {
+        if (staleWhileRevalidate < 0) {
+            throw new IllegalArgumentException("Expected non-negative staleWhileRevalidate, but "
+                    + staleWhileRevalidate + " found.");
+        }
+        this.staleWhileRevalidateMillis = unit.toMillis(staleWhileRevalidate);
+        return this;
+    }
+
+    public double getRefreshAheadRatio() {
+        return refreshAheadRatio;
+    }
+
+    /**
+     * If the entry is accessed after that part of time to live passed, it is reloaded in the background,
+     * while the current value is returned. Zero (default) disables refresh-ahead.
+     *
+     * @param refreshAheadRatio Part of time to live in [0, 1).
+     * @return This settings.
+     */
+    public CacheSettings setRefreshAheadRatio(double refreshAheadRatio) {
+        if (refreshAheadRatio < 0 || refreshAheadRatio >= 1) {
+            throw new IllegalArgumentException("Expected refreshAheadRatio in [0, 1), but "
+                    + refreshAheadRatio + " found.");
+        }
+        this.refreshAheadRatio = refreshAheadRatio;
+        return this;
+    }
+}
@@ -0,0 +1,81 @@
+package org.jacuzzi.core;
+
+/**
+ * Snapshot of cache statistics.
+ */
+public class CacheStatistics {
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long invalidationCount;
+    private final long notCacheableCount;
+    private final long size;
+    private final long weight;
+
+    CacheStatistics(long hitCount, long missCount, long evictionCount, long invalidationCount,
+                    long notCacheableCount, long size, long weight) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.invalidationCount = invalidationCount;
+        this.notCacheableCount = notCacheableCount;
+        this.size = size;
+        this.weight = weight;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return Hits divided by requests, 0 if there were no requests.
+     */
+    public double getHitRatio() {
+        long requestCount = hitCount + missCount;
+        return requestCount == 0 ? 0.0 : (double) hitCount / requestCount;
+    }
+
+    /**
+     * @return Number of entries evicted because of size or weight limits.
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return Number of invalidations caused by writes.
+     */
+    public long getInvalidationCount() {
+        return invalidationCount;
+    }
+
+    /**
+     * @return Number of loaded values which were not cached because they are too large for the cache.
+     */
+    public long getNotCacheableCount() {
+        return notCacheableCount;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return Approximate heap size of the entries in bytes.
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStatistics{hitCount=" + hitCount + ", missCount=" + missCount
+                + ", hitRatio=" + getHitRatio() + ", evictionCount=" + evictionCount
+                + ", invalidationCount=" + invalidationCount + ", notCacheableCount=" + notCacheableCount
+                + ", size=" + size + ", weight=" + weight + '}';
+    }
+}
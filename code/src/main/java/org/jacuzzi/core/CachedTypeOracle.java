@@ -85,6 +85,121 @@ class CachedTypeOracle<T> extends TypeOracle<T> {
         return typeOracle.getQuerySetSql();
     }
 
+    @Override
+    String getSelectSql() {
+        return typeOracle.getSelectSql();
+    }
+
+    @Override
+    String getSelectIdSql() {
+        return typeOracle.getSelectIdSql();
+    }
+
+    @Override
+    String getFindByIdSql() {
+        return typeOracle.getFindByIdSql();
+    }
+
+    @Override
+    String getFindByIdsSql(int idCount) {
+        return typeOracle.getFindByIdsSql(idCount);
+    }
+
+    @Override
+    String getFindByColumnValuesSql(String column, int valueCount) {
+        return typeOracle.getFindByColumnValuesSql(column, valueCount);
+    }
+
+    @Override
+    Object getColumnValue(T instance, String column) {
+        return typeOracle.getColumnValue(instance, column);
+    }
+
+    @Override
+    Class<?> getColumnType(String column) {
+        return typeOracle.getColumnType(column);
+    }
+
+    @Override
+    Object getRowValue(Row row, String column) {
+        return typeOracle.getRowValue(row, column);
+    }
+
+    @Override
+    void setListPropertyValue(T instance, String property, List<?> value) {
+        typeOracle.setListPropertyValue(instance, property, value);
+    }
+
+    @Override
+    String getScanSql(boolean afterId, String predicate) {
+        return typeOracle.getScanSql(afterId, predicate);
+    }
+
+    @Override
+    String getFindByColumnAtLeastSql(String column) {
+        return typeOracle.getFindByColumnAtLeastSql(column);
+    }
+
+    @Override
+    String getSelectWithRowHashSql(Dialect dialect) {
+        return typeOracle.getSelectWithRowHashSql(dialect);
+    }
+
+    @Override
+    String getIdBucketChecksumSql(Dialect dialect) {
+        return typeOracle.getIdBucketChecksumSql(dialect);
+    }
+
+    @Override
+    String getMinMaxIdSql() {
+        return typeOracle.getMinMaxIdSql();
+    }
+
+    @Override
+    String getIdRangePredicate() {
+        return typeOracle.getIdRangePredicate();
+    }
+
+    @Override
+    String getCountSql() {
+        return typeOracle.getCountSql();
+    }
+
+    @Override
+    String getCountByIdSql() {
+        return typeOracle.getCountByIdSql();
+    }
+
+    @Override
+    String getInsertSql(boolean includeId) {
+        return typeOracle.getInsertSql(includeId);
+    }
+
+    @Override
+    String getUpdateByIdSql() {
+        return typeOracle.getUpdateByIdSql();
+    }
+
+    @Override
+    String getUpdateByIdSql(long changeMask) {
+        return typeOracle.getUpdateByIdSql(changeMask);
+    }
+
+    @Override
+    String getUpsertSql(Dialect dialect, int rowCount) {
+        return typeOracle.getUpsertSql(dialect, rowCount);
+    }
+
+    @Override
+    String getDeleteByIdSql() {
+        return typeOracle.getDeleteByIdSql();
+    }
+
+    @Override
+    String getDeleteByIdsSql() {
+        return typeOracle.getDeleteByIdsSql();
+    }
+
     @Override
     public String getQueryFindSql(String[] fields) {
         return typeOracle.getQueryFindSql(fields);
@@ -109,4 +224,9 @@ class CachedTypeOracle<T> extends TypeOracle<T> {
     public T newInstance() {
         return typeOracle.newInstance();
     }
+
+    @Override
+    EntityCodec<T> getEntityCodec() {
+        return typeOracle.getEntityCodec();
+    }
 }
@@ -3,6 +3,10 @@ package org.jacuzzi.core;
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -131,6 +135,111 @@ class DataSourceUtil {
         return getConnection(dataSource, true);
     }
 
+    /**
+     * @param dataSource of type DataSource
+     * @return <code>true</code> iff connection is attached to the current thread.
+     */
+    public boolean isConnectionAttached(DataSource dataSource) {
+        return attachments.get().containsKey(dataSource);
+    }
+
+    /**
+     * @param dataSource of type DataSource
+     * @return <code>true</code> iff transaction has been started on the attached connection.
+     */
+    public boolean isInTransaction(DataSource dataSource) {
+        Attachment attachment = attachments.get().get(dataSource);
+        return attachment != null && attachment.transaction;
+    }
+
+    /**
+     * Marks the attached connection as having (or not having) transaction.
+     * Leaving transaction drops the commit listeners.
+     *
+     * @param dataSource    of type DataSource
+     * @param inTransaction <code>true</code> iff transaction has been started.
+     */
+    public void setInTransaction(DataSource dataSource, boolean inTransaction) {
+        Attachment attachment = attachments.get().get(dataSource);
+
+        if (attachment == null) {
+            throw new DatabaseException("Connection not attached.");
+        }
+
+        attachment.transaction = inTransaction;
+        if (!inTransaction) {
+            attachment.commitListeners = null;
+        }
+    }
+
+    /**
+     * Adds listener to be called after successful commit of the current transaction.
+     *
+     * @param dataSource of type DataSource
+     * @param listener   Listener to be called after commit.
+     */
+    public void addCommitListener(DataSource dataSource, Runnable listener) {
+        Attachment attachment = attachments.get().get(dataSource);
+
+        if (attachment == null || !attachment.transaction) {
+            throw new DatabaseException("Transaction not started.");
+        }
+
+        if (attachment.commitListeners == null) {
+            attachment.commitListeners = new ArrayList<>();
+        }
+        attachment.commitListeners.add(listener);
+    }
+
+    /**
+     * @param dataSource of type DataSource
+     * @return Commit listeners of the current transaction, they are removed from the transaction.
+     */
+    public List<Runnable> takeCommitListeners(DataSource dataSource) {
+        Attachment attachment = attachments.get().get(dataSource);
+
+        if (attachment == null || attachment.commitListeners == null) {
+            return Collections.emptyList();
+        }
+
+        List<Runnable> result = attachment.commitListeners;
+        attachment.commitListeners = null;
+        return result;
+    }
+
+    /**
+     * Returns identity map (id to instance) of the entity class, it lives as long as the attached connection.
+     *
+     * @param dataSource of type DataSource
+     * @param clazz      Entity class.
+     * @return Identity map or null if connection is not attached.
+     */
+    public Map<Object, Object> getIdentityMap(DataSource dataSource, Class<?> clazz) {
+        Attachment attachment = attachments.get().get(dataSource);
+
+        if (attachment == null) {
+            return null;
+        }
+
+        if (attachment.identityMaps == null) {
+            attachment.identityMaps = new HashMap<>();
+        }
+        return attachment.identityMaps.computeIfAbsent(clazz, key -> new HashMap<>());
+    }
+
+    /**
+     * Discards identity maps of the attached connection.
+     *
+     * @param dataSource of type DataSource
+     */
+    public void clearIdentityMaps(DataSource dataSource) {
+        Attachment attachment = attachments.get().get(dataSource);
+
+        if (attachment != null) {
+            attachment.identityMaps = null;
+        }
+    }
+
     /**
      * Use it to close connection safely. Don't use connection.close().
      *
@@ -150,6 +259,9 @@ class DataSourceUtil {
         private final Connection connection;
         private final long expirationTime;
         private final AtomicInteger attachCount = new AtomicInteger();
+        private boolean transaction;
+        private List<Runnable> commitListeners;
+        private Map<Class<?>, Map<Object, Object>> identityMaps;
 
         private Attachment(Connection connection, long expirationTime) {
             this.connection = connection;
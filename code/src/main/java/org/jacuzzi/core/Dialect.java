@@ -0,0 +1,74 @@
+package org.jacuzzi.core;
+
+import java.util.Locale;
+
+/**
+ * SQL dialect of the database. Jacuzzi detects it by the database metadata,
+ * use -Djacuzzi.dialect=&lt;name&gt; to override it.
+ *
+ * Only the dialect specific statements (like upserts) depend on it.
+ */
+public enum Dialect {
+    /**
+     * Uses standard MERGE statement.
+     */
+    HSQLDB,
+
+    /**
+     * Uses INSERT ... AS new ON DUPLICATE KEY UPDATE for the tables without unique keys
+     * except the primary key on MySQL 8.0.19+. MariaDB is considered as MySQL.
+     */
+    MYSQL,
+
+    /**
+     * Uses INSERT ... ON CONFLICT.
+     */
+    POSTGRESQL,
+
+    /**
+     * Unknown database, dialect specific statements are not used.
+     */
+    OTHER;
+
+    /**
+     * @param databaseProductName Result of DatabaseMetaData.getDatabaseProductName().
+     * @return Dialect of the database, OTHER if unknown.
+     */
+    static Dialect of(String databaseProductName) {
+        if (databaseProductName == null) {
+            return OTHER;
+        }
+
+        String name = databaseProductName.toLowerCase(Locale.ENGLISH);
+
+        if (name.contains("hsql")) {
+            return HSQLDB;
+        }
+
+        if (name.contains("mysql") || name.contains("mariadb")) {
+            return MYSQL;
+        }
+
+        if (name.contains("postgres")) {
+            return POSTGRESQL;
+        }
+
+        return OTHER;
+    }
+
+    /**
+     * @param name Dialect name, case insensitive.
+     * @return Dialect or null if name is empty.
+     */
+    static Dialect valueOfName(String name) {
+        if (name == null || name.trim().isEmpty()) {
+            return null;
+        }
+
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            throw new DatabaseException("Unknown dialect '" + name + "'.", e);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package org.jacuzzi.core;
+
+import net.sf.cglib.reflect.FastMethod;
+
+import java.lang.reflect.InvocationTargetException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Serializes mapped fields of entities into compact binary layout: null bitmap followed by
+ * the non-null values in the field order, numbers in fixed width, strings in UTF-8 with length.
+ * Values of {@link Date} fields are prefixed by the tag of their runtime class, so JDBC subclasses
+ * (like {@link Timestamp} with nanos) are decoded as they were.
+ *
+ * Values are read and written by the same getters and setters as the mapping uses.
+ *
+ * @param <T> Entity class.
+ */
+final class EntityCodec<T> {
+    private static final int BOOLEAN = 0;
+    private static final int BYTE = 1;
+    private static final int SHORT = 2;
+    private static final int INT = 3;
+    private static final int LONG = 4;
+    private static final int FLOAT = 5;
+    private static final int DOUBLE = 6;
+    private static final int CHAR = 7;
+    private static final int STRING = 8;
+    private static final int DATE = 9;
+    private static final int TIMESTAMP = 10;
+    private static final int BYTES = 11;
+    private static final int ENUM = 12;
+    private static final int BIG_DECIMAL = 13;
+    private static final int BIG_INTEGER = 14;
+
+    private static final byte UTIL_DATE_TAG = 0;
+    private static final byte TIMESTAMP_TAG = 1;
+    private static final byte SQL_DATE_TAG = 2;
+    private static final byte SQL_TIME_TAG = 3;
+
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
+    private static final ThreadLocal<ByteBuffer> buffers
+            = ThreadLocal.withInitial(() -> ByteBuffer.allocate(INITIAL_BUFFER_SIZE));
+
+    private final Supplier<T> factory;
+    private final FastMethod[] getters;
+    private final FastMethod[] setters;
+    private final int[] types;
+    private final Class<?>[] classes;
+
+    /**
+     * @param factory Creates new instances.
+     * @param getters Getters of the fields.
+     * @param setters Setters of the fields in the same order.
+     * @throws MappingException If some field has unsupported type.
+     */
+    EntityCodec(Supplier<T> factory, List<FastMethod> getters, List<FastMethod> setters) {
+        this.factory = factory;
+        this.getters = getters.toArray(new FastMethod[0]);
+        this.setters = setters.toArray(new FastMethod[0]);
+
+        types = new int[this.setters.length];
+        classes = new Class<?>[this.setters.length];
+
+        for (int i = 0; i < this.setters.length; i++) {
+            classes[i] = this.setters[i].getParameterTypes()[0];
+            types[i] = getType(classes[i]);
+            if (types[i] < 0) {
+                throw new MappingException("Can't encode value of " + classes[i] + " set by "
+                        + this.setters[i].getJavaMethod() + '.');
+            }
+        }
+    }
+
+    /**
+     * @param instance Entity.
+     * @return Buffer with the encoded instance between position and limit, it is reused by the next call in the thread.
+     */
+    ByteBuffer encode(T instance) {
+        ByteBuffer buffer = buffers.get();
+        ((Buffer) buffer).clear();
+
+        int bitmapSize = (types.length + 7) >>> 3;
+        buffer = ensureRemaining(buffer, bitmapSize);
+        int bitmapPosition = buffer.position();
+        for (int i = 0; i < bitmapSize; i++) {
+            buffer.put((byte) 0);
+        }
+
+        for (int i = 0; i < types.length; i++) {
+            Object value;
+            try {
+                value = getters[i].invoke(instance, null);
+            } catch (InvocationTargetException e) {
+                throw new MappingException("Can't invoke getter " + getters[i] + '.', e);
+            }
+
+            if (value == null) {
+                int index = bitmapPosition + (i >>> 3);
+                buffer.put(index, (byte) (buffer.get(index) | (1 << (i & 7))));
+            } else {
+                buffer = write(buffer, types[i], value);
+            }
+        }
+
+        buffers.set(buffer);
+        ((Buffer) buffer).flip();
+        return buffer;
+    }
+
+    /**
+     * @param buffer Buffer with the encoded instance starting at its position.
+     * @return Decoded instance.
+     */
+    T decode(ByteBuffer buffer) {
+        T instance = factory.get();
+
+        int bitmapPosition = buffer.position();
+        ((Buffer) buffer).position(bitmapPosition + ((types.length + 7) >>> 3));
+
+        for (int i = 0; i < types.length; i++) {
+            if ((buffer.get(bitmapPosition + (i >>> 3)) & (1 << (i & 7))) != 0) {
+                if (!classes[i].isPrimitive()) {
+                    set(instance, i, null);
+                }
+            } else {
+                set(instance, i, read(buffer, i));
+            }
+        }
+
+        return instance;
+    }
+
+    private void set(T instance, int index, Object value) {
+        try {
+            setters[index].invoke(instance, new Object[]{value});
+        } catch (InvocationTargetException e) {
+            throw new MappingException("Can't invoke setter " + setters[index] + '.', e);
+        }
+    }
+
+    private static ByteBuffer write(ByteBuffer buffer, int type, Object value) {
+        switch (type) {
+            case BOOLEAN:
+                return ensureRemaining(buffer, 1).put((byte) ((Boolean) value ? 1 : 0));
+            case BYTE:
+                return ensureRemaining(buffer, 1).put((Byte) value);
+            case SHORT:
+                return ensureRemaining(buffer, 2).putShort((Short) value);
+            case INT:
+                return ensureRemaining(buffer, 4).putInt((Integer) value);
+            case LONG:
+                return ensureRemaining(buffer, 8).putLong((Long) value);
+            case FLOAT:
+                return ensureRemaining(buffer, 4).putFloat((Float) value);
+            case DOUBLE:
+                return ensureRemaining(buffer, 8).putDouble((Double) value);
+            case CHAR:
+                return ensureRemaining(buffer, 2).putChar((Character) value);
+            case STRING:
+                return writeBytes(buffer, ((String) value).getBytes(StandardCharsets.UTF_8));
+            case DATE:
+                return writeDate(buffer, (Date) value);
+            case TIMESTAMP:
+                return writeTimestamp(ensureRemaining(buffer, 12), (Timestamp) value);
+            case BYTES:
+                return writeBytes(buffer, (byte[]) value);
+            case ENUM:
+                return writeBytes(buffer, ((Enum<?>) value).name().getBytes(StandardCharsets.UTF_8));
+            case BIG_DECIMAL:
+                return writeBytes(buffer, value.toString().getBytes(StandardCharsets.UTF_8));
+            case BIG_INTEGER:
+                return writeBytes(buffer, ((BigInteger) value).toByteArray());
+            default:
+                throw new IllegalStateException("Unexpected type=" + type + '.');
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Object read(ByteBuffer buffer, int index) {
+        switch (types[index]) {
+            case BOOLEAN:
+                return buffer.get() != 0;
+            case BYTE:
+                return buffer.get();
+            case SHORT:
+                return buffer.getShort();
+            case INT:
+                return buffer.getInt();
+            case LONG:
+                return buffer.getLong();
+            case FLOAT:
+                return buffer.getFloat();
+            case DOUBLE:
+                return buffer.getDouble();
+            case CHAR:
+                return buffer.getChar();
+            case STRING:
+                return new String(readBytes(buffer), StandardCharsets.UTF_8);
+            case DATE:
+                return readDate(buffer);
+            case TIMESTAMP:
+                return readTimestamp(buffer);
+            case BYTES:
+                return readBytes(buffer);
+            case ENUM:
+                return Enum.valueOf((Class) classes[index], new String(readBytes(buffer), StandardCharsets.UTF_8));
+            case BIG_DECIMAL:
+                return new BigDecimal(new String(readBytes(buffer), StandardCharsets.UTF_8));
+            case BIG_INTEGER:
+                return new BigInteger(readBytes(buffer));
+            default:
+                throw new IllegalStateException("Unexpected type=" + types[index] + '.');
+        }
+    }
+
+    private static ByteBuffer writeDate(ByteBuffer buffer, Date value) {
+        buffer = ensureRemaining(buffer, 13);
+        if (value instanceof Timestamp) {
+            return writeTimestamp(buffer.put(TIMESTAMP_TAG), (Timestamp) value);
+        } else if (value instanceof java.sql.Date) {
+            return buffer.put(SQL_DATE_TAG).putLong(value.getTime());
+        } else if (value instanceof java.sql.Time) {
+            return buffer.put(SQL_TIME_TAG).putLong(value.getTime());
+        } else {
+            return buffer.put(UTIL_DATE_TAG).putLong(value.getTime());
+        }
+    }
+
+    private static Date readDate(ByteBuffer buffer) {
+        byte tag = buffer.get();
+        switch (tag) {
+            case UTIL_DATE_TAG:
+                return new Date(buffer.getLong());
+            case TIMESTAMP_TAG:
+                return readTimestamp(buffer);
+            case SQL_DATE_TAG:
+                return new java.sql.Date(buffer.getLong());
+            case SQL_TIME_TAG:
+                return new java.sql.Time(buffer.getLong());
+            default:
+                throw new IllegalStateException("Unexpected date tag=" + tag + '.');
+        }
+    }
+
+    private static ByteBuffer writeTimestamp(ByteBuffer buffer, Timestamp value) {
+        return buffer.putLong(value.getTime()).putInt(value.getNanos());
+    }
+
+    private static Timestamp readTimestamp(ByteBuffer buffer) {
+        Timestamp timestamp = new Timestamp(buffer.getLong());
+        timestamp.setNanos(buffer.getInt());
+        return timestamp;
+    }
+
+    private static ByteBuffer writeBytes(ByteBuffer buffer, byte[] bytes) {
+        return ensureRemaining(buffer, 4 + bytes.length).putInt(bytes.length).put(bytes);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static ByteBuffer ensureRemaining(ByteBuffer buffer, int size) {
+        if (buffer.remaining() >= size) {
+            return buffer;
+        }
+
+        ByteBuffer result = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + size));
+        ((Buffer) buffer).flip();
+        result.put(buffer);
+        return result;
+    }
+
+    private static int getType(Class<?> clazz) {
+        if (clazz == boolean.class || clazz == Boolean.class) {
+            return BOOLEAN;
+        } else if (clazz == byte.class || clazz == Byte.class) {
+            return BYTE;
+        } else if (clazz == short.class || clazz == Short.class) {
+            return SHORT;
+        } else if (clazz == int.class || clazz == Integer.class) {
+            return INT;
+        } else if (clazz == long.class || clazz == Long.class) {
+            return LONG;
+        } else if (clazz == float.class || clazz == Float.class) {
+            return FLOAT;
+        } else if (clazz == double.class || clazz == Double.class) {
+            return DOUBLE;
+        } else if (clazz == char.class || clazz == Character.class) {
+            return CHAR;
+        } else if (clazz == String.class) {
+            return STRING;
+        } else if (clazz == Date.class) {
+            return DATE;
+        } else if (clazz == Timestamp.class) {
+            return TIMESTAMP;
+        } else if (clazz == byte[].class) {
+            return BYTES;
+        } else if (clazz.isEnum()) {
+            return ENUM;
+        } else if (clazz == BigDecimal.class) {
+            return BIG_DECIMAL;
+        } else if (clazz == BigInteger.class) {
+            return BIG_INTEGER;
+        } else {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.jacuzzi.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared pool of daemon threads to run independent queries in parallel.
+ * Each query in a pooled thread uses its own connection from the DataSource.
+ * Tasks of the pool never wait for other tasks of the pool: parallel queries issued
+ * from a pooled thread run in that thread one by one.
+ *
+ * Background tasks (refreshes of caches and snapshots) run in the separate pool,
+ * so they may issue parallel queries without taking the threads they wait for.
+ *
+ * Use -Djacuzzi.parallelism=&lt;n&gt; to set the number of threads of each pool.
+ */
+@SuppressWarnings("AccessOfSystemProperties")
+final class ExecutorUtil {
+    private static final int PARALLELISM = Integer.parseInt(System.getProperty(
+            "jacuzzi.parallelism", Integer.toString(Math.max(4, Runtime.getRuntime().availableProcessors()))
+    ));
+
+    private static final ThreadLocal<Boolean> worker = new ThreadLocal<>();
+
+    private static volatile ExecutorService executor;
+    private static volatile ExecutorService backgroundExecutor;
+
+    private ExecutorUtil() {
+        throw new UnsupportedOperationException();
+    }
+
+    static int getParallelism() {
+        return PARALLELISM;
+    }
+
+    /**
+     * @return Pool to run parallel queries, its tasks should not wait for other tasks of the pool.
+     */
+    static ExecutorService getExecutor() {
+        ExecutorService result = executor;
+
+        if (result == null) {
+            synchronized (ExecutorUtil.class) {
+                result = executor;
+                if (result == null) {
+                    result = executor = newFixedThreadPool("jacuzzi-worker-", true);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return Pool to run background tasks, they may wait for the tasks of {@link #getExecutor()}.
+     */
+    static ExecutorService getBackgroundExecutor() {
+        ExecutorService result = backgroundExecutor;
+
+        if (result == null) {
+            synchronized (ExecutorUtil.class) {
+                result = backgroundExecutor;
+                if (result == null) {
+                    result = backgroundExecutor = newFixedThreadPool("jacuzzi-background-", false);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return {@code true} iff the current thread belongs to the pool of {@link #getExecutor()}.
+     */
+    static boolean isWorkerThread() {
+        return worker.get() != null;
+    }
+
+    private static ExecutorService newFixedThreadPool(String namePrefix, boolean workers) {
+        AtomicInteger threadIndex = new AtomicInteger();
+
+        return Executors.newFixedThreadPool(PARALLELISM, runnable -> {
+            Thread thread = new Thread(() -> {
+                if (workers) {
+                    worker.set(Boolean.TRUE);
+                }
+                runnable.run();
+            }, namePrefix + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs tasks in the pool, the first task runs in the current thread.
+     * If the current thread belongs to the pool, all the tasks run in it one by one.
+     *
+     * @param tasks Tasks to run.
+     * @param <R>   Result type.
+     * @return Results in the order of tasks.
+     * @throws DatabaseException if any task fails, RuntimeException of the task is rethrown as is.
+     */
+    static <R> List<R> invokeAll(List<Callable<R>> tasks) {
+        boolean inline = isWorkerThread();
+
+        List<Future<R>> futures = new ArrayList<>(tasks.size());
+        if (!inline) {
+            for (int i = 1; i < tasks.size(); i++) {
+                futures.add(getExecutor().submit(tasks.get(i)));
+            }
+        }
+
+        List<R> results = new ArrayList<>(tasks.size());
+
+        try {
+            if (inline) {
+                for (Callable<R> task : tasks) {
+                    results.add(task.call());
+                }
+            } else if (!tasks.isEmpty()) {
+                results.add(tasks.get(0).call());
+            }
+
+            for (Future<R> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw toRuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted while waiting for parallel queries.", e);
+        } catch (Exception e) {
+            throw toRuntimeException(e);
+        } finally {
+            for (Future<R> future : futures) {
+                future.cancel(false);
+            }
+        }
+
+        return results;
+    }
+
+    private static RuntimeException toRuntimeException(Throwable throwable) {
+        if (throwable instanceof RuntimeException) {
+            return (RuntimeException) throwable;
+        }
+
+        if (throwable instanceof Error) {
+            throw (Error) throwable;
+        }
+
+        return new DatabaseException(throwable);
+    }
+}
@@ -0,0 +1,223 @@
+package org.jacuzzi.core;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Coalesces concurrent finds by id into single "WHERE id IN (...)" queries.
+ *
+ * The first caller of a batch waits for the window or until the batch is full,
+ * then it runs the query for all the ids collected in the meantime. Each caller gets
+ * its own instance converted from the shared row.
+ *
+ * Use {@link GenericDaoImpl#setFindCoalescing(long, int)} to enable it.
+ *
+ * @param <T> Entity class.
+ */
+public final class FindCoalescer<T> {
+    private final long windowMicros;
+    private final int maxBatchSize;
+
+    private final Function<Object[], List<Row>> loader;
+    private final Function<Row, T> converter;
+    private final Function<T, Object> idGetter;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition batchFull = lock.newCondition();
+    private Batch<T> currentBatch;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong queryCount = new AtomicLong();
+
+    FindCoalescer(long windowMicros, int maxBatchSize, Function<Object[], List<Row>> loader,
+                  Function<Row, T> converter, Function<T, Object> idGetter) {
+        if (windowMicros <= 0) {
+            throw new IllegalArgumentException("Expected positive window, but " + windowMicros + " found.");
+        }
+
+        if (maxBatchSize <= 1) {
+            throw new IllegalArgumentException("Expected batch size at least 2, but " + maxBatchSize + " found.");
+        }
+
+        this.windowMicros = windowMicros;
+        this.maxBatchSize = maxBatchSize;
+        this.loader = loader;
+        this.converter = converter;
+        this.idGetter = idGetter;
+    }
+
+    /**
+     * @return Time in microseconds the first caller of a batch waits for other callers.
+     */
+    public long getWindowMicros() {
+        return windowMicros;
+    }
+
+    /**
+     * @return Maximal number of distinct ids in a batch.
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * @return Number of finds passed through the coalescer.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return Number of queries issued by the coalescer.
+     */
+    public long getQueryCount() {
+        return queryCount.get();
+    }
+
+    /**
+     * @return Average number of finds per query, 0 if there were no queries.
+     */
+    public double getCoalescingRatio() {
+        long queries = queryCount.get();
+        return queries == 0 ? 0.0 : (double) requestCount.get() / queries;
+    }
+
+    T find(Object id) {
+        requestCount.incrementAndGet();
+
+        Object normalizedId = TypeOracle.normalizeId(id);
+        Batch<T> batch;
+        Slot<T> slot;
+        boolean leader;
+
+        lock.lock();
+        try {
+            leader = currentBatch == null;
+            if (leader) {
+                currentBatch = new Batch<>();
+            }
+
+            batch = currentBatch;
+            slot = batch.slots.get(normalizedId);
+            if (slot == null) {
+                slot = new Slot<>(id);
+                batch.slots.put(normalizedId, slot);
+            }
+
+            if (batch.slots.size() >= maxBatchSize) {
+                currentBatch = null;
+                batchFull.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (leader) {
+            awaitBatch(batch);
+            load(batch);
+
+            Throwable failure = batch.failure;
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            if (failure != null) {
+                throw new DatabaseException("Coalesced find failed.", failure);
+            }
+        } else {
+            try {
+                batch.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DatabaseException("Interrupted while waiting for coalesced find.", e);
+            }
+
+            if (batch.failure != null) {
+                throw new DatabaseException("Coalesced find failed.", batch.failure);
+            }
+        }
+
+        if (slot.row == null) {
+            return null;
+        }
+
+        return slot.instanceClaimed.compareAndSet(false, true) ? slot.instance : converter.apply(slot.row);
+    }
+
+    private void awaitBatch(Batch<T> batch) {
+        lock.lock();
+        try {
+            long remainingNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+            while (currentBatch == batch && remainingNanos > 0) {
+                try {
+                    remainingNanos = batchFull.awaitNanos(remainingNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            if (currentBatch == batch) {
+                currentBatch = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void load(Batch<T> batch) {
+        try {
+            Object[] ids = new Object[batch.slots.size()];
+            int index = 0;
+            for (Slot<T> slot : batch.slots.values()) {
+                ids[index++] = slot.id;
+            }
+
+            queryCount.incrementAndGet();
+            for (Row row : loader.apply(ids)) {
+                T instance = converter.apply(row);
+                Slot<T> slot = batch.slots.get(TypeOracle.normalizeId(idGetter.apply(instance)));
+                if (slot != null && slot.row == null) {
+                    slot.row = row;
+                    slot.instance = instance;
+                }
+            }
+        } catch (Throwable e) {
+            // Errors are recorded too, otherwise the followers would take missing rows for absent ones.
+            batch.failure = e;
+        } finally {
+            batch.done.countDown();
+        }
+    }
+
+    private static final class Batch<T> {
+        /**
+         * Slots by normalized ids, modified under the coalescer lock until the batch is taken.
+         */
+        private final Map<Object, Slot<T>> slots = new LinkedHashMap<>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Throwable failure;
+    }
+
+    private static final class Slot<T> {
+        private final Object id;
+        private final AtomicBoolean instanceClaimed = new AtomicBoolean();
+        private Row row;
+        private T instance;
+
+        private Slot(Object id) {
+            this.id = id;
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package org.jacuzzi.core;
 
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Provides some usefull methods for entity.
@@ -19,7 +22,9 @@ import java.util.List;
  */
 public interface GenericDao<T, K> {
     /**
-     * Returns entity by primary key.
+     * Returns entity by primary key. The row is read by the precomputed query,
+     * but if the implementation overrides {@link #findBy(String, Object...)}, it is read
+     * through findBy("id = ?", id) (without the entity cache and coalescing), so the overriding filters apply.
      *
      * @param id Primary key value (id).
      * @return Entity instance.
@@ -33,6 +38,105 @@ public interface GenericDao<T, K> {
      */
     List<T> findAll();
 
+    /**
+     * Finds instances by ids.
+     *
+     * @param ids Ids of instances to find.
+     * @return Found instances in the order of ids, missing ids are skipped.
+     */
+    List<T> findAll(Collection<K> ids);
+
+    /**
+     * Finds instances by ids.
+     *
+     * @param ids Ids of instances to find.
+     * @return Found instances by their ids in the order of ids, missing ids are skipped.
+     */
+    Map<K, T> findMap(Collection<K> ids);
+
+    /**
+     * Finds instances by ids.
+     *
+     * @param ids        Ids of instances to find.
+     * @param missingIds If not null, ids of not found instances are added to it.
+     * @return Found instances by their ids in the order of ids, missing ids are skipped.
+     */
+    Map<K, T> findMap(Collection<K> ids, Collection<K> missingIds);
+
+    /**
+     * Iterates over all instances in the order of ids, loading them page by page.
+     *
+     * @param pageSize Number of instances loaded by single query.
+     * @return Iterator over all instances.
+     */
+    Iterator<T> scan(int pageSize);
+
+    /**
+     * Iterates over instances matching the predicate in the order of ids, loading them page by page.
+     *
+     * @param pageSize  Number of instances loaded by single query.
+     * @param predicate Condition (without WHERE) instances should match or null.
+     * @param args      Arguments to replace "?" jokers in {@code predicate}.
+     * @return Iterator over matching instances.
+     */
+    Iterator<T> scan(int pageSize, String predicate, Object... args);
+
+    /**
+     * Scans instances matching the predicate by several concurrent queries over id ranges.
+     * Requires integral id.
+     *
+     * @param partitions  Number of id ranges.
+     * @param parallelism Maximal number of ranges scanned at the same time.
+     * @param predicate   Condition (without WHERE) instances should match or null.
+     * @param consumer    Thread-safe consumer of instances, it is called from several threads.
+     * @param args        Arguments to replace "?" jokers in {@code predicate}.
+     * @return Number of scanned instances.
+     */
+    long parallelScan(int partitions, int parallelism, String predicate, Consumer<? super T> consumer, Object... args);
+
+    /**
+     * Scans rows the same way as {@link #parallelScan(int, int, String, Consumer, Object...)}
+     * and merges them into single rowRoll in the order of ids.
+     *
+     * @param partitions  Number of id ranges.
+     * @param parallelism Maximal number of ranges scanned at the same time.
+     * @param predicate   Condition (without WHERE) rows should match or null.
+     * @param args        Arguments to replace "?" jokers in {@code predicate}.
+     * @return Matching rows.
+     */
+    RowRoll parallelScanRowRoll(int partitions, int parallelism, String predicate, Object... args);
+
+    /**
+     * Finds instances by values of the column (usually a reference to the parent entity)
+     * with single chunked query.
+     *
+     * @param column Column name.
+     * @param keys   Values of the column.
+     * @param <V>    Type of the values.
+     * @return Instances by the column values in the order of keys, each key has a list (maybe empty).
+     */
+    <V> Map<V, List<T>> findByForeignKeys(String column, Collection<V> keys);
+
+    /**
+     * Finds instances referring to the parents by the column and sets list of them to each parent
+     * by the setter of the property (like "setChildren(List&lt;Child&gt;)"). Property shouldn't be mapped to a column,
+     * so mark it by @Transient.
+     *
+     * @param parents  Parent instances.
+     * @param column   Column which contains id of the parent.
+     * @param property Property of the parent to set list of instances.
+     * @param <P>      Parent class.
+     */
+    <P> void attachByForeignKey(Collection<P> parents, String column, String property);
+
+    /**
+     * Finds instances by primitive ids. The id should be integral.
+     *
+     * @param ids Ids of instances to find.
+     * @return Found instances by their ids, missing ids are skipped.
+     */
+    LongObjectMap<T> findMap(long... ids);
+
     /**
      * Returns entity list using query to find them.
      * You can use reduced form of the query.
@@ -47,6 +151,15 @@ public interface GenericDao<T, K> {
      */
     List<T> findBy(String query, Object... args);
 
+    /**
+     * Finds ids of instances without creating objects per row. The id should be integral.
+     *
+     * @param query Query to find instances (see {@link #findBy(String, Object...)}).
+     * @param args  Arguments to replace "?" jokers in {@code query}.
+     * @return Ids of found instances.
+     */
+    long[] findIds(String query, Object... args);
+
     /**
      * Returns the number of entities matched given query.
      * Examples:
@@ -92,6 +205,13 @@ public interface GenericDao<T, K> {
      */
     void save(T object);
 
+    /**
+     * Saves (inserts or updates) multiple entity instances.
+     *
+     * @param objects Entity instances.
+     */
+    void save(Collection<T> objects);
+
     /**
      * Inserts entity instance. It updates instance's @Id field if
      * insert statement generates exactly one generated key (auto-incremented value).
@@ -175,6 +295,14 @@ public interface GenericDao<T, K> {
      */
     void deleteById(Collection<K> ids);
 
+    /**
+     * Deletes instances by primitive ids. The id should be integral.
+     *
+     * @param ids Ids of instances to delete.
+     * @throws DatabaseException if can't delete all the instances.
+     */
+    void deleteByIds(long... ids);
+
     /**
      * Creates new entity instance.
      * Doesn't set any field.
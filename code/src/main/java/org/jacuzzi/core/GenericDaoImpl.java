@@ -1,12 +1,29 @@
 package org.jacuzzi.core;
 
+import org.apache.log4j.Logger;
+
 import javax.sql.DataSource;
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.math.BigInteger;
+import java.sql.Connection;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -14,116 +31,1452 @@ import java.util.regex.Pattern;
  */
 @SuppressWarnings("AbstractClassWithoutAbstractMethods")
 public abstract class GenericDaoImpl<T, K> implements GenericDao<T, K> {
+    private static final Logger logger = Logger.getLogger(GenericDaoImpl.class);
+
     private static final Pattern STARTS_WITH_SELECT_PATTERN
             = Pattern.compile("[\\s]*SELECT[\\s]+.*", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
 
-    private static final Pattern STARTS_WITH_WHERE_PATTERN
-            = Pattern.compile("[\\s]*WHERE[\\s]+.*", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    private static final Pattern STARTS_WITH_WHERE_PATTERN
+            = Pattern.compile("[\\s]*WHERE[\\s]+.*", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Matches "column = ?" (optionally with WHERE and quoted column), group 1 is the column.
+     */
+    private static final Pattern COLUMN_EQUALS_PREDICATE_PATTERN = Pattern.compile(
+            "[\\s]*(?:WHERE[\\s]+)?[`\"]?(\\w+)[`\"]?[\\s]*=[\\s]*\\?[\\s]*", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Maximal number of memoized queries per DAO, the memo is cleared on overflow.
+     */
+    private static final int MAX_MEMOIZED_QUERY_COUNT = 4096;
+
+    /**
+     * Bulk save splits rows into statements having at most that many arguments or rows.
+     */
+    private static final int MAX_SAVE_ARGUMENT_COUNT = 16384;
+    private static final int MAX_SAVE_ROW_COUNT = 1000;
+
+    /**
+     * Maximal number of ids in the single "WHERE id IN (...)" query.
+     */
+    private static final int MAX_FIND_BY_IDS_COUNT = 1000;
+
+    /**
+     * Parallel scan loads each id range by pages of that size.
+     */
+    private static final int PARALLEL_SCAN_PAGE_SIZE = 1000;
+
+    /**
+     * Entity caches by DataSource and entity class, they are shared by DAO instances.
+     */
+    private static final ConcurrentMap<DataSource, ConcurrentMap<Class<?>, SegmentedLruCache<Object, Row>>> entityCaches
+            = new ConcurrentHashMap<>();
+
+    /**
+     * Reference tables by DataSource and entity class, they are shared by DAO instances.
+     */
+    private static final ConcurrentMap<DataSource, ConcurrentMap<Class<?>, ReferenceTable>> referenceTables
+            = new ConcurrentHashMap<>();
+
+    /**
+     * Bloom filters of ids by DataSource and entity class, they are shared by DAO instances.
+     */
+    private static final ConcurrentMap<DataSource, ConcurrentMap<Class<?>, IdBloomFilter>> findBloomFilters
+            = new ConcurrentHashMap<>();
+
+    /**
+     * Off-heap entity caches by DataSource and entity class, they are shared by DAO instances.
+     */
+    private static final ConcurrentMap<DataSource, ConcurrentMap<Class<?>, OffHeapStore>> offHeapEntityCaches
+            = new ConcurrentHashMap<>();
+
+    /**
+     * Settings the shared instances above were created with, to warn about the conflicting settings.
+     */
+    private static final Map<Object, List<Object>> sharedInstanceSettings
+            = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final DataSource dataSource;
+    private final Jacuzzi jacuzzi;
+    private final TypeOracle<T> typeOracle;
+
+    /**
+     * Query fragments passed to findBy and findCountBy mapped to the complete queries.
+     */
+    private final ConcurrentMap<String, String> findQueries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> findCountQueries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> findIdsQueries = new ConcurrentHashMap<>();
+
+    /**
+     * Values of {@link TypeOracle#getQuerySetArguments(Object)} as they were loaded or written last time.
+     */
+    private final WeakIdentityMap<T, Object[]> snapshots = new WeakIdentityMap<>();
+    private volatile boolean changeTracking;
+    private volatile FindCoalescer<T> findCoalescer;
+    private volatile SegmentedLruCache<Object, Row> entityCache;
+    private volatile boolean queryCaching;
+    private volatile boolean sharedReads;
+    private volatile boolean identityMapping;
+    private volatile ReferenceTable referenceTable;
+
+    /**
+     * Lower-cased indexed columns of the reference table which compare strings exactly.
+     */
+    private final Set<String> exactStringIndexColumns = ConcurrentHashMap.newKeySet();
+
+    private volatile IdBloomFilter findBloomFilter;
+    private volatile OffHeapStore offHeapEntityCache;
+    private volatile EntityCodec<T> entityCodec;
+
+    /**
+     * find(id) and findAll() read rows through findBy if it is overridden, so the filters of subclasses apply.
+     */
+    private final boolean findByOverridden;
+
+    /**
+     * save uses upserts only if neither insert(object) nor update(object) is overridden,
+     * otherwise it calls them, so the logic of subclasses (like timestamps or validation) applies.
+     */
+    private final boolean insertOrUpdateOverridden;
+
+    private Class<T> typeClass;
+    private final Lock typeClassLock = new ReentrantLock();
+
+    private Class<K> keyClass;
+    private final Lock keyClassLock = new ReentrantLock();
+
+    protected Jacuzzi getJacuzzi() {
+        return jacuzzi;
+    }
+
+    protected GenericDaoImpl(DataSource source) {
+        dataSource = source;
+        jacuzzi = Jacuzzi.getJacuzzi(source);
+        typeOracle = TypeOracle.getTypeOracle(getTypeClass());
+        findByOverridden = isOverridden("findBy", String.class, Object[].class);
+        insertOrUpdateOverridden = isOverridden("insert", Object.class) || isOverridden("update", Object.class);
+    }
+
+    private boolean isOverridden(String methodName, Class<?>... parameterTypes) {
+        try {
+            return getClass().getMethod(methodName, parameterTypes).getDeclaringClass()
+                    != GenericDaoImpl.class;
+        } catch (NoSuchMethodException e) {
+            throw new MappingException("Can't find method " + methodName + " of " + getClass() + '.', e);
+        }
+    }
+
+    /**
+     * Call it to begin transaction around
+     * current connection in current thread.
+     *
+     * You should call commit() or rollback() at
+     * the end of transaction.
+     *
+     * Usually you should call commit or rollback
+     * in the current DAO method.
+     */
+    protected void beginTransaction() {
+        jacuzzi.beginTransaction();
+    }
+
+    /**
+     * Commits current transaction.
+     */
+    protected void commit() {
+        jacuzzi.commit();
+    }
+
+    /**
+     * Rollbacks current transaction.
+     */
+    protected void rollback() {
+        jacuzzi.rollback();
+    }
+
+    /**
+     * Enables or disables change tracking. If enabled, instances loaded or written
+     * by the DAO remember their values and update(object) sets only changed columns.
+     * If nothing changed, update(object) doesn't access the database at all
+     * (so columns like "ON UPDATE CURRENT_TIMESTAMP" are not touched too).
+     * In a transaction the remembered values are replaced after commit.
+     *
+     * Disabled by default. Call it in the constructor of the DAO implementation.
+     *
+     * @param changeTracking Enables change tracking if true.
+     */
+    protected void setChangeTracking(boolean changeTracking) {
+        this.changeTracking = changeTracking;
+    }
+
+    /**
+     * Enables or disables coalescing of concurrent find(id) calls: ids requested within
+     * the window are found by single query. Finds inside an attached connection
+     * (or transaction) are never coalesced.
+     *
+     * Disabled by default. Call it in the constructor of the DAO implementation.
+     *
+     * @param windowMicros Time in microseconds the first caller waits for others, non-positive disables coalescing.
+     * @param maxBatchSize Maximal number of ids in a query, the query is issued immediately if reached.
+     */
+    protected void setFindCoalescing(long windowMicros, int maxBatchSize) {
+        if (windowMicros <= 0) {
+            findCoalescer = null;
+        } else {
+            findCoalescer = new FindCoalescer<>(
+                    windowMicros, Math.min(maxBatchSize, MAX_FIND_BY_IDS_COUNT),
+                    ids -> jacuzzi.findRows(typeOracle.getFindByIdsSql(ids.length), ids),
+                    this::convertFromRow, typeOracle::getIdValue
+            );
+        }
+    }
+
+    /**
+     * @return Coalescer of find(id) calls to get its statistics or null if coalescing is disabled.
+     */
+    public FindCoalescer<T> getFindCoalescer() {
+        return findCoalescer;
+    }
+
+    /**
+     * Enables or disables the cache of instances by id in front of find(id). The cache is shared
+     * by all DAOs of the entity class with the same DataSource, the first settings win (conflicting settings
+     * are logged as warning).
+     *
+     * Writes through the DAO (update, save, delete, deleteById, deleteByIds) invalidate entries,
+     * in a transaction they invalidate entries again after commit. Transactions don't use the cache.
+     * Direct SQL updates (like jacuzzi.execute) are not tracked, the time to live limits staleness in this case.
+     *
+     * Cache stores rows, so each find(id) returns new instance.
+     *
+     * Disabled by default. Call it in the constructor of the DAO implementation.
+     *
+     * @param settings Cache settings or null to disable the cache.
+     */
+    protected void setEntityCache(CacheSettings settings) {
+        if (settings == null) {
+            entityCache = null;
+        } else {
+            entityCache = getSharedInstance(entityCaches, "Entity cache", Arrays.asList(
+                    settings.getMaxSize(), settings.getMaxWeight(), settings.getTimeToLiveMillis(),
+                    settings.getStaleWhileRevalidateMillis(), settings.getRefreshAheadRatio()
+            ), () -> new SegmentedLruCache<>(settings, Row::getApproximateSize));
+        }
+    }
+
+    /**
+     * Enables or disables the use of the query cache (see {@link Jacuzzi#setQueryCache(CacheSettings)})
+     * by findBy and findOnlyBy. Disabled by default.
+     *
+     * @param queryCaching Enables the use of the query cache if true.
+     */
+    protected void setQueryCaching(boolean queryCaching) {
+        this.queryCaching = queryCaching;
+    }
+
+    /**
+     * Enables or disables single-flight reads (see {@link Jacuzzi#findRowsShared(String, Object...)})
+     * by findBy and findOnlyBy: identical queries running at the same time outside attached connections
+     * (including transactions) share single execution. The query cache, if enabled, takes precedence.
+     *
+     * Read-your-writes is lost outside transactions: the query may join the execution which has been
+     * started before the preceding write of the caller. Disabled by default.
+     *
+     * @param sharedReads Enables single-flight reads if true.
+     */
+    protected void setSharedReads(boolean sharedReads) {
+        this.sharedReads = sharedReads;
+    }
+
+    /**
+     * Enables or disables the identity map in attached connections (including transactions):
+     * while the connection is attached, find(id) returns the same instance for the same id,
+     * instances found by findBy, inserted, updated or saved are remembered and deleted ones are forgotten.
+     * The map is discarded on detach of the connection and on rollback.
+     *
+     * Disabled by default. Call it in the constructor of the DAO implementation.
+     *
+     * @param identityMapping Enables the identity map if true.
+     */
+    protected void setIdentityMapping(boolean identityMapping) {
+        this.identityMapping = identityMapping;
+    }
+
+    /**
+     * Enables or disables the reference table mode for small, rarely changed tables: the whole table
+     * is kept in memory as immutable snapshot, and find(id) and findAll() don't access the database.
+     * The snapshot is shared by all DAOs of the entity class with the same DataSource, the first settings win
+     * (conflicting settings are logged as warning).
+     *
+     * The snapshot is refreshed in the background on access after the refresh interval, only rows with
+     * the update time not less than the latest seen one are read (so the column should be updated on each change).
+     * Deleted rows and missed changes are found by reconciliation after the reconciliation interval:
+     * integral ids are reconciled by checksums of id ranges (including hashes of row values computed by
+     * the database on MySQL and PostgreSQL), only the mismatching small ranges are reread,
+     * other ids are reconciled by reading all ids.
+     * Rows written through the DAO are reread right after the write (after commit in transactions),
+     * so the writer sees its changes.
+     * Transactions don't use the snapshot. If findBy is overridden, find(id) and findAll() go through it
+     * (so its filters apply), only the indexed findBy queries use the snapshot.
+     *
+     * Disabled by default. Call it in the constructor of the DAO implementation.
+     *
+     * @param updateTimeColumn       Column with the time of the last change of the row.
+     * @param refreshInterval        Refresh interval, non-positive disables the mode.
+     * @param reconciliationInterval Reconciliation interval.
+     * @param unit                   Time unit of the intervals.
+     */
+    protected void setReferenceTable(String updateTimeColumn, long refreshInterval,
+                                     long reconciliationInterval, TimeUnit unit) {
+        if (refreshInterval <= 0) {
+            referenceTable = null;
+        } else {
+            // Validates the column.
+            typeOracle.getFindByColumnAtLeastSql(updateTimeColumn);
+
+            referenceTable = getSharedInstance(referenceTables, "Reference table", Arrays.asList(
+                    updateTimeColumn, unit.toMillis(refreshInterval), unit.toMillis(reconciliationInterval)
+            ), () -> new ReferenceTable(
+                    new ReferenceTableSource(updateTimeColumn),
+                    unit.toMillis(refreshInterval), unit.toMillis(reconciliationInterval)
+            ));
+        }
+    }
+
+    /**
+     * Adds hash index by the column to the reference table, so findBy and findOnlyBy with
+     * the single "column = ?" predicate are answered from memory if the value is compared by equals
+     * the same way as by SQL: integral values of integral columns and enum values of enum columns.
+     * Other values (like strings, which may be compared case-insensitively or with trailing spaces ignored)
+     * and other queries use the database.
+     *
+     * Call it in the constructor of the DAO implementation after setReferenceTable.
+     *
+     * @param column Column name.
+     */
+    protected void addReferenceTableIndex(String column) {
+        addReferenceTableIndex(column, false);
+    }
+
+    /**
+     * Like {@link #addReferenceTableIndex(String)}, but string values of the string column are answered
+     * from memory too if the column is declared to be compared exactly: use it only if the collation
+     * of the column is binary and doesn't pad trailing spaces, otherwise the results depend on the index.
+     *
+     * @param column              Column name.
+     * @param exactStringEquality Whether the database compares strings of the column like String.equals.
+     */
+    protected void addReferenceTableIndex(String column, boolean exactStringEquality) {
+        ReferenceTable table = referenceTable;
+        if (table == null) {
+            throw new IllegalStateException("Reference table mode is disabled for " + getTypeClass() + '.');
+        }
+
+        // Validates the column.
+        typeOracle.getFindByColumnAtLeastSql(column);
+
+        table.addIndex(column);
+        if (exactStringEquality) {
+            exactStringIndexColumns.add(column.toLowerCase(Locale.ENGLISH));
+        }
+    }
+
+    /**
+     * @return Whether SQL "column = value" matches the same rows as equals of the normalized values.
+     */
+    private boolean isComparedByEquals(String column, Object value) {
+        Class<?> type = typeOracle.getColumnType(column);
+
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return type == long.class || type == Long.class || type == int.class || type == Integer.class
+                    || type == short.class || type == Short.class || type == byte.class || type == Byte.class;
+        }
+
+        if (value instanceof Enum) {
+            return type == ((Enum<?>) value).getDeclaringClass();
+        }
+
+        return value instanceof String && type == String.class
+                && exactStringIndexColumns.contains(column.toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Saves the snapshot of the reference table to the file for fast restart: the first access
+     * reads the file instead of the table (so the node doesn't query the database on startup),
+     * then the rows are revalidated in the background by the update time and reconciliation of ids.
+     * Refreshes save the changed snapshot to the file after the write interval. The first settings win
+     * (conflicting settings are logged as warning).
+     *
+     * Values of the columns should be integers, longs, doubles, booleans, strings or dates, otherwise
+     * the snapshot is not saved. Dates are saved with millisecond precision. Delete the file
+     * if the table schema changes.
+     *
+     * Call it in the constructor of the DAO implementation after setReferenceTable.
+     *
+     * @param file          File to save the snapshot.
+     * @param writeInterval Minimal interval between writes.
+     * @param unit          Time unit of the write interval.
+     */
+    protected void setReferenceTableSnapshotFile(File file, long writeInterval, TimeUnit unit) {
+        ReferenceTable table = referenceTable;
+        if (table == null) {
+            throw new IllegalStateException("Reference table mode is disabled for " + getTypeClass() + '.');
+        }
+
+        table.setSnapshotFile(file, unit.toMillis(writeInterval));
+    }
+
+    /**
+     * Saves the snapshot of the reference table to the file now, for example, before shutdown.
+     * Does nothing if there is no file or the reference table mode is disabled.
+     *
+     * @throws IOException If the file can't be written.
+     */
+    public void writeReferenceTableSnapshotFile() throws IOException {
+        ReferenceTable table = referenceTable;
+        if (table != null) {
+            table.writeSnapshotFile();
+        }
+    }
+
+    /**
+     * @return Number of queries made by reconciliations of the reference table, 0 if the mode is disabled.
+     */
+    public long getReferenceTableReconciliationQueryCount() {
+        ReferenceTable table = referenceTable;
+        return table == null ? 0 : table.getReconciliationQueryCount();
+    }
+
+    /**
+     * Refreshes the snapshot of the reference table in the current thread, including reconciliation of ids.
+     * Does nothing if the reference table mode is disabled.
+     */
+    public void refreshReferenceTable() {
+        ReferenceTable table = referenceTable;
+        if (table != null) {
+            table.refresh(true);
+        }
+    }
+
+    /**
+     * Enables or disables Bloom filter of ids in front of find(id): if the filter says there is
+     * no such id, find(id) returns null without database access. The filter is shared by all DAOs
+     * of the entity class with the same DataSource, the first settings win (conflicting settings
+     * are logged as warning).
+     *
+     * The filter is built by streaming all ids in the background (until then it is not used),
+     * ids inserted or saved through the DAO are added to it. It is rebuilt after the rebuild interval,
+     * or earlier if it holds more ids than it was sized for.
+     *
+     * The filter trades false negatives for fewer queries: rows inserted bypassing the DAO
+     * (like jacuzzi.execute or by other applications) are not found by find(id) until the next rebuild,
+     * unless the id is integral and greater than any id known to the filter (like auto-increment ids),
+     * such ids are always looked up in the database. Don't enable it if such rows must be found at once.
+     *
+     * Disabled by default. Call it in the constructor of the DAO implementation.
+     *
+     * @param expectedIdCount          Expected number of ids, non-positive disables the filter.
+     * @param falsePositiveProbability Desired probability that the filter passes absent id, in (0, 1).
+     * @param rebuildInterval          Rebuild interval.
+     * @param unit                     Time unit of the rebuild interval.
+     */
+    protected void setFindBloomFilter(long expectedIdCount, double falsePositiveProbability,
+                                      long rebuildInterval, TimeUnit unit) {
+        if (expectedIdCount <= 0) {
+            findBloomFilter = null;
+            return;
+        }
+
+        if (falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+            throw new IllegalArgumentException("Expected falsePositiveProbability in (0, 1), but "
+                    + falsePositiveProbability + " found.");
+        }
+
+        findBloomFilter = getSharedInstance(findBloomFilters, "Bloom filter of ids", Arrays.asList(
+                expectedIdCount, falsePositiveProbability, unit.toMillis(rebuildInterval)
+        ), () -> {
+            IdBloomFilter filter = new IdBloomFilter(expectedIdCount, falsePositiveProbability,
+                    unit.toMillis(rebuildInterval), consumer -> jacuzzi.scan(
+                            typeOracle.getSelectIdSql() + "WHERE TRUE",
+                            cursor -> consumer.accept(TypeOracle.normalizeId(cursor.getObject(0)))
+                    ));
+            filter.rebuildInBackground();
+            return filter;
+        });
+    }
+
+    /**
+     * @return Statistics of the Bloom filter of ids or null if it is disabled.
+     */
+    public BloomFilterStatistics getFindBloomFilterStatistics() {
+        IdBloomFilter filter = findBloomFilter;
+        return filter == null ? null : filter.getStatistics();
+    }
+
+    /**
+     * Rebuilds the Bloom filter of ids in the current thread. Does nothing if the filter is disabled.
+     */
+    public void rebuildFindBloomFilter() {
+        IdBloomFilter filter = findBloomFilter;
+        if (filter != null) {
+            filter.rebuild();
+        }
+    }
+
+    /**
+     * Enables or disables the off-heap cache of instances by id in front of find(id): the selected fields
+     * are encoded in compact binary form and stored in direct buffers, so many instances can be cached
+     * without garbage collection overhead. Each hit decodes new instance. The cache is shared
+     * by all DAOs of the entity class with the same DataSource, the first settings win (conflicting settings
+     * are logged as warning).
+     *
+     * When the capacity is exhausted the oldest entries are overwritten (FIFO). Only entities with integral ids
+     * are cached. Invalidation and transactions are handled as in {@link #setEntityCache(CacheSettings)},
+     * the off-heap cache is not used if the entity cache is enabled. Decoded instances bypass
+     * {@link #convertFromRow(Row)}, so don't enable the cache if it is overridden.
+     *
+     * Disabled by default. Call it in the constructor of the DAO implementation.
+     *
+     * @param capacityBytes Capacity in bytes, non-positive disables the cache.
+     * @param timeToLive    Time to live of the entries.
+     * @param unit          Time unit of the time to live.
+     * @throws MappingException If some selected field has type which can't be encoded.
+     */
+    protected void setOffHeapEntityCache(long capacityBytes, long timeToLive, TimeUnit unit) {
+        if (capacityBytes <= 0) {
+            offHeapEntityCache = null;
+            return;
+        }
+
+        entityCodec = typeOracle.getEntityCodec();
+        offHeapEntityCache = getSharedInstance(offHeapEntityCaches, "Off-heap entity cache", Arrays.asList(
+                capacityBytes, unit.toMillis(timeToLive)
+        ), () -> new OffHeapStore(capacityBytes, unit.toMillis(timeToLive)));
+    }
+
+    /**
+     * Returns the instance shared by the DAOs of the entity class with the same DataSource,
+     * creates it if there is no such instance. Logs warning if it was created with other settings.
+     *
+     * @param instances Shared instances by DataSource and entity class.
+     * @param name      Name of the instance for the warning.
+     * @param settings  Settings of this DAO.
+     * @param factory   Creates the instance with the settings.
+     * @param <V>       Instance type.
+     * @return Shared instance.
+     */
+    private <V> V getSharedInstance(ConcurrentMap<DataSource, ConcurrentMap<Class<?>, V>> instances, String name,
+                                    List<Object> settings, Supplier<V> factory) {
+        V instance = instances.computeIfAbsent(dataSource, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(getTypeClass(), key -> {
+                    V newInstance = factory.get();
+                    sharedInstanceSettings.put(newInstance, settings);
+                    return newInstance;
+                });
+
+        List<Object> sharedSettings = sharedInstanceSettings.get(instance);
+        if (sharedSettings != null && !sharedSettings.equals(settings)) {
+            logger.warn(name + " of " + getTypeClass().getName() + " is shared with another DAO and was created"
+                    + " with settings " + sharedSettings + ", so settings " + settings + " are ignored.");
+        }
+
+        return instance;
+    }
+
+    /**
+     * Forgets the caches, reference tables and Bloom filters shared by the DAOs of the DataSource.
+     *
+     * @param dataSource DataSource.
+     */
+    static void release(DataSource dataSource) {
+        entityCaches.remove(dataSource);
+        offHeapEntityCaches.remove(dataSource);
+        referenceTables.remove(dataSource);
+        findBloomFilters.remove(dataSource);
+    }
+
+    /**
+     * @return Statistics of the off-heap entity cache or null if it is disabled,
+     *         the weight is the size of the entries in bytes.
+     */
+    public CacheStatistics getOffHeapEntityCacheStatistics() {
+        OffHeapStore store = offHeapEntityCache;
+        return store == null ? null : store.getStatistics();
+    }
+
+    private void addInsertedId(Object id) {
+        if (id != null) {
+            jacuzzi.publishInvalidation(typeOracle.getTableName(), id);
+        }
+
+        addToFindBloomFilter(id);
+    }
+
+    /**
+     * Invalidates the cached instance of the upserted row and adds its id to the Bloom filter,
+     * the invalidation is published once.
+     */
+    private void addSavedId(Object id) {
+        invalidateCachedInstance(id);
+        addToFindBloomFilter(id);
+    }
+
+    private void addToFindBloomFilter(Object id) {
+        IdBloomFilter filter = findBloomFilter;
+        if (filter != null && id != null) {
+            Object key = TypeOracle.normalizeId(id);
+            filter.add(key);
+            if (jacuzzi.isInTransaction()) {
+                jacuzzi.runAfterCommit(() -> filter.add(key));
+            }
+        }
+    }
+
+    /**
+     * @return Statistics of the entity cache or null if it is disabled.
+     */
+    public CacheStatistics getEntityCacheStatistics() {
+        SegmentedLruCache<Object, Row> cache = entityCache;
+        return cache == null ? null : cache.getStatistics();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<Object, T> getIdentityMap() {
+        return identityMapping ? (Map<Object, T>) (Map<?, ?>) jacuzzi.getIdentityMap(getTypeClass()) : null;
+    }
+
+    private void rememberInstance(T object) {
+        Map<Object, T> identityMap = getIdentityMap();
+        Object id;
+        if (identityMap != null && (id = typeOracle.getIdValue(object)) != null) {
+            identityMap.put(TypeOracle.normalizeId(id), object);
+        }
+    }
+
+    /**
+     * Replaces found instances by the remembered ones with the same ids, remembers the others.
+     */
+    private List<T> rememberInstances(List<T> instances) {
+        Map<Object, T> identityMap = getIdentityMap();
+        if (identityMap != null) {
+            for (ListIterator<T> iterator = instances.listIterator(); iterator.hasNext(); ) {
+                T instance = iterator.next();
+                Object id = typeOracle.getIdValue(instance);
+                if (id != null) {
+                    T rememberedInstance = identityMap.putIfAbsent(TypeOracle.normalizeId(id), instance);
+                    if (rememberedInstance != null) {
+                        iterator.set(rememberedInstance);
+                    }
+                }
+            }
+        }
+        return instances;
+    }
+
+    private void invalidateCachedInstance(Object id) {
+        if (id != null) {
+            jacuzzi.publishInvalidation(typeOracle.getTableName(), id);
+        }
+
+        Map<Object, T> identityMap = getIdentityMap();
+        if (identityMap != null && id != null) {
+            identityMap.remove(TypeOracle.normalizeId(id));
+        }
+
+        SegmentedLruCache<Object, Row> cache = entityCache;
+        if (cache != null && id != null) {
+            Object key = TypeOracle.normalizeId(id);
+            cache.invalidate(key);
+            if (jacuzzi.isInTransaction()) {
+                jacuzzi.runAfterCommit(() -> cache.invalidate(key));
+            }
+        }
+
+        OffHeapStore store = offHeapEntityCache;
+        if (store != null && id != null && TypeOracle.normalizeId(id) instanceof Long) {
+            long key = (Long) TypeOracle.normalizeId(id);
+            store.invalidate(key);
+            if (jacuzzi.isInTransaction()) {
+                jacuzzi.runAfterCommit(() -> store.invalidate(key));
+            }
+        }
+    }
+
+    /**
+     * Rereads the written rows into the snapshot of the reference table in the current thread,
+     * so the writer sees its changes. In a transaction the rows are reread after commit.
+     *
+     * @param ids Ids of the written rows.
+     */
+    private void rereadReferenceTableRows(Collection<?> ids) {
+        ReferenceTable table = referenceTable;
+        if (table == null) {
+            return;
+        }
+
+        List<Object> keys = new ArrayList<>(ids.size());
+        for (Object id : ids) {
+            if (id != null) {
+                keys.add(TypeOracle.normalizeId(id));
+            }
+        }
+
+        if (!keys.isEmpty()) {
+            jacuzzi.runAfterCommit(() -> table.rereadRows(keys));
+        }
+    }
+
+    /**
+     * Applies the invalidation to the caches of the entity classes mapped to the table:
+     * invalidates entity caches, rereads rows of reference tables and adds ids to Bloom filters.
+     *
+     * @param dataSource DataSource.
+     * @param table      Normalized table name.
+     * @param ids        Ids of the rows, null means the whole table.
+     */
+    static void invalidateCaches(DataSource dataSource, String table, Collection<Object> ids) {
+        forEachMappedTo(entityCaches.get(dataSource), table, cache -> {
+            if (ids == null) {
+                cache.invalidateAll();
+            } else {
+                for (Object id : ids) {
+                    cache.invalidate(TypeOracle.normalizeId(id));
+                }
+            }
+        });
+
+        forEachMappedTo(offHeapEntityCaches.get(dataSource), table, store -> {
+            if (ids == null) {
+                store.invalidateAll();
+            } else {
+                for (Object id : ids) {
+                    Object key = TypeOracle.normalizeId(id);
+                    if (key instanceof Long) {
+                        store.invalidate((Long) key);
+                    }
+                }
+            }
+        });
+
+        forEachMappedTo(referenceTables.get(dataSource), table, referenceTable -> {
+            if (ids == null) {
+                referenceTable.requestReload();
+            } else {
+                for (Object id : ids) {
+                    referenceTable.addChangedId(TypeOracle.normalizeId(id));
+                }
+            }
+        });
+
+        forEachMappedTo(findBloomFilters.get(dataSource), table, filter -> {
+            if (ids == null) {
+                filter.rebuildInBackground();
+            } else {
+                for (Object id : ids) {
+                    filter.add(TypeOracle.normalizeId(id));
+                }
+            }
+        });
+    }
+
+    private static <V> void forEachMappedTo(Map<Class<?>, V> valuesByClass, String table, Consumer<V> consumer) {
+        if (valuesByClass != null) {
+            for (Map.Entry<Class<?>, V> entry : valuesByClass.entrySet()) {
+                if (table.equals(QueryCache.normalizeTable(TypeOracle.getTypeOracle(entry.getKey()).getTableName()))) {
+                    consumer.accept(entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Current time as Date.
+     */
+    protected Date findNow() {
+        return jacuzzi.findDate("SELECT CURRENT_TIMESTAMP");
+    }
+
+    @Override
+    public T find(K id) {
+        Map<Object, T> identityMap = getIdentityMap();
+        if (identityMap != null && id != null) {
+            Object key = TypeOracle.normalizeId(id);
+            T instance = identityMap.get(key);
+            if (instance == null) {
+                instance = findWithoutIdentityMap(id);
+                if (instance != null) {
+                    identityMap.put(key, instance);
+                }
+            }
+            return instance;
+        }
+
+        return findWithoutIdentityMap(id);
+    }
+
+    private T findWithoutIdentityMap(K id) {
+        ReferenceTable table = referenceTable;
+        if (table != null && id != null && !findByOverridden && !jacuzzi.isInTransaction()) {
+            Row row = table.getSnapshot().get(TypeOracle.normalizeId(id));
+            return row == null ? null : convertFromRow(row.copy());
+        }
+
+        IdBloomFilter filter = findBloomFilter;
+        if (filter != null && id != null) {
+            if (!filter.mightContain(TypeOracle.normalizeId(id))) {
+                return null;
+            }
+
+            T instance = findInDatabase(id);
+            if (instance == null) {
+                filter.recordFalsePositive();
+            }
+            return instance;
+        }
+
+        return findInDatabase(id);
+    }
+
+    /**
+     * Finds the instance using the entity caches and coalescing if they are enabled.
+     */
+    private T findInDatabase(K id) {
+        SegmentedLruCache<Object, Row> cache = entityCache;
+        if (cache != null && id != null && !findByOverridden && !jacuzzi.isInTransaction()) {
+            Row row = cache.get(TypeOracle.normalizeId(id), key -> findRow(id));
+            return row == null ? null : convertFromRow(row.copy());
+        }
+
+        OffHeapStore store = offHeapEntityCache;
+        Object key;
+        if (store != null && !findByOverridden && id != null && (key = TypeOracle.normalizeId(id)) instanceof Long
+                && !jacuzzi.isInTransaction()) {
+            EntityCodec<T> codec = entityCodec;
+            T instance = store.get((Long) key, codec::decode);
+            if (instance != null) {
+                if (changeTracking) {
+                    takeSnapshot(instance, typeOracle.getQuerySetArguments(instance));
+                }
+                return instance;
+            }
+
+            long generation = store.getInvalidationGeneration((Long) key);
+            instance = findInDatabaseWithoutCaches(id);
+            if (instance != null) {
+                store.put((Long) key, codec.encode(instance), generation);
+            }
+            return instance;
+        }
+
+        return findInDatabaseWithoutCaches(id);
+    }
+
+    private T findInDatabaseWithoutCaches(K id) {
+        List<T> instances;
+
+        if (findByOverridden) {
+            instances = findBy(Query.format("?f = ?", typeOracle.getIdColumn()), id);
+        } else {
+            FindCoalescer<T> coalescer = findCoalescer;
+            if (coalescer != null && id != null && !jacuzzi.isConnectionAttached()) {
+                return coalescer.find(id);
+            }
+
+            instances = convertFromRows(jacuzzi.findRows(typeOracle.getFindByIdSql(), id));
+        }
+
+        int instanceCount = instances.size();
+
+        if (instanceCount == 0) {
+            return null;
+        }
+
+        if (instanceCount == 1) {
+            return instances.get(0);
+        }
+
+        throw new IllegalStateException("There are more than one row this the same id " +
+                id + " for " + getTypeClass() + '.');
+    }
+
+    @Override
+    public List<T> findAll() {
+        ReferenceTable table = referenceTable;
+        if (table != null && !findByOverridden && !jacuzzi.isInTransaction()) {
+            Collection<Row> rows = table.getSnapshot().getRows();
+            List<T> instances = new ArrayList<>(rows.size());
+            for (Row row : rows) {
+                instances.add(convertFromRow(row.copy()));
+            }
+            return rememberInstances(instances);
+        }
+
+        return findBy("TRUE");
+    }
+
+    private Row findRow(K id) {
+        List<Row> rows = jacuzzi.findRows(typeOracle.getFindByIdSql(), id);
+
+        if (rows.size() > 1) {
+            throw new IllegalStateException("There are more than one row this the same id " +
+                    id + " for " + getTypeClass() + '.');
+        }
+
+        return rows.isEmpty() ? null : rows.get(0);
+    }
+
+    /**
+     * Duplicate ids are ignored, the instances go in the order of the first occurrence of their ids.
+     */
+    @Override
+    public List<T> findAll(Collection<K> ids) {
+        return new ArrayList<>(findMap(ids, null).values());
+    }
+
+    @Override
+    public Map<K, T> findMap(Collection<K> ids) {
+        return findMap(ids, null);
+    }
+
+    /**
+     * Finds instances by chunked "WHERE id IN (...)" queries. If there is no attached connection,
+     * chunks are processed in parallel using separate connections.
+     */
+    @Override
+    public Map<K, T> findMap(Collection<K> ids, Collection<K> missingIds) {
+        if (ids == null || ids.isEmpty()) {
+            return new LinkedHashMap<>();
+        }
+
+        Map<Object, K> idByNormalizedId = new LinkedHashMap<>();
+        for (K id : ids) {
+            if (id != null) {
+                idByNormalizedId.putIfAbsent(TypeOracle.normalizeId(id), id);
+            }
+        }
+
+        List<K> distinctIds = new ArrayList<>(idByNormalizedId.values());
+        List<List<Row>> rowsList = findRowsByChunks(distinctIds, typeOracle::getFindByIdsSql);
+
+        Map<Object, T> instanceByNormalizedId = new HashMap<>(distinctIds.size() * 2);
+        for (List<Row> rows : rowsList) {
+            for (Row row : rows) {
+                T instance = convertFromRow(row);
+                instanceByNormalizedId.put(TypeOracle.normalizeId(typeOracle.getIdValue(instance)), instance);
+            }
+        }
+
+        Map<K, T> result = new LinkedHashMap<>(instanceByNormalizedId.size() * 2);
+        for (Map.Entry<Object, K> entry : idByNormalizedId.entrySet()) {
+            T instance = instanceByNormalizedId.get(entry.getKey());
+            if (instance != null) {
+                result.put(entry.getValue(), instance);
+            } else if (missingIds != null) {
+                missingIds.add(entry.getValue());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Finds instances by chunked "WHERE id IN (...)" queries, the same way as {@link #findMap(Collection)}.
+     * The id should be integral.
+     */
+    @Override
+    public LongObjectMap<T> findMap(long... ids) {
+        if (ids == null || ids.length == 0) {
+            return new LongObjectMap<>();
+        }
+
+        LongObjectMap<Boolean> requestedIds = new LongObjectMap<>(ids.length);
+        List<Long> distinctIds = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            if (requestedIds.put(id, Boolean.TRUE) == null) {
+                distinctIds.add(id);
+            }
+        }
+
+        LongObjectMap<T> result = new LongObjectMap<>(distinctIds.size());
+        for (List<Row> rows : findRowsByChunks(distinctIds, typeOracle::getFindByIdsSql)) {
+            for (Row row : rows) {
+                T instance = convertFromRow(row);
+                result.put(((Number) typeOracle.getIdValue(instance)).longValue(), instance);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Runs query for each chunk of at most {@link #MAX_FIND_BY_IDS_COUNT} values. If there is no attached
+     * connection, chunks are processed in parallel using separate connections.
+     *
+     * @param values     Query arguments.
+     * @param sqlByCount Returns query for the given number of arguments.
+     * @return Rows of the chunks.
+     */
+    private List<List<Row>> findRowsByChunks(List<?> values, IntFunction<String> sqlByCount) {
+        int chunkCount = (values.size() + MAX_FIND_BY_IDS_COUNT - 1) / MAX_FIND_BY_IDS_COUNT;
+        int chunkSize = chunkCount == 0 ? 0 : (values.size() + chunkCount - 1) / chunkCount;
+
+        List<Callable<List<Row>>> tasks = new ArrayList<>(chunkCount);
+        for (int from = 0; from < values.size(); from += chunkSize) {
+            Object[] chunk = values.subList(from, Math.min(values.size(), from + chunkSize)).toArray();
+            tasks.add(() -> jacuzzi.findRows(sqlByCount.apply(chunk.length), chunk));
+        }
+
+        if (tasks.size() > 1 && !jacuzzi.isConnectionAttached()) {
+            return ExecutorUtil.invokeAll(tasks);
+        }
+
+        List<List<Row>> rowsList = new ArrayList<>(tasks.size());
+        for (Callable<List<Row>> task : tasks) {
+            try {
+                rowsList.add(task.call());
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new DatabaseException(e);
+            }
+        }
+        return rowsList;
+    }
+
+    /**
+     * Duplicate keys are ignored, integral keys of different types with the same value (like 1 and 1L)
+     * are duplicates too, so the first of them is used. Instances with the same key go in the order of ids.
+     */
+    @Override
+    public <V> Map<V, List<T>> findByForeignKeys(String column, Collection<V> keys) {
+        Map<V, List<T>> result = new LinkedHashMap<>();
+        if (keys == null || keys.isEmpty()) {
+            return result;
+        }
+
+        Map<Object, List<T>> instancesByNormalizedKey = new HashMap<>(keys.size() * 2);
+        for (V key : keys) {
+            if (key != null && !instancesByNormalizedKey.containsKey(TypeOracle.normalizeId(key))) {
+                List<T> instances = new ArrayList<>();
+                result.put(key, instances);
+                instancesByNormalizedKey.put(TypeOracle.normalizeId(key), instances);
+            }
+        }
+
+        List<List<Row>> rowsList = findRowsByChunks(new ArrayList<>(result.keySet()),
+                valueCount -> typeOracle.getFindByColumnValuesSql(column, valueCount));
+
+        for (List<Row> rows : rowsList) {
+            for (Row row : rows) {
+                T instance = convertFromRow(row);
+                List<T> instances = instancesByNormalizedKey.get(
+                        TypeOracle.normalizeId(typeOracle.getColumnValue(instance, column)));
+                if (instances != null) {
+                    instances.add(instance);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Finds children by ids of the parents with single chunked query.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <P> void attachByForeignKey(Collection<P> parents, String column, String property) {
+        if (parents == null || parents.isEmpty()) {
+            return;
+        }
+
+        Map<Object, P> parentById = new LinkedHashMap<>(parents.size() * 2);
+        TypeOracle<P> parentTypeOracle = null;
+        for (P parent : parents) {
+            if (parent != null) {
+                if (parentTypeOracle == null) {
+                    parentTypeOracle = TypeOracle.getTypeOracle((Class<P>) parent.getClass());
+                }
+                parentById.putIfAbsent(TypeOracle.normalizeId(parentTypeOracle.getIdValue(parent)), parent);
+            }
+        }
+
+        if (parentTypeOracle == null) {
+            return;
+        }
+
+        Map<Object, List<T>> childrenByParentId = findByForeignKeys(column, parentById.keySet());
+        for (P parent : parents) {
+            if (parent != null) {
+                parentTypeOracle.setListPropertyValue(parent, property,
+                        childrenByParentId.get(TypeOracle.normalizeId(parentTypeOracle.getIdValue(parent))));
+            }
+        }
+    }
+
+    @Override
+    public Iterator<T> scan(int pageSize) {
+        return scan(pageSize, null);
+    }
+
+    /**
+     * Pages by "id > lastId ORDER BY id LIMIT pageSize" queries. While the caller iterates over the page,
+     * the next page is fetched in the background (unless there is an attached connection
+     * or the scan runs in a pooled thread).
+     */
+    @Override
+    public Iterator<T> scan(int pageSize, String predicate, Object... args) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Expected positive page size, but " + pageSize + " found.");
+        }
+
+        return new ScanIterator(pageSize, predicate, args);
+    }
+
+    /**
+     * Splits [MIN(id), MAX(id)] into ranges and scans them by keyset pages. Up to {@code parallelism}
+     * ranges are scanned at the same time, each using its own connection, so at most
+     * {@code parallelism} pages are in memory. If there is an attached connection, ranges are
+     * scanned one by one in the current thread.
+     */
+    @Override
+    public long parallelScan(int partitions, int parallelism, String predicate,
+                             Consumer<? super T> consumer, Object... args) {
+        AtomicLong count = new AtomicLong();
+
+        scanIdRanges(partitions, parallelism, predicate, args, (partition, rows) -> {
+            for (Row row : rows) {
+                consumer.accept(convertFromRow(row));
+            }
+            count.addAndGet(rows.size());
+        });
+
+        return count.get();
+    }
+
+    @Override
+    public RowRoll parallelScanRowRoll(int partitions, int parallelism, String predicate, Object... args) {
+        RowRoll[] rowRolls = new RowRoll[partitions];
+
+        scanIdRanges(partitions, parallelism, predicate, args, (partition, rows) -> {
+            RowRoll rowRoll = rowRolls[partition];
+            if (rowRoll == null) {
+                rowRoll = new RowRoll();
+                rowRolls[partition] = rowRoll;
+            }
+            for (Row row : rows) {
+                rowRoll.addRow(row);
+            }
+        });
+
+        String[] keys = null;
+        ArrayList<Object[]> valuesList = new ArrayList<>();
+        for (RowRoll rowRoll : rowRolls) {
+            if (rowRoll != null && !rowRoll.isEmpty()) {
+                keys = rowRoll.getKeys();
+                valuesList.addAll(rowRoll.getValueList());
+            }
+        }
+
+        return keys == null ? new RowRoll() : new RowRoll(keys, valuesList);
+    }
+
+    private void scanIdRanges(int partitions, int parallelism, String predicate, Object[] args,
+                              PageHandler pageHandler) {
+        if (partitions <= 0 || parallelism <= 0) {
+            throw new IllegalArgumentException("Expected positive partitions and parallelism, but "
+                    + partitions + " and " + parallelism + " found.");
+        }
+
+        Object[] predicateArgs = args == null ? new Object[0] : args;
+        String where = predicate == null ? "WHERE TRUE" : "WHERE " + predicate;
+        Row minMax = jacuzzi.findFirstRow(typeOracle.getMinMaxIdSql() + where, predicateArgs);
+
+        Iterator<Object> minMaxIterator = minMax.values().iterator();
+        Object min = minMaxIterator.next();
+        Object max = minMaxIterator.next();
+        if (min == null || max == null) {
+            return;
+        }
+
+        if (!(TypeOracle.normalizeId(min) instanceof Long) || !(TypeOracle.normalizeId(max) instanceof Long)) {
+            throw new MappingException("Parallel scan expects integral id of " + getTypeClass() + '.');
+        }
+
+        long minId = ((Number) min).longValue();
+        long maxId = ((Number) max).longValue();
+        long step = Long.divideUnsigned(maxId - minId, partitions) + 1;
+
+        List<long[]> ranges = new ArrayList<>(partitions);
+        for (long from = minId; ranges.size() < partitions; from += step) {
+            long to = ranges.size() == partitions - 1 || maxId - from < step ? maxId : from + step - 1;
+            ranges.add(new long[]{from, to});
+            if (to == maxId) {
+                break;
+            }
+        }
+
+        String rangePredicate = predicate == null ? typeOracle.getIdRangePredicate()
+                : '(' + predicate + ") AND " + typeOracle.getIdRangePredicate();
+
+        AtomicInteger nextRange = new AtomicInteger();
+        Callable<Void> worker = () -> {
+            int range;
+            while ((range = nextRange.getAndIncrement()) < ranges.size()) {
+                scanIdRange(range, ranges.get(range), rangePredicate, predicateArgs, pageHandler);
+            }
+            return null;
+        };
+
+        int workerCount = jacuzzi.isConnectionAttached() ? 1 : Math.min(parallelism, ranges.size());
+        ExecutorUtil.invokeAll(Collections.nCopies(workerCount, worker));
+    }
+
+    private void scanIdRange(int range, long[] bounds, String rangePredicate, Object[] args, PageHandler pageHandler) {
+        String idColumn = typeOracle.getIdColumn();
+        Object lastId = null;
+
+        while (true) {
+            Object[] pageArgs = new Object[args.length + (lastId == null ? 3 : 4)];
+            System.arraycopy(args, 0, pageArgs, 0, args.length);
+            pageArgs[args.length] = bounds[0];
+            pageArgs[args.length + 1] = bounds[1];
+            if (lastId != null) {
+                pageArgs[args.length + 2] = lastId;
+            }
+            pageArgs[pageArgs.length - 1] = PARALLEL_SCAN_PAGE_SIZE;
+
+            List<Row> rows = jacuzzi.findRows(typeOracle.getScanSql(lastId != null, rangePredicate), pageArgs);
+            if (rows.isEmpty()) {
+                return;
+            }
+
+            pageHandler.handle(range, rows);
+
+            if (rows.size() < PARALLEL_SCAN_PAGE_SIZE) {
+                return;
+            }
+
+            lastId = null;
+            for (Map.Entry<String, Object> entry : rows.get(rows.size() - 1).entrySet()) {
+                if (entry.getKey().equalsIgnoreCase(idColumn)) {
+                    lastId = entry.getValue();
+                    break;
+                }
+            }
+
+            if (lastId == null) {
+                throw new MappingException("Can't find id column " + idColumn + " in the row of " + getTypeClass() + '.');
+            }
+        }
+    }
+
+    private final class ReferenceTableSource implements ReferenceTable.Source {
+        private final String updateTimeColumn;
+
+        private ReferenceTableSource(String updateTimeColumn) {
+            this.updateTimeColumn = updateTimeColumn;
+        }
+
+        /**
+         * @param selectSql Query starting with {@link TypeOracle#getSelectSql()}.
+         * @return The query which also selects the row hash.
+         */
+        private String withRowHash(String selectSql) {
+            return typeOracle.getSelectWithRowHashSql(jacuzzi.getDialect())
+                    + selectSql.substring(typeOracle.getSelectSql().length());
+        }
+
+        @Override
+        public List<Row> findRows(Object watermark) {
+            return watermark == null
+                    ? jacuzzi.findRows(withRowHash(typeOracle.getSelectSql() + "WHERE TRUE"))
+                    : jacuzzi.findRows(withRowHash(typeOracle.getFindByColumnAtLeastSql(updateTimeColumn)), watermark);
+        }
+
+        @Override
+        public List<Row> findRowsByIds(Collection<Object> ids) {
+            List<Row> result = new ArrayList<>(ids.size());
+            for (List<Row> rows : findRowsByChunks(new ArrayList<>(ids),
+                    idCount -> withRowHash(typeOracle.getFindByIdsSql(idCount)))) {
+                result.addAll(rows);
+            }
+            return result;
+        }
 
-    private final Jacuzzi jacuzzi;
-    private final TypeOracle<T> typeOracle;
+        @Override
+        public List<Row> findRowsByIdRange(long from, long to) {
+            return jacuzzi.findRows(withRowHash(typeOracle.getSelectSql() + "WHERE "
+                    + typeOracle.getIdRangePredicate()), from, to - 1);
+        }
 
-    private Class<T> typeClass;
-    private final Lock typeClassLock = new ReentrantLock();
+        @Override
+        public long[] findIdBounds() {
+            Iterator<Object> iterator = jacuzzi.findFirstRow(typeOracle.getMinMaxIdSql() + "WHERE TRUE")
+                    .values().iterator();
+            Object min = TypeOracle.normalizeId(iterator.next());
+            Object max = TypeOracle.normalizeId(iterator.next());
 
-    private Class<K> keyClass;
-    private final Lock keyClassLock = new ReentrantLock();
+            if (min == null || max == null) {
+                return null;
+            }
 
-    protected Jacuzzi getJacuzzi() {
-        return jacuzzi;
-    }
+            if (!(min instanceof Long) || !(max instanceof Long)) {
+                throw new MappingException("Checksum reconciliation expects integral id of " + getTypeClass() + '.');
+            }
 
-    protected GenericDaoImpl(DataSource source) {
-        jacuzzi = Jacuzzi.getJacuzzi(source);
-        typeOracle = TypeOracle.getTypeOracle(getTypeClass());
-    }
+            return new long[]{(Long) min, (Long) max};
+        }
 
-    /**
-     * Call it to begin transaction around
-     * current connection in current thread.
-     *
-     * You should call commit() or rollback() at
-     * the end of transaction.
-     *
-     * Usually you should call commit or rollback
-     * in the current DAO method.
-     */
-    protected void beginTransaction() {
-        jacuzzi.beginTransaction();
-    }
+        @Override
+        public List<long[]> findIdBucketChecksums(long from, long to, long width) {
+            List<Row> rows = jacuzzi.findRows(typeOracle.getIdBucketChecksumSql(jacuzzi.getDialect()),
+                    from, width, from, to);
+
+            List<long[]> checksums = new ArrayList<>(rows.size());
+            for (Row row : rows) {
+                long[] checksum = new long[4];
+                int index = 0;
+                for (Object value : row.values()) {
+                    checksum[index++] = value == null ? 0 : ((Number) value).longValue();
+                }
+                checksums.add(checksum);
+            }
+            return checksums;
+        }
 
-    /**
-     * Commits current transaction.
-     */
-    protected void commit() {
-        jacuzzi.commit();
-    }
+        @Override
+        public long getRowHash(Row row) {
+            for (Map.Entry<String, Object> entry : row.entrySet()) {
+                if (TypeOracle.ROW_HASH_COLUMN.equalsIgnoreCase(entry.getKey())) {
+                    return entry.getValue() == null ? 0 : ((Number) entry.getValue()).longValue();
+                }
+            }
+            return 0;
+        }
 
-    /**
-     * Rollbacks current transaction.
-     */
-    protected void rollback() {
-        jacuzzi.rollback();
+        @Override
+        public Set<Object> findIds() {
+            List<Row> rows = jacuzzi.findRows(typeOracle.getSelectIdSql() + "WHERE TRUE");
+            Set<Object> ids = new HashSet<>(rows.size() * 2);
+            for (Row row : rows) {
+                ids.add(TypeOracle.normalizeId(row.values().iterator().next()));
+            }
+            return ids;
+        }
+
+        @Override
+        public Object getId(Row row) {
+            return TypeOracle.normalizeId(typeOracle.getRowValue(row, typeOracle.getIdColumn()));
+        }
+
+        @Override
+        public Object getWatermark(Row row) {
+            return typeOracle.getRowValue(row, updateTimeColumn);
+        }
+
+        @Override
+        public Object getColumnValue(Row row, String column) {
+            return typeOracle.getRowValue(row, column);
+        }
     }
 
-    /**
-     * @return Current time as Date.
-     */
-    protected Date findNow() {
-        return jacuzzi.findDate("SELECT CURRENT_TIMESTAMP");
+    private interface PageHandler {
+        void handle(int range, List<Row> rows);
     }
 
     @Override
-    public T find(K id) {
-        String idColumn = typeOracle.getIdColumn();
+    public List<T> findBy(String query, Object... args) {
+        ReferenceTable table = referenceTable;
+        if (table != null && args != null && args.length == 1 && !jacuzzi.isInTransaction()) {
+            Matcher matcher = COLUMN_EQUALS_PREDICATE_PATTERN.matcher(query);
+            if (matcher.matches()) {
+                Collection<Row> rows = table.getSnapshot().findByIndex(matcher.group(1), args[0]);
+                if (rows != null && isComparedByEquals(matcher.group(1), args[0])) {
+                    List<T> instances = new ArrayList<>(rows.size());
+                    for (Row row : rows) {
+                        instances.add(convertFromRow(row.copy()));
+                    }
+                    return rememberInstances(instances);
+                }
+            }
+        }
 
-        List<T> instances = findBy(Query.format("?f = ?", idColumn), id);
-        int instanceCount = instances.size();
+        String findQuery = findQueries.get(query);
 
-        if (instanceCount == 0) {
-            return null;
+        if (findQuery == null) {
+            findQuery = query;
+
+            if (!STARTS_WITH_SELECT_PATTERN.matcher(findQuery).matches()) {
+                if (!STARTS_WITH_WHERE_PATTERN.matcher(findQuery).matches()) {
+                    findQuery = "WHERE " + findQuery;
+                }
+
+                findQuery = typeOracle.getSelectSql() + findQuery;
+            }
+
+            memoize(findQueries, query, findQuery);
         }
 
-        if (instanceCount == 1) {
-            return instances.get(0);
+        List<Row> rows;
+        if (queryCaching) {
+            rows = jacuzzi.findRowsCached(findQuery, args);
+        } else if (sharedReads) {
+            rows = jacuzzi.findRowsShared(findQuery, args);
+        } else {
+            rows = jacuzzi.findRows(findQuery, args);
         }
 
-        throw new IllegalStateException("There are more than one row this the same id " +
-                id + " for " + getTypeClass() + '.');
+        return rememberInstances(convertFromRows(rows));
     }
 
+    /**
+     * Ids are read as primitive longs, so the id should be integral.
+     */
     @Override
-    public List<T> findAll() {
-        return findBy("TRUE");
-    }
+    public long[] findIds(String query, Object... args) {
+        String findIdsQuery = findIdsQueries.get(query);
 
-    @Override
-    public List<T> findBy(String query, Object... args) {
-        if (!STARTS_WITH_SELECT_PATTERN.matcher(query).matches()) {
-            if (!STARTS_WITH_WHERE_PATTERN.matcher(query).matches()) {
-                query = "WHERE " + query;
+        if (findIdsQuery == null) {
+            findIdsQuery = query;
+
+            if (!STARTS_WITH_SELECT_PATTERN.matcher(findIdsQuery).matches()) {
+                if (!STARTS_WITH_WHERE_PATTERN.matcher(findIdsQuery).matches()) {
+                    findIdsQuery = "WHERE " + findIdsQuery;
+                }
+
+                findIdsQuery = typeOracle.getSelectIdSql() + findIdsQuery;
             }
 
-            String table = typeOracle.getTableName();
-            query = "SELECT " + typeOracle.getFieldList(true, true, TypeOracle.OperationType.SELECT) + Query.format(" FROM ?t ", table) + query;
+            memoize(findIdsQueries, query, findIdsQuery);
         }
 
-        List<Row> rows = jacuzzi.findRows(query, args);
-
-        return convertFromRows(rows);
+        return jacuzzi.findLongs(findIdsQuery, args);
     }
 
     @Override
     public long findCountBy(String query, Object... args) {
-        if (!STARTS_WITH_WHERE_PATTERN.matcher(query).matches()) {
-            query = "WHERE " + query;
+        String findCountQuery = findCountQueries.get(query);
+
+        if (findCountQuery == null) {
+            findCountQuery = query;
+
+            if (!STARTS_WITH_WHERE_PATTERN.matcher(findCountQuery).matches()) {
+                findCountQuery = "WHERE " + findCountQuery;
+            }
+
+            findCountQuery = typeOracle.getCountSql() + findCountQuery;
+            memoize(findCountQueries, query, findCountQuery);
         }
 
-        String table = typeOracle.getTableName();
-        String idColumn = typeOracle.getIdColumn();
-        query = Query.format("SELECT COUNT(?f) FROM ?t ", idColumn, table) + query;
+        return jacuzzi.findLong(findCountQuery, args);
+    }
 
-        return jacuzzi.findLong(query, args);
+    private static void memoize(ConcurrentMap<String, String> memo, String query, String completeQuery) {
+        if (memo.size() >= MAX_MEMOIZED_QUERY_COUNT) {
+            memo.clear();
+        }
+        memo.put(query, completeQuery);
     }
 
     @SuppressWarnings("OverloadedVarargsMethod")
@@ -158,17 +1511,193 @@ public abstract class GenericDaoImpl<T, K> implements GenericDao<T, K> {
     }
 
     protected T convertFromRow(Row row) {
-        return typeOracle.convertFromRow(row);
+        T instance = typeOracle.convertFromRow(row);
+        if (changeTracking && instance != null) {
+            takeSnapshot(instance, typeOracle.getQuerySetArguments(instance));
+        }
+        return instance;
+    }
+
+    private void takeSnapshot(T instance, List<Object> values) {
+        Object[] snapshot = new Object[values.size()];
+
+        for (int i = 0; i < snapshot.length; i++) {
+            Object value = values.get(i);
+
+            // Mutable values are copied.
+            if (value instanceof Date) {
+                snapshot[i] = ((Date) value).clone();
+            } else if (value instanceof byte[]) {
+                snapshot[i] = ((byte[]) value).clone();
+            } else {
+                snapshot[i] = value;
+            }
+        }
+
+        // In a transaction the snapshot is replaced after commit, so after rollback the row
+        // is updated by all the columns instead of being considered unchanged.
+        if (jacuzzi.isInTransaction()) {
+            snapshots.remove(instance);
+            jacuzzi.runAfterCommit(() -> snapshots.put(instance, snapshot));
+        } else {
+            snapshots.put(instance, snapshot);
+        }
     }
 
+    /**
+     * Instances with reasonable ids are upserted by single statement if the dialect supports it
+     * and neither insert(object) nor update(object) is overridden, other instances are inserted.
+     */
     @Override
     public void save(T object) {
         if (object == null) {
             return;
         }
 
-        Long count = (Long) jacuzzi.findOne(Query.format("SELECT COUNT(1) FROM ?t WHERE ?f = ?",
-                typeOracle.getTableName(), typeOracle.getIdColumn()), typeOracle.getIdValue(object));
+        if (!typeOracle.hasReasonableId(object)) {
+            insert(object);
+            return;
+        }
+
+        String upsertSql = insertOrUpdateOverridden ? null : getUpsertSql(1);
+        if (upsertSql == null) {
+            saveByCount(object);
+            return;
+        }
+
+        checkUpsertCount(jacuzzi.execute(upsertSql, typeOracle.getValueListForInsert(true, object).toArray()), 1);
+        addSavedId(typeOracle.getIdValue(object));
+        rememberInstance(object);
+        rereadReferenceTableRows(Collections.singletonList(typeOracle.getIdValue(object)));
+
+        if (changeTracking) {
+            takeSnapshot(object, typeOracle.getQuerySetArguments(object));
+        }
+    }
+
+    /**
+     * Saves instances by multi-row upserts, see {@link #save(Object)}. Instances with the same id
+     * are saved once, the last one wins. If the upserts don't fit into single statement,
+     * they are run in a transaction (with READ_COMMITTED isolation) unless one is already open.
+     */
+    @Override
+    public void save(Collection<T> objects) {
+        if (objects == null || objects.isEmpty()) {
+            return;
+        }
+
+        List<T> upsertObjects = new ArrayList<>(objects.size());
+        List<T> insertObjects = new ArrayList<>();
+
+        for (T object : objects) {
+            if (object == null) {
+                continue;
+            }
+
+            if (typeOracle.hasReasonableId(object)) {
+                upsertObjects.add(object);
+            } else {
+                insertObjects.add(object);
+            }
+        }
+
+        if (!upsertObjects.isEmpty()) {
+            if (insertOrUpdateOverridden || getUpsertSql(1) == null) {
+                for (T object : upsertObjects) {
+                    saveByCount(object);
+                }
+            } else {
+                upsert(upsertObjects);
+            }
+        }
+
+        if (!insertObjects.isEmpty()) {
+            insert(insertObjects);
+        }
+    }
+
+    private void upsert(List<T> objects) {
+        // Single statement can't affect the same row twice (PostgreSQL ON CONFLICT, HSQLDB MERGE).
+        Map<Object, T> objectById = new LinkedHashMap<>();
+        for (T object : objects) {
+            objectById.put(TypeOracle.normalizeId(typeOracle.getIdValue(object)), object);
+        }
+        List<T> upsertObjects = new ArrayList<>(objectById.values());
+
+        int argumentCount = typeOracle.getValueListForInsert(true, upsertObjects.get(0)).size();
+        int batchSize = Math.max(1, Math.min(MAX_SAVE_ROW_COUNT, MAX_SAVE_ARGUMENT_COUNT / argumentCount));
+
+        boolean transaction = upsertObjects.size() > batchSize && !jacuzzi.isInTransaction();
+        if (transaction) {
+            jacuzzi.beginTransaction(Connection.TRANSACTION_READ_COMMITTED);
+        }
+
+        try {
+            for (int from = 0; from < upsertObjects.size(); from += batchSize) {
+                List<T> batch = upsertObjects.subList(from, Math.min(upsertObjects.size(), from + batchSize));
+                List<Object> arguments = new ArrayList<>(batch.size() * argumentCount);
+
+                for (T object : batch) {
+                    arguments.addAll(typeOracle.getValueListForInsert(true, object));
+                }
+
+                checkUpsertCount(jacuzzi.execute(getUpsertSql(batch.size()), arguments.toArray()), batch.size());
+
+                List<Object> ids = new ArrayList<>(batch.size());
+                for (T object : batch) {
+                    addSavedId(typeOracle.getIdValue(object));
+                    rememberInstance(object);
+                    ids.add(typeOracle.getIdValue(object));
+                }
+                rereadReferenceTableRows(ids);
+            }
+        } catch (RuntimeException | Error e) {
+            if (transaction) {
+                jacuzzi.rollback();
+            }
+            throw e;
+        }
+
+        if (transaction) {
+            jacuzzi.commit();
+        }
+
+        if (changeTracking) {
+            for (T object : upsertObjects) {
+                takeSnapshot(object, typeOracle.getQuerySetArguments(object));
+            }
+        }
+    }
+
+    /**
+     * @return Upsert statement for the rows or null if upserts are not applicable.
+     */
+    private String getUpsertSql(int rowCount) {
+        Dialect dialect = jacuzzi.getDialect();
+        if (dialect == Dialect.MYSQL && !jacuzzi.isMySqlUpsertApplicable(getTableName())) {
+            return null;
+        }
+
+        return typeOracle.getUpsertSql(dialect, rowCount);
+    }
+
+    /**
+     * Each row affects at most one row, MySQL reports 2 affected rows for each updated row.
+     */
+    private void checkUpsertCount(int affectedCount, int rowCount) {
+        int maxAffectedCount = jacuzzi.getDialect() == Dialect.MYSQL ? 2 * rowCount : rowCount;
+
+        if (affectedCount < 0 || affectedCount > maxAffectedCount) {
+            throw new DatabaseException("Unexpected number of rows affected by upsert into " + getTableName()
+                    + ": " + affectedCount + " for " + rowCount + " instance(s) of " + getTypeClass().getName() + '.');
+        }
+    }
+
+    /**
+     * Saves instance by two statements: finds the number of rows with the id and inserts or updates the row.
+     */
+    private void saveByCount(T object) {
+        Long count = (Long) jacuzzi.findOne(typeOracle.getCountByIdSql(), typeOracle.getIdValue(object));
 
         if (count == 0) {
             insert(object);
@@ -193,12 +1722,11 @@ public abstract class GenericDaoImpl<T, K> implements GenericDao<T, K> {
 
         boolean includeId = typeOracle.hasReasonableId(object);
 
-        StringBuilder query = new StringBuilder(Query.format("INSERT INTO ?t ", typeOracle.getTableName()));
-        query.append('(').append(typeOracle.getFieldList(includeId, false, TypeOracle.OperationType.INSERT)).append(") ");
-        query.append("VALUES (").append(typeOracle.getValuesPatternListForInsert(includeId, object)).append(')');
+        String query = typeOracle.getInsertSql(includeId)
+                + '(' + typeOracle.getValuesPatternListForInsert(includeId, object) + ')';
 
         Jacuzzi.InsertResult result =
-                jacuzzi.insert(query.toString(), typeOracle.getValueListForInsert(includeId, object).toArray());
+                jacuzzi.insert(query, typeOracle.getValueListForInsert(includeId, object).toArray());
 
         if (result.getCount() == 1) {
             Collection<Object> keys = result.getGeneratedKeysForOneRow().values();
@@ -207,6 +1735,13 @@ public abstract class GenericDaoImpl<T, K> implements GenericDao<T, K> {
                 Object key = keys.iterator().next();
                 typeOracle.setIdValue(object, key);
             }
+
+            if (changeTracking) {
+                takeSnapshot(object, typeOracle.getQuerySetArguments(object));
+            }
+            rememberInstance(object);
+            addInsertedId(typeOracle.getIdValue(object));
+            rereadReferenceTableRows(Collections.singletonList(typeOracle.getIdValue(object)));
         } else {
             throw new DatabaseException(
                     "Can't insert row into " + getTableName() + " for class " + getTypeClass().getName() + '.'
@@ -238,9 +1773,7 @@ public abstract class GenericDaoImpl<T, K> implements GenericDao<T, K> {
             }
         }
 
-        StringBuilder query = new StringBuilder(Query.format("INSERT INTO ?t ", typeOracle.getTableName()));
-        query.append('(').append(typeOracle.getFieldList(includeId, false, TypeOracle.OperationType.INSERT)).append(") ");
-        query.append("VALUES ");
+        StringBuilder query = new StringBuilder(typeOracle.getInsertSql(includeId));
 
         List<Object> values = new ArrayList<Object>();
 
@@ -294,6 +1827,17 @@ public abstract class GenericDaoImpl<T, K> implements GenericDao<T, K> {
                 }
             }
         }
+
+        List<Object> ids = new ArrayList<>(objects.size());
+        for (T object : objects) {
+            if (changeTracking) {
+                takeSnapshot(object, typeOracle.getQuerySetArguments(object));
+            }
+            rememberInstance(object);
+            addInsertedId(typeOracle.getIdValue(object));
+            ids.add(typeOracle.getIdValue(object));
+        }
+        rereadReferenceTableRows(ids);
     }
 
     private Object increaseKey(Object key) {
@@ -318,17 +1862,48 @@ public abstract class GenericDaoImpl<T, K> implements GenericDao<T, K> {
             return;
         }
 
-        StringBuilder query = new StringBuilder(Query.format("UPDATE ?t ", typeOracle.getTableName()));
-        query.append(typeOracle.getQuerySetSql());
-        query.append(Query.format(" WHERE ?f = ?", typeOracle.getIdColumn()));
+        List<Object> values = typeOracle.getQuerySetArguments(object);
+        Object[] snapshot = changeTracking ? snapshots.get(object) : null;
+
+        String query;
+        List<Object> arguments;
+
+        if (snapshot != null && snapshot.length == values.size() && snapshot.length <= Long.SIZE) {
+            long changeMask = 0;
+            arguments = new ArrayList<>(values.size() + 1);
+
+            for (int i = 0; i < snapshot.length; i++) {
+                if (!Objects.deepEquals(snapshot[i], values.get(i))) {
+                    changeMask |= 1L << i;
+                    arguments.add(values.get(i));
+                }
+            }
+
+            if (changeMask == 0) {
+                return;
+            }
+
+            query = typeOracle.getUpdateByIdSql(changeMask);
+        } else {
+            query = typeOracle.getUpdateByIdSql();
+            arguments = new ArrayList<>(values);
+        }
 
-        List<Object> arguments = typeOracle.getQuerySetArguments(object);
         arguments.add(typeOracle.getIdValue(object));
 
-        if (jacuzzi.execute(query.toString(), arguments.toArray()) != 1) {
+        int updatedCount = jacuzzi.execute(query, arguments.toArray());
+        invalidateCachedInstance(typeOracle.getIdValue(object));
+        rereadReferenceTableRows(Collections.singletonList(typeOracle.getIdValue(object)));
+
+        if (updatedCount != 1) {
             throw new DatabaseException("Can't update instance of class " + getTypeClass().getName()
                     + " with id " + typeOracle.getIdValue(object) + '.');
         }
+
+        if (changeTracking) {
+            takeSnapshot(object, values);
+        }
+        rememberInstance(object);
     }
 
     @SuppressWarnings({"unchecked"})
@@ -370,9 +1945,11 @@ public abstract class GenericDaoImpl<T, K> implements GenericDao<T, K> {
             return;
         }
 
-        String idColumn = typeOracle.getIdColumn();
-        String query = Query.format("DELETE FROM ?t WHERE ?f = ?", typeOracle.getTableName(), idColumn);
-        if (jacuzzi.execute(query, id) != 1) {
+        int deletedCount = jacuzzi.execute(typeOracle.getDeleteByIdSql(), id);
+        invalidateCachedInstance(id);
+        rereadReferenceTableRows(Collections.singletonList(id));
+
+        if (deletedCount != 1) {
             throw new DatabaseException("Can't delete instance of class " + getTypeClass().getName()
                     + " with id " + id + '.');
         }
@@ -393,10 +1970,7 @@ public abstract class GenericDaoImpl<T, K> implements GenericDao<T, K> {
             return;
         }
 
-        String idColumn = typeOracle.getIdColumn();
-        StringBuilder query = new StringBuilder(
-                Query.format("DELETE FROM ?t WHERE ?f IN (", typeOracle.getTableName(), idColumn)
-        );
+        StringBuilder query = new StringBuilder(typeOracle.getDeleteByIdsSql());
 
         Object[] idValues = new Object[ids.size()];
         int index = 0;
@@ -414,7 +1988,132 @@ public abstract class GenericDaoImpl<T, K> implements GenericDao<T, K> {
 
         query.append(')');
 
-        if (ids.size() != jacuzzi.execute(query.toString(), idValues)) {
+        int deletedCount = jacuzzi.execute(query.toString(), idValues);
+        for (K id : ids) {
+            invalidateCachedInstance(id);
+        }
+        rereadReferenceTableRows(ids);
+
+        if (ids.size() != deletedCount) {
+            throw new DatabaseException(
+                    "Can't delete multiple instances of class " + getTypeClass().getName() + '.'
+            );
+        }
+    }
+
+    private final class ScanIterator implements Iterator<T> {
+        private final int pageSize;
+        private final String predicate;
+        private final Object[] args;
+        private final boolean prefetch;
+
+        private List<T> page = Collections.emptyList();
+        private int index;
+        private Object lastId;
+        private boolean lastPage;
+        private Future<List<Row>> nextPage;
+
+        private ScanIterator(int pageSize, String predicate, Object[] args) {
+            this.pageSize = pageSize;
+            this.predicate = predicate;
+            this.args = args == null ? new Object[0] : args.clone();
+            this.prefetch = !jacuzzi.isConnectionAttached() && !ExecutorUtil.isWorkerThread();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (index >= page.size()) {
+                if (lastPage) {
+                    return false;
+                }
+                loadNextPage();
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.get(index++);
+        }
+
+        private void loadNextPage() {
+            List<Row> rows;
+            if (nextPage == null) {
+                rows = fetchPage(lastId);
+            } else {
+                try {
+                    rows = nextPage.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause() : new DatabaseException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DatabaseException("Interrupted while waiting for the next page.", e);
+                } finally {
+                    nextPage = null;
+                }
+            }
+
+            page = convertFromRows(rows);
+            index = 0;
+
+            if (page.size() < pageSize) {
+                lastPage = true;
+            } else {
+                lastId = typeOracle.getIdValue(page.get(page.size() - 1));
+                if (prefetch) {
+                    Object pageLastId = lastId;
+                    nextPage = ExecutorUtil.getExecutor().submit(() -> fetchPage(pageLastId));
+                }
+            }
+        }
+
+        private List<Row> fetchPage(Object afterId) {
+            Object[] pageArgs = new Object[args.length + (afterId == null ? 1 : 2)];
+            System.arraycopy(args, 0, pageArgs, 0, args.length);
+            if (afterId != null) {
+                pageArgs[args.length] = afterId;
+            }
+            pageArgs[pageArgs.length - 1] = pageSize;
+
+            return jacuzzi.findRows(typeOracle.getScanSql(afterId != null, predicate), pageArgs);
+        }
+    }
+
+    /**
+     * Deletes by chunked "WHERE id IN (...)" queries, the id should be integral.
+     */
+    @Override
+    public void deleteByIds(long... ids) {
+        if (ids == null || ids.length == 0) {
+            return;
+        }
+
+        int deletedCount = 0;
+        for (int from = 0; from < ids.length; from += MAX_FIND_BY_IDS_COUNT) {
+            int to = Math.min(ids.length, from + MAX_FIND_BY_IDS_COUNT);
+            StringBuilder query = new StringBuilder(typeOracle.getDeleteByIdsSql());
+            Object[] idValues = new Object[to - from];
+
+            for (int i = from; i < to; i++) {
+                query.append(i == from ? "?" : ",?");
+                idValues[i - from] = ids[i];
+            }
+
+            deletedCount += jacuzzi.execute(query.append(')').toString(), idValues);
+        }
+
+        List<Object> deletedIds = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            invalidateCachedInstance(id);
+            deletedIds.add(id);
+        }
+        rereadReferenceTableRows(deletedIds);
+
+        if (deletedCount != ids.length) {
             throw new DatabaseException(
                     "Can't delete multiple instances of class " + getTypeClass().getName() + '.'
             );
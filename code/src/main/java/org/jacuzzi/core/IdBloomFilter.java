@@ -0,0 +1,240 @@
+package org.jacuzzi.core;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Bloom filter over the ids of a table: if it says that there is no such id, there is no such row
+ * (unless the row was inserted bypassing {@link #add(Object)}). Integral ids greater than any id
+ * known to the filter always might be contained, so the rows inserted bypassing it with
+ * increasing ids are still found.
+ *
+ * The filter is built by streaming all ids in the background, until then every id might be contained.
+ * It is rebuilt after the rebuild interval or when it holds more ids than it was sized for,
+ * each rebuild sizes it for twice the number of known ids. Ids added during a rebuild go to both filters.
+ */
+final class IdBloomFilter {
+    private static final Logger logger = Logger.getLogger(IdBloomFilter.class);
+
+    private final long expectedIdCount;
+    private final double falsePositiveProbability;
+    private final long rebuildIntervalMillis;
+    private final IdScanner scanner;
+
+    private volatile Bits bits;
+    private volatile Bits building;
+    private volatile long rebuildTime;
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+
+    private final LongAdder checkCount = new LongAdder();
+    private final LongAdder negativeCount = new LongAdder();
+    private final LongAdder falsePositiveCount = new LongAdder();
+    private final AtomicLong rebuildCount = new AtomicLong();
+
+    IdBloomFilter(long expectedIdCount, double falsePositiveProbability, long rebuildIntervalMillis,
+                  IdScanner scanner) {
+        this.expectedIdCount = expectedIdCount;
+        this.falsePositiveProbability = falsePositiveProbability;
+        this.rebuildIntervalMillis = rebuildIntervalMillis;
+        this.scanner = scanner;
+    }
+
+    /**
+     * @param id Normalized id.
+     * @return {@code false} iff there is definitely no such id.
+     */
+    boolean mightContain(Object id) {
+        Bits currentBits = bits;
+
+        if (System.currentTimeMillis() >= rebuildTime
+                || (currentBits != null && currentBits.idCount.get() > currentBits.capacity)) {
+            rebuildInBackground();
+        }
+
+        if (currentBits == null) {
+            return true;
+        }
+
+        checkCount.increment();
+        if (currentBits.isAboveMaxId(id) || currentBits.mightContain(id)) {
+            return true;
+        }
+
+        negativeCount.increment();
+        return false;
+    }
+
+    /**
+     * @param id Normalized id of inserted row.
+     */
+    void add(Object id) {
+        // Reads building first: it is cleared only after the built filter is published.
+        Bits buildingBits = building;
+        Bits currentBits = bits;
+
+        if (buildingBits != null) {
+            buildingBits.add(id);
+        }
+        if (currentBits != null && currentBits != buildingBits) {
+            currentBits.add(id);
+        }
+    }
+
+    /**
+     * Call it if the filter said the id might be contained, but there is no such row.
+     */
+    void recordFalsePositive() {
+        falsePositiveCount.increment();
+    }
+
+    void rebuildInBackground() {
+        if (rebuilding.compareAndSet(false, true)) {
+            try {
+                ExecutorUtil.getBackgroundExecutor().submit(() -> {
+                    try {
+                        rebuild();
+                    } catch (RuntimeException e) {
+                        logger.warn("Can't build Bloom filter of ids.", e);
+                        rebuildTime = System.currentTimeMillis() + rebuildIntervalMillis;
+                    } finally {
+                        rebuilding.set(false);
+                    }
+                });
+            } catch (RuntimeException e) {
+                rebuilding.set(false);
+                logger.warn("Can't schedule build of Bloom filter of ids.", e);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the filter in the current thread.
+     */
+    synchronized void rebuild() {
+        Bits currentBits = bits;
+        long capacity = Math.max(expectedIdCount, currentBits == null ? 0 : 2 * currentBits.idCount.get());
+
+        Bits nextBits = new Bits(capacity, falsePositiveProbability);
+        building = nextBits;
+        try {
+            scanner.scan(nextBits::add);
+            bits = nextBits;
+        } finally {
+            building = null;
+        }
+
+        rebuildTime = System.currentTimeMillis() + rebuildIntervalMillis;
+        rebuildCount.incrementAndGet();
+    }
+
+    BloomFilterStatistics getStatistics() {
+        Bits currentBits = bits;
+        return new BloomFilterStatistics(checkCount.sum(), negativeCount.sum(), falsePositiveCount.sum(),
+                currentBits == null ? 0 : currentBits.idCount.get(), currentBits == null ? 0 : currentBits.bitCount,
+                rebuildCount.get());
+    }
+
+    /**
+     * Streams all ids of the table.
+     */
+    interface IdScanner {
+        /**
+         * @param consumer Accepts normalized ids.
+         */
+        void scan(Consumer<Object> consumer);
+    }
+
+    private static final class Bits {
+        private final long capacity;
+        private final long bitCount;
+        private final int hashCount;
+        private final AtomicLongArray words;
+        private final AtomicLong idCount = new AtomicLong();
+        private final AtomicLong maxId = new AtomicLong(Long.MIN_VALUE);
+
+        private Bits(long capacity, double falsePositiveProbability) {
+            this.capacity = Math.max(1, capacity);
+
+            long optimalBitCount = (long) Math.ceil(-this.capacity * Math.log(falsePositiveProbability)
+                    / (Math.log(2) * Math.log(2)));
+            int wordCount = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (optimalBitCount + 63) / 64));
+
+            bitCount = wordCount * 64L;
+            hashCount = (int) Math.max(1, Math.round((double) bitCount / this.capacity * Math.log(2)));
+            words = new AtomicLongArray(wordCount);
+        }
+
+        private void add(Object id) {
+            long hash = hash(id);
+            long step = mix(hash) | 1;
+            boolean changed = false;
+
+            for (int i = 0; i < hashCount; i++) {
+                long index = ((hash + i * step) & Long.MAX_VALUE) % bitCount;
+                int wordIndex = (int) (index >>> 6);
+                long mask = 1L << index;
+
+                long word;
+                do {
+                    word = words.get(wordIndex);
+                    if ((word & mask) != 0) {
+                        break;
+                    }
+                } while (!words.compareAndSet(wordIndex, word, word | mask));
+
+                if ((word & mask) == 0) {
+                    changed = true;
+                }
+            }
+
+            if (id instanceof Long) {
+                maxId.accumulateAndGet((Long) id, Math::max);
+            }
+            // Ids are added again on each save and invalidation, counting them would trigger
+            // rebuilds long before the filter is full. A new id whose bits are all set is missed,
+            // but it happens with the false positive probability only.
+            if (changed) {
+                idCount.incrementAndGet();
+            }
+        }
+
+        private boolean isAboveMaxId(Object id) {
+            return id instanceof Long && (Long) id > maxId.get();
+        }
+
+        private boolean mightContain(Object id) {
+            long hash = hash(id);
+            long step = mix(hash) | 1;
+
+            for (int i = 0; i < hashCount; i++) {
+                long index = ((hash + i * step) & Long.MAX_VALUE) % bitCount;
+                if ((words.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private static long hash(Object id) {
+            return mix(id instanceof Long ? (Long) id : id.hashCode());
+        }
+
+        /**
+         * Finalization mix of MurmurHash3.
+         */
+        private static long mix(long value) {
+            value ^= value >>> 33;
+            value *= 0xff51afd7ed558ccdL;
+            value ^= value >>> 33;
+            value *= 0xc4ceb9fe1a85ec53L;
+            value ^= value >>> 33;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package org.jacuzzi.core;
+
+import org.apache.log4j.Logger;
+
+import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Publishes invalidations of cached rows and tables to the other nodes and applies
+ * the invalidations received from them to the local caches (entity caches, off-heap entity caches,
+ * reference tables, Bloom filters of ids and the query cache).
+ *
+ * Invalidations are collected for the flush interval and sent in compact messages, the invalidations
+ * of the same row are coalesced, and the invalidation of the whole table absorbs the invalidations of its rows.
+ * The tables of the messages which can't be sent are invalidated as a whole by the next flush.
+ *
+ * Use {@link Jacuzzi#setInvalidationBus(InvalidationBus)} to bind the bus to the DataSource.
+ */
+public class InvalidationBus {
+    private static final Logger logger = Logger.getLogger(InvalidationBus.class);
+
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 1 + 8;
+
+    private static final byte LONG_ID = 0;
+    private static final byte STRING_ID = 1;
+
+    /**
+     * Tables with more invalidated rows in the batch are invalidated as a whole.
+     */
+    private static final int MAX_IDS_PER_TABLE = 1024;
+    private static final int MAX_STRING_ID_LENGTH = 1024;
+
+    private final InvalidationTransport transport;
+    private final long flushIntervalMillis;
+    private final long nodeId = ThreadLocalRandom.current().nextLong();
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * Pending invalidations by normalized table name, null means the whole table.
+     */
+    private Map<String, Set<Object>> pendingIds = new LinkedHashMap<>();
+    private boolean flushScheduled;
+
+    private volatile DataSource dataSource;
+
+    private final LongAdder publishedCount = new LongAdder();
+    private final LongAdder sentMessageCount = new LongAdder();
+    private final LongAdder receivedMessageCount = new LongAdder();
+
+    /**
+     * @param transport     Transport.
+     * @param flushInterval Invalidations are collected for this interval before sending.
+     * @param unit          Time unit of the flush interval.
+     */
+    public InvalidationBus(InvalidationTransport transport, long flushInterval, TimeUnit unit) {
+        if (transport.getMaxMessageSize() < HEADER_SIZE + 256) {
+            throw new IllegalArgumentException("Maximal message size of the transport is too small.");
+        }
+
+        this.transport = transport;
+        this.flushIntervalMillis = unit.toMillis(flushInterval);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jacuzzi-invalidation-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts receiving invalidations for the DataSource.
+     */
+    synchronized void bind(DataSource dataSource) {
+        if (this.dataSource == null) {
+            this.dataSource = dataSource;
+            transport.start(this::receive);
+        } else if (this.dataSource != dataSource) {
+            throw new IllegalStateException("Invalidation bus is already bound to another DataSource.");
+        }
+    }
+
+    /**
+     * Schedules sending the invalidation of the row.
+     *
+     * @param table Table name.
+     * @param id    Id of the row, null means the whole table.
+     */
+    void publish(String table, Object id) {
+        Object key = TypeOracle.normalizeId(id);
+        if (!(key instanceof Long) && !(key instanceof String && ((String) key).length() <= MAX_STRING_ID_LENGTH)) {
+            key = null;
+        }
+
+        String normalizedTable = QueryCache.normalizeTable(table);
+        publishedCount.increment();
+
+        synchronized (this) {
+            if (key == null) {
+                pendingIds.put(normalizedTable, null);
+            } else if (!pendingIds.containsKey(normalizedTable)) {
+                Set<Object> ids = new LinkedHashSet<>();
+                ids.add(key);
+                pendingIds.put(normalizedTable, ids);
+            } else {
+                Set<Object> ids = pendingIds.get(normalizedTable);
+                if (ids != null) {
+                    ids.add(key);
+                    if (ids.size() > MAX_IDS_PER_TABLE) {
+                        pendingIds.put(normalizedTable, null);
+                    }
+                }
+            }
+
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Schedules sending the invalidations of the whole tables.
+     *
+     * @param tables Normalized table names.
+     */
+    private synchronized void publishTables(Collection<String> tables) {
+        for (String table : tables) {
+            pendingIds.put(table, null);
+        }
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled && !flusher.isShutdown()) {
+            flushScheduled = true;
+            flusher.schedule(this::flush, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends pending invalidations now.
+     */
+    public void flush() {
+        Map<String, Set<Object>> ids;
+        synchronized (this) {
+            ids = pendingIds;
+            pendingIds = new LinkedHashMap<>();
+            flushScheduled = false;
+        }
+
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        List<Message> messages;
+        try {
+            messages = encode(ids);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Can't encode invalidation message.", e);
+            publishTables(ids.keySet());
+            return;
+        }
+
+        for (Message message : messages) {
+            try {
+                transport.send(message.bytes);
+                sentMessageCount.increment();
+            } catch (IOException | RuntimeException e) {
+                // Tables already invalidated as a whole are not retried, otherwise a broken transport
+                // would resend them on each flush.
+                List<String> retriedTables = new ArrayList<>();
+                for (String table : message.tables) {
+                    if (ids.get(table) != null) {
+                        retriedTables.add(table);
+                    }
+                }
+                if (retriedTables.isEmpty()) {
+                    logger.warn("Can't send invalidation message, dropping it.", e);
+                } else {
+                    logger.warn("Can't send invalidation message, tables " + retriedTables
+                            + " will be invalidated as a whole.", e);
+                    publishTables(retriedTables);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends pending invalidations and closes the transport.
+     */
+    public void close() {
+        flush();
+        flusher.shutdown();
+        transport.close();
+    }
+
+    /**
+     * @return Number of published invalidations, including coalesced ones.
+     */
+    public long getPublishedCount() {
+        return publishedCount.sum();
+    }
+
+    public long getSentMessageCount() {
+        return sentMessageCount.sum();
+    }
+
+    public long getReceivedMessageCount() {
+        return receivedMessageCount.sum();
+    }
+
+    private List<Message> encode(Map<String, Set<Object>> idsByTable) throws IOException {
+        int maxMessageSize = transport.getMaxMessageSize();
+        List<Message> messages = new ArrayList<>();
+
+        ByteArrayOutputStream message = new ByteArrayOutputStream(maxMessageSize);
+        List<String> tables = new ArrayList<>();
+        writeHeader(message);
+
+        for (Map.Entry<String, Set<Object>> entry : idsByTable.entrySet()) {
+            byte[] encodedEntry = encodeEntry(entry.getKey(), entry.getValue());
+            if (encodedEntry.length > maxMessageSize - HEADER_SIZE) {
+                encodedEntry = encodeEntry(entry.getKey(), null);
+            }
+
+            if (message.size() + encodedEntry.length > maxMessageSize) {
+                messages.add(new Message(message.toByteArray(), tables));
+                message.reset();
+                tables = new ArrayList<>();
+                writeHeader(message);
+            }
+            message.write(encodedEntry);
+            tables.add(entry.getKey());
+        }
+
+        messages.add(new Message(message.toByteArray(), tables));
+        return messages;
+    }
+
+    private void writeHeader(ByteArrayOutputStream message) throws IOException {
+        DataOutputStream output = new DataOutputStream(message);
+        output.writeByte(VERSION);
+        output.writeLong(nodeId);
+    }
+
+    /**
+     * Entry layout: table name, number of ids (-1 for the whole table), ids tagged with type.
+     */
+    private static byte[] encodeEntry(String table, Set<Object> ids) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        output.writeUTF(table);
+        if (ids == null) {
+            output.writeInt(-1);
+        } else {
+            output.writeInt(ids.size());
+            for (Object id : ids) {
+                if (id instanceof Long) {
+                    output.writeByte(LONG_ID);
+                    output.writeLong((Long) id);
+                } else {
+                    output.writeByte(STRING_ID);
+                    output.writeUTF((String) id);
+                }
+            }
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private void receive(byte[] message) {
+        DataSource currentDataSource = dataSource;
+
+        try {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(message));
+            if (input.readByte() != VERSION || input.readLong() == nodeId) {
+                return;
+            }
+            receivedMessageCount.increment();
+
+            while (input.available() > 0) {
+                String table = input.readUTF();
+                int idCount = input.readInt();
+
+                // Messages are not authenticated, so the count is checked before allocation.
+                // Each id takes at least 3 bytes (type and length of empty string).
+                if (idCount < -1 || idCount > MAX_IDS_PER_TABLE || idCount > input.available() / 3) {
+                    throw new IOException("Unexpected number of ids " + idCount + '.');
+                }
+
+                List<Object> ids = null;
+                if (idCount >= 0) {
+                    ids = new ArrayList<>(idCount);
+                    for (int i = 0; i < idCount; i++) {
+                        byte type = input.readByte();
+                        if (type == LONG_ID) {
+                            ids.add(input.readLong());
+                        } else if (type == STRING_ID) {
+                            ids.add(input.readUTF());
+                        } else {
+                            throw new IOException("Unexpected id type " + type + '.');
+                        }
+                    }
+                }
+
+                Jacuzzi.invalidateCaches(currentDataSource, table, ids);
+            }
+        } catch (IOException e) {
+            logger.warn("Can't decode invalidation message.", e);
+        }
+    }
+
+    private static final class Message {
+        private final byte[] bytes;
+        private final List<String> tables;
+
+        private Message(byte[] bytes, List<String> tables) {
+            this.bytes = bytes;
+            this.tables = tables;
+        }
+    }
+}
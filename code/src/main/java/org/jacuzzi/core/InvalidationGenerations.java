@@ -0,0 +1,40 @@
+package org.jacuzzi.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Invalidation generations of the caches, striped by key: take the generation of the key
+ * before loading its value and store the value only if the generation hasn't changed.
+ * Invalidation of a key blocks the concurrent loads of the keys of its stripe only,
+ * invalidation of all keys blocks all of them.
+ */
+final class InvalidationGenerations {
+    private static final int STRIPE_COUNT = 1024;
+
+    private final AtomicLong allGeneration = new AtomicLong();
+    private final AtomicLongArray stripeGenerations = new AtomicLongArray(STRIPE_COUNT);
+
+    /**
+     * @param hash Hash code of the key.
+     * @return Generation of the key, both counters only grow, so their sum changes on any invalidation.
+     */
+    long get(int hash) {
+        return allGeneration.get() + stripeGenerations.get(getStripe(hash));
+    }
+
+    /**
+     * @param hash Hash code of the invalidated key.
+     */
+    void invalidate(int hash) {
+        stripeGenerations.incrementAndGet(getStripe(hash));
+    }
+
+    void invalidateAll() {
+        allGeneration.incrementAndGet();
+    }
+
+    private static int getStripe(int hash) {
+        return RowRollIndex.hash(hash) & (STRIPE_COUNT - 1);
+    }
+}
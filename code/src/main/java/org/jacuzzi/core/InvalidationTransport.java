@@ -0,0 +1,36 @@
+package org.jacuzzi.core;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Delivers invalidation messages of {@link InvalidationBus} to the other nodes.
+ * Delivery may be unreliable, lost messages make caches stale until their entries expire.
+ */
+public interface InvalidationTransport {
+    /**
+     * Starts receiving messages sent by the other nodes, it is called once.
+     *
+     * @param receiver Receives messages, it may be called concurrently.
+     */
+    void start(Consumer<byte[]> receiver);
+
+    /**
+     * Transports with several peers should handle failures of single peers themselves:
+     * the exception makes the bus invalidate the tables of the message as a whole on all the nodes.
+     *
+     * @param message Message to deliver to all other nodes.
+     * @throws IOException If the message can't be sent.
+     */
+    void send(byte[] message) throws IOException;
+
+    /**
+     * @return Maximal size of the message in bytes.
+     */
+    int getMaxMessageSize();
+
+    /**
+     * Stops receiving and releases resources.
+     */
+    void close();
+}
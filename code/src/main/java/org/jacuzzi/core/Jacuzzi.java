@@ -6,11 +6,16 @@ import org.apache.log4j.Logger;
 import javax.sql.DataSource;
 import java.lang.reflect.Constructor;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * @author Mike Mirzayanov
@@ -37,6 +42,22 @@ public class Jacuzzi {
      */
     private final Map<Class<?>, GenericDao<?, ?>> daoCache = new HashMap<>();
 
+    /**
+     * Detected dialects, Jacuzzi instances are thread-local so it is shared.
+     */
+    private static final Map<DataSource, Dialect> dialects = new ConcurrentHashMap<>();
+
+    /**
+     * Applicability of MySQL upserts by DataSource and table, see {@link #isMySqlUpsertApplicable(String)}.
+     */
+    private static final Map<DataSource, Map<String, Boolean>> mySqlUpsertApplicability = new ConcurrentHashMap<>();
+    private static final Pattern MYSQL_VERSION_PATTERN = Pattern.compile("^(\\d+)\\.(\\d+)\\.(\\d+).*");
+
+    private static final Map<DataSource, SingleFlight> singleFlights = new ConcurrentHashMap<>();
+
+    private static final Map<DataSource, QueryCache> queryCaches = new ConcurrentHashMap<>();
+    private static final Map<DataSource, InvalidationBus> invalidationBuses = new ConcurrentHashMap<>();
+
     /**
      * Creates jacuzzi instance by {@code DataSource}.
      *
@@ -70,6 +91,14 @@ public class Jacuzzi {
         dataSourceUtil.detachConnectionOrThrowException(dataSource);
     }
 
+    /**
+     * @return {@code true} iff connection is attached to the current thread
+     *         (including the case of transaction).
+     */
+    public boolean isConnectionAttached() {
+        return dataSourceUtil.isConnectionAttached(dataSource);
+    }
+
     /**
      * Call it to begin transaction around
      * current connection in current thread.
@@ -90,6 +119,8 @@ public class Jacuzzi {
         } catch (SQLException e) {
             throw new DatabaseException("Engine doesn't support transactions or connection is closed.", e);
         }
+
+        dataSourceUtil.setInTransaction(dataSource, true);
     }
 
     /**
@@ -108,10 +139,12 @@ public class Jacuzzi {
      */
     public void commit() {
         Connection connection = dataSourceUtil.getAttachedConnection(dataSource);
+        List<Runnable> commitListeners = dataSourceUtil.takeCommitListeners(dataSource);
 
         try {
             connection.commit();
         } catch (SQLException e) {
+            dataSourceUtil.clearIdentityMaps(dataSource);
             throw new DatabaseException("Engine doesn't support transactions or connection is closed.", e);
         } finally {
             try {
@@ -119,8 +152,13 @@ public class Jacuzzi {
             } catch (SQLException ignored) {
                 // No operations.
             }
+            dataSourceUtil.setInTransaction(dataSource, false);
             detachConnection();
         }
+
+        for (Runnable commitListener : commitListeners) {
+            commitListener.run();
+        }
     }
 
     /**
@@ -139,10 +177,41 @@ public class Jacuzzi {
             } catch (SQLException ignored) {
                 // No operations.
             }
+            dataSourceUtil.clearIdentityMaps(dataSource);
+            dataSourceUtil.setInTransaction(dataSource, false);
             detachConnection();
         }
     }
 
+    /**
+     * @return {@code true} iff transaction has been started in the current thread.
+     */
+    public boolean isInTransaction() {
+        return dataSourceUtil.isInTransaction(dataSource);
+    }
+
+    /**
+     * @param clazz Entity class.
+     * @return Identity map of the entity class in the attached connection scope or null if it is not attached.
+     */
+    Map<Object, Object> getIdentityMap(Class<?> clazz) {
+        return dataSourceUtil.getIdentityMap(dataSource, clazz);
+    }
+
+    /**
+     * Calls the listener after successful commit of the current transaction
+     * or immediately if there is no transaction. Listeners are dropped on rollback.
+     *
+     * @param listener Listener to be called after commit.
+     */
+    public void runAfterCommit(Runnable listener) {
+        if (dataSourceUtil.isInTransaction(dataSource)) {
+            dataSourceUtil.addCommitListener(dataSource, listener);
+        } else {
+            listener.run();
+        }
+    }
+
     /**
      * Executes query and returns the affected rows count.
      * Use UPDATE, DELETE, INSERT queries here.
@@ -157,6 +226,32 @@ public class Jacuzzi {
         } catch (SQLException e) {
             System.err.println(query);
             throw new DatabaseException(e);
+        } finally {
+            invalidateQueryCacheByWrite(query);
+        }
+    }
+
+    /**
+     * Executes query which writes the declared tables and returns the affected rows count.
+     * Unlike {@link #execute(String, Object...)}, it invalidates all cached data of the tables:
+     * the query cache and the caches of the DAOs mapped to the tables, and publishes the invalidation
+     * to the invalidation bus (see {@link #setInvalidationBus(InvalidationBus)}) after commit.
+     *
+     * @param tables Tables written by the query.
+     * @param query  Raw SQL query.
+     * @param args   Arguments to replace "?" jokers in {@code query}.
+     * @return The number of affected rows.
+     */
+    public int execute(Collection<String> tables, String query, Object... args) {
+        try {
+            return execute(query, args);
+        } finally {
+            for (String table : tables) {
+                String normalizedTable = QueryCache.normalizeTable(table);
+                invalidateCaches(dataSource, normalizedTable, null);
+                runAfterCommit(() -> invalidateCaches(dataSource, normalizedTable, null));
+                publishInvalidation(normalizedTable, null);
+            }
         }
     }
 
@@ -186,6 +281,8 @@ public class Jacuzzi {
         } catch (SQLException e) {
             System.err.println(query);
             throw new DatabaseException(e);
+        } finally {
+            invalidateQueryCacheByWrite(query);
         }
     }
 
@@ -208,6 +305,8 @@ public class Jacuzzi {
         } catch (SQLException e) {
             System.err.println(query);
             throw new DatabaseException(e);
+        } finally {
+            invalidateQueryCacheByWrite(query);
         }
     }
 
@@ -245,6 +344,134 @@ public class Jacuzzi {
         }
     }
 
+    /**
+     * Executes read query in single-flight mode: identical queries (equal SQL and arguments)
+     * issued by findRowsShared and findRowRollShared at the same time share single execution,
+     * each caller gets its own copy of the result. Queries in attached connections (including transactions)
+     * are always executed.
+     *
+     * Use it only for deterministic reads without side effects (no sequences, no locking reads like
+     * SELECT ... FOR UPDATE). Read-your-writes is lost: the query may join the execution which has been
+     * started before the preceding write of the caller, so it may not see that write.
+     *
+     * @param query Raw SQL query.
+     * @param args  Arguments to replace "?" jokers in {@code query}.
+     * @return Selected rows.
+     */
+    public List<Row> findRowsShared(String query, Object... args) {
+        SingleFlight singleFlight = getApplicableSingleFlight();
+        if (singleFlight == null) {
+            return findRows(query, args);
+        }
+
+        return singleFlight.execute(query, args, () -> findRows(query, args), Row::copy);
+    }
+
+    /**
+     * The same as {@link #findRowsShared(String, Object...)}, but returns RowRoll.
+     *
+     * @param query Raw SQL query.
+     * @param args  Arguments to replace "?" jokers in {@code query}.
+     * @return Selected rows as RowRoll.
+     */
+    public RowRoll findRowRollShared(String query, Object... args) {
+        SingleFlight singleFlight = getApplicableSingleFlight();
+        if (singleFlight == null) {
+            return findRowRoll(query, args);
+        }
+
+        return singleFlight.execute(query, args, () -> findRowRoll(query, args), RowRoll::copy);
+    }
+
+    /**
+     * Executes query or returns its cached result if the query cache is enabled
+     * (see {@link #setQueryCache(CacheSettings)}). Tables read by the query are parsed
+     * from its FROM and JOIN clauses. Transactions don't use the cache.
+     *
+     * @param query Raw SQL query.
+     * @param args  Arguments to replace "?" jokers in {@code query}.
+     * @return Selected rows.
+     */
+    public List<Row> findRowsCached(String query, Object... args) {
+        QueryCache queryCache = getApplicableQueryCache();
+        if (queryCache == null) {
+            return findRows(query, args);
+        }
+
+        RowRoll rowRoll = queryCache.get(null, query, args, () -> findRowRoll(query, args)).copy();
+        List<Row> rows = new ArrayList<>(rowRoll.size());
+        for (int i = 0; i < rowRoll.size(); i++) {
+            rows.add(rowRoll.getRow(i));
+        }
+        return rows;
+    }
+
+    /**
+     * The same as {@link #findRowsCached(String, Object...)}, but returns RowRoll.
+     *
+     * @param query Raw SQL query.
+     * @param args  Arguments to replace "?" jokers in {@code query}.
+     * @return Selected rows as RowRoll.
+     */
+    public RowRoll findRowRollCached(String query, Object... args) {
+        return findRowRollCached(null, query, args);
+    }
+
+    /**
+     * The same as {@link #findRowsCached(String, Object...)}, but returns RowRoll
+     * and uses declared tables instead of parsing them.
+     *
+     * @param tables Tables read by the query, null to parse them from the query.
+     * @param query  Raw SQL query.
+     * @param args   Arguments to replace "?" jokers in {@code query}.
+     * @return Selected rows as RowRoll.
+     */
+    public RowRoll findRowRollCached(Collection<String> tables, String query, Object... args) {
+        QueryCache queryCache = getApplicableQueryCache();
+        if (queryCache == null) {
+            return findRowRoll(query, args);
+        }
+
+        return queryCache.get(tables, query, args, () -> findRowRoll(query, args)).copy();
+    }
+
+    /**
+     * Executes query and passes selected rows one by one to the handler without
+     * creating {@link Row} instances. The handler gets the same cursor instance for each row.
+     * Outside of the attached connection rows are fetched from the database by portions, so the result
+     * doesn't have to fit in memory. On the attached connection MySQL needs useCursorFetch=true
+     * in the URL for that and PostgreSQL needs a transaction, otherwise the result is read at once.
+     * Use SELECT queries here.
+     *
+     * @param query   Raw SQL query.
+     * @param handler Handler to be called for each row.
+     * @param args    Arguments to replace "?" jokers in {@code query}.
+     * @return The number of handled rows.
+     */
+    public long scan(String query, RowCursorHandler handler, Object... args) {
+        try {
+            return PreparedStatementUtil.scan(dataSource, dataSourceUtil, getDialect(), query, args, handler);
+        } catch (SQLException e) {
+            System.err.println(query);
+            throw new DatabaseException(e);
+        }
+    }
+
+    /**
+     * Executes query and returns values of the first column as longs, SQL NULL is returned as 0.
+     * Values are read by ResultSet.getLong(), so no objects are created per row.
+     * Use something like "SELECT id FROM SomeTable".
+     *
+     * @param query Raw SQL query.
+     * @param args  Arguments to replace "?" jokers in {@code query}.
+     * @return Values of the first column.
+     */
+    public long[] findLongs(String query, Object... args) {
+        LongsCollector collector = new LongsCollector();
+        scan(query, collector, args);
+        return collector.toArray();
+    }
+
     /**
      * Executes query and returns the first selected row.
      * Use SELECT or SHOW queries here.
@@ -380,6 +607,262 @@ public class Jacuzzi {
         return TypeOracle.convertTo(instance, clazz);
     }
 
+    /**
+     * Equal strings in the same column of the query result are replaced by a single instance
+     * (unless -Djacuzzi.deduplicateStrings=false). The deduplication switches itself off for
+     * high-cardinality columns.
+     *
+     * @return Approximate number of heap bytes saved by the string deduplication since the start.
+     */
+    public static long getStringDeduplicationSavedBytes() {
+        return StringDeduplicator.getSavedBytes();
+    }
+
+    /**
+     * Detects dialect by the database metadata on the first call,
+     * -Djacuzzi.dialect=&lt;name&gt; overrides it.
+     *
+     * @return SQL dialect of the database.
+     */
+    @SuppressWarnings("AccessOfSystemProperties")
+    public Dialect getDialect() {
+        Dialect dialect = dialects.get(dataSource);
+
+        if (dialect == null) {
+            dialect = Dialect.valueOfName(System.getProperty("jacuzzi.dialect"));
+            if (dialect == null) {
+                Connection connection = dataSourceUtil.getConnection(dataSource);
+                try {
+                    dialect = Dialect.of(connection.getMetaData().getDatabaseProductName());
+                } catch (SQLException e) {
+                    throw new DatabaseException("Can't get database metadata.", e);
+                } finally {
+                    dataSourceUtil.closeConnection(dataSource, connection);
+                }
+            }
+            dialects.put(dataSource, dialect);
+        }
+
+        return dialect;
+    }
+
+    /**
+     * MySQL upsert (INSERT ... AS new ON DUPLICATE KEY UPDATE) updates the row which collides
+     * by any unique key, so it is applicable only if the primary key is the only unique key of the table.
+     * Also the row alias requires MySQL 8.0.19+ (MariaDB doesn't support it).
+     * The database metadata is read once per table.
+     *
+     * @param table Table name.
+     * @return {@code true} iff MySQL upserts are applicable to the table.
+     */
+    boolean isMySqlUpsertApplicable(String table) {
+        Map<String, Boolean> applicability = mySqlUpsertApplicability.computeIfAbsent(
+                dataSource, key -> new ConcurrentHashMap<>()
+        );
+
+        Boolean result = applicability.get(table);
+        if (result == null) {
+            Connection connection = dataSourceUtil.getConnection(dataSource);
+            try {
+                result = isMySqlUpsertApplicable(connection, table);
+            } catch (SQLException e) {
+                logger.warn("Can't get unique keys of " + table + ", upserts are not used.", e);
+                result = false;
+            } finally {
+                dataSourceUtil.closeConnection(dataSource, connection);
+            }
+            applicability.put(table, result);
+        }
+
+        return result;
+    }
+
+    private static boolean isMySqlUpsertApplicable(Connection connection, String table) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+
+        String version = metaData.getDatabaseProductVersion();
+        Matcher matcher = version == null ? null : MYSQL_VERSION_PATTERN.matcher(version);
+        if (matcher == null || !matcher.matches() || version.toLowerCase(Locale.ENGLISH).contains("mariadb")
+                || metaData.getDatabaseProductName().toLowerCase(Locale.ENGLISH).contains("mariadb")) {
+            return false;
+        }
+
+        int major = Integer.parseInt(matcher.group(1));
+        int minor = Integer.parseInt(matcher.group(2));
+        int patch = Integer.parseInt(matcher.group(3));
+        if (major < 8 || major == 8 && minor == 0 && patch < 19) {
+            return false;
+        }
+
+        Set<String> uniqueIndexNames = new HashSet<>();
+        try (ResultSet resultSet = metaData.getIndexInfo(connection.getCatalog(), null, table, true, true)) {
+            while (resultSet.next()) {
+                String indexName = resultSet.getString("INDEX_NAME");
+                if (indexName != null) {
+                    uniqueIndexNames.add(indexName);
+                }
+            }
+        }
+
+        // MySQL names the primary key index PRIMARY.
+        return uniqueIndexNames.size() == 1 && uniqueIndexNames.contains("PRIMARY");
+    }
+
+    /**
+     * @return Number of queries executed in single-flight mode for the DataSource.
+     */
+    public long getSingleFlightExecutionCount() {
+        SingleFlight singleFlight = singleFlights.get(dataSource);
+        return singleFlight == null ? 0 : singleFlight.getExecutionCount();
+    }
+
+    /**
+     * @return Number of queries not executed in single-flight mode for the DataSource,
+     *         because identical query has been in flight.
+     */
+    public long getSingleFlightSuppressedExecutionCount() {
+        SingleFlight singleFlight = singleFlights.get(dataSource);
+        return singleFlight == null ? 0 : singleFlight.getSuppressedExecutionCount();
+    }
+
+    /**
+     * Enables or disables the query result cache for the DataSource (in all threads),
+     * it is used by findRowsCached and findRowRollCached.
+     *
+     * Cached results are invalidated by writes to the tables they read: execute, insert and
+     * multipleInsert parse written tables from INSERT, REPLACE, MERGE, UPDATE and DELETE queries,
+     * other queries invalidate the whole cache. In a transaction the results are invalidated
+     * again after commit. Writes by other processes are not tracked, the time to live limits
+     * staleness in this case, or use {@link #invalidateQueryCache(String...)}.
+     *
+     * @param settings Cache settings or null to disable the cache.
+     */
+    public void setQueryCache(CacheSettings settings) {
+        if (settings == null) {
+            queryCaches.remove(dataSource);
+        } else {
+            queryCaches.put(dataSource, new QueryCache(settings));
+        }
+    }
+
+    /**
+     * @return Statistics of the query cache or null if it is disabled.
+     */
+    public CacheStatistics getQueryCacheStatistics() {
+        QueryCache queryCache = queryCaches.get(dataSource);
+        return queryCache == null ? null : queryCache.getStatistics();
+    }
+
+    /**
+     * Invalidates cached results which read the tables.
+     *
+     * @param tables Tables, if none given then all results are invalidated.
+     */
+    public void invalidateQueryCache(String... tables) {
+        QueryCache queryCache = queryCaches.get(dataSource);
+        if (queryCache != null) {
+            queryCache.invalidateTables(tables == null || tables.length == 0
+                    ? null : QueryCache.normalizeTables(Arrays.asList(tables)));
+        }
+    }
+
+    /**
+     * Binds the bus to the DataSource (in all threads): writes through DAOs and
+     * {@link #execute(Collection, String, Object...)} publish invalidations to the other nodes after commit,
+     * and the invalidations received from them are applied to the local caches.
+     *
+     * @param bus Invalidation bus or null to stop publishing, it can be bound to the single DataSource.
+     * @throws IllegalStateException If the bus is bound to another DataSource.
+     */
+    public void setInvalidationBus(InvalidationBus bus) {
+        if (bus == null) {
+            invalidationBuses.remove(dataSource);
+        } else {
+            bus.bind(dataSource);
+            invalidationBuses.put(dataSource, bus);
+        }
+    }
+
+    /**
+     * Forgets everything shared by the Jacuzzi instances and the DAOs of the DataSource: the detected dialect,
+     * the query cache, the entity caches, reference tables, Bloom filters and the invalidation bus
+     * (it is closed). Call it when the DataSource is closed, its DAOs should not be used after that.
+     * Jacuzzi instances of the DataSource cached by other threads are released with the threads.
+     *
+     * @param dataSource DataSource.
+     */
+    public static void release(DataSource dataSource) {
+        dialects.remove(dataSource);
+        mySqlUpsertApplicability.remove(dataSource);
+        singleFlights.remove(dataSource);
+        queryCaches.remove(dataSource);
+
+        InvalidationBus bus = invalidationBuses.remove(dataSource);
+        if (bus != null) {
+            bus.close();
+        }
+
+        GenericDaoImpl.release(dataSource);
+
+        Map<DataSource, Jacuzzi> cache = getThreadCache();
+        synchronized (cache) {
+            cache.remove(dataSource);
+        }
+    }
+
+    /**
+     * Publishes the invalidation to the bus after commit, does nothing if there is no bus.
+     *
+     * @param table Table name.
+     * @param id    Id of the row, null means the whole table.
+     */
+    void publishInvalidation(String table, Object id) {
+        InvalidationBus bus = invalidationBuses.get(dataSource);
+        if (bus != null) {
+            runAfterCommit(() -> bus.publish(table, id));
+        }
+    }
+
+    /**
+     * Invalidates the query cache and the caches of the DAOs mapped to the table.
+     *
+     * @param dataSource DataSource.
+     * @param table      Normalized table name.
+     * @param ids        Ids of the rows, null means the whole table.
+     */
+    static void invalidateCaches(DataSource dataSource, String table, Collection<Object> ids) {
+        QueryCache queryCache = queryCaches.get(dataSource);
+        if (queryCache != null) {
+            queryCache.invalidateTables(new String[]{table});
+        }
+
+        GenericDaoImpl.invalidateCaches(dataSource, table, ids);
+    }
+
+    private void invalidateQueryCacheByWrite(String query) {
+        QueryCache queryCache = queryCaches.get(dataSource);
+        if (queryCache != null) {
+            String[] tables = queryCache.getWriteTables(query);
+            queryCache.invalidateTables(tables);
+
+            if (dataSourceUtil.isInTransaction(dataSource)) {
+                dataSourceUtil.addCommitListener(dataSource, () -> queryCache.invalidateTables(tables));
+            }
+        }
+    }
+
+    private QueryCache getApplicableQueryCache() {
+        return dataSourceUtil.isInTransaction(dataSource) ? null : queryCaches.get(dataSource);
+    }
+
+    private SingleFlight getApplicableSingleFlight() {
+        if (dataSourceUtil.isConnectionAttached(dataSource)) {
+            return null;
+        }
+
+        return singleFlights.computeIfAbsent(dataSource, key -> new SingleFlight());
+    }
+
     // Contains helper routine.
 
     /**
@@ -423,6 +906,23 @@ public class Jacuzzi {
         }
     }
 
+    private static final class LongsCollector implements RowCursorHandler {
+        private long[] values = new long[16];
+        private int size;
+
+        @Override
+        public void handle(RowCursor cursor) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = cursor.getLong(0);
+        }
+
+        private long[] toArray() {
+            return size == values.length ? values : Arrays.copyOf(values, size);
+        }
+    }
+
     public static class InsertResult {
         private int count;
         private final List<Row> generatedKeys;
@@ -0,0 +1,178 @@
+package org.jacuzzi.core;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable map which shares the large base map with the previous versions: the changes are kept
+ * in the small overlay, and the overlay is merged into a new base when it grows over about
+ * the square root of the base size. So a change costs O(sqrt(n)) amortized instead of copying the whole map.
+ *
+ * Keys are iterated in the order they were added, changed values keep their positions. Null values are not supported.
+ *
+ * @param <K> Key type.
+ * @param <V> Value type.
+ */
+final class LayeredMap<K, V> extends AbstractMap<K, V> {
+    private static final int MIN_MAX_OVERLAY_SIZE = 64;
+
+    private static final Object REMOVED = new Object();
+
+    private final Map<K, V> base;
+    private final Map<K, Object> overlay;
+    private final int size;
+    private Set<Entry<K, V>> entrySet;
+
+    /**
+     * @param base Map which is not modified after the call.
+     */
+    LayeredMap(Map<K, V> base) {
+        this(base, new LinkedHashMap<>(), base.size());
+    }
+
+    private LayeredMap(Map<K, V> base, Map<K, Object> overlay, int size) {
+        this.base = base;
+        this.overlay = overlay;
+        this.size = size;
+    }
+
+    /**
+     * @param changes New values by keys, null value means removal.
+     * @return Map with the changes applied, this one is not changed.
+     */
+    LayeredMap<K, V> with(Map<K, V> changes) {
+        if (changes.isEmpty()) {
+            return this;
+        }
+
+        Map<K, Object> newOverlay = new LinkedHashMap<>(overlay);
+        int newSize = size;
+
+        for (Entry<K, V> change : changes.entrySet()) {
+            K key = change.getKey();
+            boolean present = containsKey(key);
+
+            if (change.getValue() == null) {
+                if (present) {
+                    --newSize;
+                }
+                if (base.containsKey(key)) {
+                    newOverlay.put(key, REMOVED);
+                } else {
+                    newOverlay.remove(key);
+                }
+            } else {
+                if (!present) {
+                    ++newSize;
+                }
+                newOverlay.put(key, change.getValue());
+            }
+        }
+
+        if (newOverlay.size() <= MIN_MAX_OVERLAY_SIZE + (int) Math.sqrt(base.size())) {
+            return new LayeredMap<>(base, newOverlay, newSize);
+        }
+
+        Map<K, V> newBase = new LinkedHashMap<>(base);
+        for (Entry<K, Object> entry : newOverlay.entrySet()) {
+            if (entry.getValue() == REMOVED) {
+                newBase.remove(entry.getKey());
+            } else {
+                newBase.put(entry.getKey(), cast(entry.getValue()));
+            }
+        }
+        return new LayeredMap<>(newBase);
+    }
+
+    @Override
+    public V get(Object key) {
+        Object value = overlay.get(key);
+        if (value != null) {
+            return value == REMOVED ? null : cast(value);
+        }
+        return base.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        Object value = overlay.get(key);
+        if (value != null) {
+            return value != REMOVED;
+        }
+        return base.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Entry<K, V>>() {
+                @Override
+                public Iterator<Entry<K, V>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V cast(Object value) {
+        return (V) value;
+    }
+
+    /**
+     * Iterates over the base with the overlay values, then over the keys added by the overlay.
+     */
+    private final class EntryIterator implements Iterator<Entry<K, V>> {
+        private final Iterator<Entry<K, V>> baseIterator = base.entrySet().iterator();
+        private final Iterator<Entry<K, Object>> overlayIterator = overlay.entrySet().iterator();
+        private Entry<K, V> next;
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && baseIterator.hasNext()) {
+                Entry<K, V> entry = baseIterator.next();
+                Object value = overlay.get(entry.getKey());
+                if (value == null) {
+                    next = new SimpleImmutableEntry<>(entry);
+                } else if (value != REMOVED) {
+                    next = new SimpleImmutableEntry<>(entry.getKey(), cast(value));
+                }
+            }
+
+            while (next == null && overlayIterator.hasNext()) {
+                Entry<K, Object> entry = overlayIterator.next();
+                if (entry.getValue() != REMOVED && !base.containsKey(entry.getKey())) {
+                    next = new SimpleImmutableEntry<>(entry.getKey(), cast(entry.getValue()));
+                }
+            }
+
+            return next != null;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry<K, V> result = next;
+            next = null;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.jacuzzi.core;
+
+import java.util.Arrays;
+
+/**
+ * Map from primitive long keys to non-null values. It uses open addressing with linear probing,
+ * so neither put nor get box the keys.
+ *
+ * It is not thread-safe.
+ *
+ * @param <V> Value type.
+ */
+public class LongObjectMap<V> {
+    private static final int MIN_CAPACITY = 8;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+
+    public LongObjectMap() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    /**
+     * @param expectedSize Expected number of entries.
+     */
+    public LongObjectMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+
+        keys = new long[capacity];
+        values = new Object[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return values[findPosition(keys, values, key)] != null;
+    }
+
+    /**
+     * @param key Key.
+     * @return Value or null if there is no such key.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        return (V) values[findPosition(keys, values, key)];
+    }
+
+    /**
+     * @param key   Key.
+     * @param value Non-null value.
+     * @return Previous value or null.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("LongObjectMap doesn't support null values.");
+        }
+
+        int position = findPosition(keys, values, key);
+        V previous = (V) values[position];
+
+        keys[position] = key;
+        values[position] = value;
+
+        if (previous == null && ++size * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+
+        return previous;
+    }
+
+    /**
+     * @return Keys in no particular order.
+     */
+    public long[] keys() {
+        long[] result = new long[size];
+        int index = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null) {
+                result[index++] = keys[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Calls the visitor for each entry in no particular order.
+     *
+     * @param visitor Visitor.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(Visitor<? super V> visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null) {
+                visitor.visit(keys[i], (V) values[i]);
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        long[] newKeys = new long[capacity];
+        Object[] newValues = new Object[capacity];
+
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null) {
+                int position = findPosition(newKeys, newValues, keys[i]);
+                newKeys[position] = keys[i];
+                newValues[position] = values[i];
+            }
+        }
+
+        keys = newKeys;
+        values = newValues;
+    }
+
+    private static int findPosition(long[] keys, Object[] values, long key) {
+        int mask = keys.length - 1;
+        int position = RowRollIndex.hash(key) & mask;
+
+        while (values[position] != null && keys[position] != key) {
+            position = (position + 1) & mask;
+        }
+
+        return position;
+    }
+
+    public interface Visitor<V> {
+        void visit(long key, V value);
+    }
+}
@@ -0,0 +1,61 @@
+package org.jacuzzi.core;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.Consumer;
+
+/**
+ * In-process transport: messages are delivered synchronously to the other transports
+ * of the same channel. Useful for tests and for several DataSources of the same database in one JVM.
+ */
+public class LoopbackInvalidationTransport implements InvalidationTransport {
+    private static final int MAX_MESSAGE_SIZE = 65536;
+
+    private final Set<LoopbackInvalidationTransport> channel;
+    private volatile Consumer<byte[]> receiver;
+
+    /**
+     * Creates transport on new channel.
+     */
+    public LoopbackInvalidationTransport() {
+        this(new CopyOnWriteArraySet<>());
+    }
+
+    private LoopbackInvalidationTransport(Set<LoopbackInvalidationTransport> channel) {
+        this.channel = channel;
+        channel.add(this);
+    }
+
+    /**
+     * @return New transport on the same channel.
+     */
+    public LoopbackInvalidationTransport newPeer() {
+        return new LoopbackInvalidationTransport(channel);
+    }
+
+    @Override
+    public void start(Consumer<byte[]> receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public void send(byte[] message) {
+        for (LoopbackInvalidationTransport peer : channel) {
+            Consumer<byte[]> peerReceiver = peer.receiver;
+            if (peer != this && peerReceiver != null) {
+                peerReceiver.accept(message.clone());
+            }
+        }
+    }
+
+    @Override
+    public int getMaxMessageSize() {
+        return MAX_MESSAGE_SIZE;
+    }
+
+    @Override
+    public void close() {
+        channel.remove(this);
+        receiver = null;
+    }
+}
@@ -0,0 +1,166 @@
+package org.jacuzzi.core;
+
+import java.io.File;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Read-only rows stored in the file written by {@link ArrayMap#writeMappedRowRoll(File, RowRoll)}
+ * and opened by {@link ArrayMap#mapRowRoll(File)}.
+ *
+ * The file is memory-mapped, so opening even a huge file is fast and doesn't use heap.
+ * Each access decodes only the requested row (or value) using the row offset index.
+ *
+ * Instances are thread-safe.
+ */
+@SuppressWarnings("unused")
+public class MappedRowRoll {
+    /**
+     * Files are mapped by segments because a single mapping can't exceed 2GB.
+     */
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    private final ByteBuffer[] segments;
+    private final String[] keys;
+    private final int[] keyHashCodes;
+    private final int[] valueTypes;
+    private final int size;
+    private final long indexOffset;
+
+    MappedRowRoll(ByteBuffer[] segments, String[] keys, int[] valueTypes, int size, long indexOffset) {
+        this.segments = segments;
+        this.keys = keys;
+        this.valueTypes = valueTypes;
+        this.size = size;
+        this.indexOffset = indexOffset;
+
+        keyHashCodes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            keyHashCodes[i] = keys[i].hashCode();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getColumnCount() {
+        return keys.length;
+    }
+
+    String[] getKeys() {
+        return keys;
+    }
+
+    public int getColumn(String key) {
+        if (key == null) {
+            return -1;
+        }
+
+        int keyHashCode = key.hashCode();
+        for (int i = 0; i < keys.length; i++) {
+            if (keyHashCode == keyHashCodes[i] && key.equals(keys[i])) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Decodes the row. Other rows are not touched.
+     *
+     * @param index Row index.
+     * @return Decoded row.
+     */
+    public Row getRow(int index) {
+        return new Row(new ArrayMap<>(keys, keyHashCodes, ArrayMap.readObjectArray(getRowBuffer(index), valueTypes)));
+    }
+
+    /**
+     * Decodes the single value of the row. Other values are skipped without decoding.
+     *
+     * @param index  Row index.
+     * @param column Column index, see {@link #getColumn(String)}.
+     * @return Decoded value or {@code null} if {@code column == -1}.
+     */
+    public Object getValue(int index, int column) {
+        if (column == -1) {
+            return null;
+        }
+
+        return ArrayMap.readObjectArrayItem(getRowBuffer(index), valueTypes, column);
+    }
+
+    /**
+     * Decodes all the rows into the heap.
+     *
+     * @return RowRoll with the same rows.
+     */
+    public RowRoll toRowRoll() {
+        RowRoll rowRoll = new RowRoll();
+        rowRoll.setKeys(keys);
+        for (int i = 0; i < size; i++) {
+            rowRoll.addValues(ArrayMap.readObjectArray(getRowBuffer(i), valueTypes));
+        }
+        rowRoll.trimToSize();
+        return rowRoll;
+    }
+
+    private ByteBuffer getRowBuffer(int index) {
+        if (index < 0 || index >= size) {
+            throw new IllegalArgumentException("Illegal index for MappedRowRoll object: expected in [0, "
+                    + size + ") but " + index + " found.");
+        }
+
+        long start = readLong(segments, indexOffset + (long) index * Long.BYTES);
+        long end = readLong(segments, indexOffset + (index + 1L) * Long.BYTES);
+
+        return slice(segments, start, (int) (end - start));
+    }
+
+    static long readLong(ByteBuffer[] segments, long position) {
+        int segment = (int) (position / SEGMENT_SIZE);
+        int offset = (int) (position % SEGMENT_SIZE);
+
+        if (offset + Long.BYTES <= segments[segment].limit()) {
+            return segments[segment].getLong(offset);
+        } else {
+            return slice(segments, position, Long.BYTES).getLong();
+        }
+    }
+
+    /**
+     * @return Buffer positioned at the beginning of the range. The range is copied to the heap
+     * only if it crosses the segment boundary.
+     */
+    private static ByteBuffer slice(ByteBuffer[] segments, long position, int length) {
+        int segment = (int) (position / SEGMENT_SIZE);
+        int offset = (int) (position % SEGMENT_SIZE);
+
+        if (offset + length <= segments[segment].limit()) {
+            ByteBuffer buffer = segments[segment].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            ((Buffer) buffer).limit(offset + length).position(offset);
+            return buffer;
+        }
+
+        byte[] bytes = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            ByteBuffer buffer = segments[segment].duplicate();
+            ((Buffer) buffer).position(offset);
+            int count = Math.min(length - copied, buffer.remaining());
+            buffer.get(bytes, copied, count);
+            copied += count;
+            ++segment;
+            offset = 0;
+        }
+
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
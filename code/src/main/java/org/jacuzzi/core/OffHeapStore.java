@@ -0,0 +1,355 @@
+package org.jacuzzi.core;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Store of encoded entities by long ids outside of the heap, so it doesn't affect garbage collection.
+ *
+ * Entries are appended to the ring of direct buffers (slabs), the oldest entries are overwritten
+ * when the ring is full, so the eviction is FIFO. Positions of the entries are kept
+ * in the open-addressing hash index of primitive arrays.
+ *
+ * Entry layout: [int payload length][long id][long expiration time][payload].
+ *
+ * Invalidation wins over concurrent loading: the value loaded by the query which started
+ * before an invalidation of its id is not stored.
+ */
+final class OffHeapStore {
+    private static final int MAX_SLAB_SIZE = 64 << 20;
+    private static final int HEADER_SIZE = 4 + 8 + 8;
+    private static final int END_OF_SLAB = -1;
+
+    private static final long EMPTY = -1;
+    private static final long REMOVED = -2;
+    private static final int MIN_INDEX_CAPACITY = 16;
+
+    private final int slabSize;
+    private final ByteBuffer[] slabs;
+    private final long capacity;
+    private final long timeToLiveMillis;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Logical position of the next entry, physical position is the logical one modulo capacity.
+     */
+    private long writePosition;
+
+    /**
+     * Logical position of the oldest entry which may be still indexed.
+     */
+    private long evictionPosition;
+
+    private long[] indexIds;
+    private long[] indexPositions;
+    private int indexSize;
+    private int indexUsedCount;
+    private long weight;
+
+    private final InvalidationGenerations invalidationGenerations = new InvalidationGenerations();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder invalidationCount = new LongAdder();
+    private final LongAdder notCacheableCount = new LongAdder();
+
+    /**
+     * @param capacityBytes    Maximal size of the slabs in bytes.
+     * @param timeToLiveMillis Time to live of the entries.
+     */
+    OffHeapStore(long capacityBytes, long timeToLiveMillis) {
+        if (capacityBytes < HEADER_SIZE) {
+            throw new IllegalArgumentException("Off-heap store capacity is too small: " + capacityBytes + '.');
+        }
+        if (timeToLiveMillis <= 0) {
+            throw new IllegalArgumentException("Time to live should be positive.");
+        }
+
+        slabSize = (int) Math.min(capacityBytes, MAX_SLAB_SIZE);
+        long slabCount = capacityBytes / slabSize;
+        if (slabCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Off-heap store capacity is too large: " + capacityBytes + '.');
+        }
+
+        slabs = new ByteBuffer[(int) slabCount];
+        capacity = slabCount * slabSize;
+        this.timeToLiveMillis = timeToLiveMillis;
+
+        indexIds = new long[MIN_INDEX_CAPACITY];
+        indexPositions = new long[MIN_INDEX_CAPACITY];
+        Arrays.fill(indexPositions, EMPTY);
+    }
+
+    /**
+     * @param id      Id.
+     * @param decoder Decodes the payload which starts at the position of the passed buffer.
+     * @param <T>     Decoded value type.
+     * @return Decoded value or null if there is no live entry.
+     */
+    <T> T get(long id, Decoder<T> decoder) {
+        lock.readLock().lock();
+        try {
+            long position = find(id);
+            if (position >= 0 && isLive(position)) {
+                ByteBuffer slab = slabs[getSlabIndex(position)].duplicate();
+                int offset = getSlabOffset(position);
+
+                if (System.currentTimeMillis() < slab.getLong(offset + 12)) {
+                    ((Buffer) slab).position(offset + HEADER_SIZE);
+                    ((Buffer) slab).limit(offset + HEADER_SIZE + slab.getInt(offset));
+                    hitCount.increment();
+                    return decoder.decode(slab);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        missCount.increment();
+        return null;
+    }
+
+    /**
+     * @param id Id.
+     * @return Current invalidation generation of the id, pass it to {@link #put(long, ByteBuffer, long)}.
+     */
+    long getInvalidationGeneration(long id) {
+        return invalidationGenerations.get(Long.hashCode(id));
+    }
+
+    /**
+     * Puts the payload unless the id was invalidated since the generation.
+     * Payloads which don't fit in a slab are not stored.
+     *
+     * @param id         Id.
+     * @param payload    Bytes between position and limit are stored, the position is not changed.
+     * @param generation Invalidation generation before the value was loaded.
+     */
+    void put(long id, ByteBuffer payload, long generation) {
+        int length = payload.remaining();
+        if (length > slabSize - HEADER_SIZE) {
+            notCacheableCount.increment();
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (invalidationGenerations.get(Long.hashCode(id)) != generation) {
+                return;
+            }
+
+            int offset = getSlabOffset(writePosition);
+            if (slabSize - offset < HEADER_SIZE + length) {
+                evict(writePosition + slabSize - offset - capacity);
+                if (slabSize - offset >= 4) {
+                    getSlab(getSlabIndex(writePosition)).putInt(offset, END_OF_SLAB);
+                }
+                writePosition += slabSize - offset;
+                offset = 0;
+            }
+
+            evict(writePosition + HEADER_SIZE + length - capacity);
+
+            ByteBuffer slab = getSlab(getSlabIndex(writePosition));
+            slab.putInt(offset, length);
+            slab.putLong(offset + 4, id);
+            slab.putLong(offset + 12, System.currentTimeMillis() + timeToLiveMillis);
+
+            ByteBuffer target = slab.duplicate();
+            ((Buffer) target).position(offset + HEADER_SIZE);
+            target.put(payload.duplicate());
+
+            remove(id);
+            putIndex(id, writePosition);
+            weight += HEADER_SIZE + length;
+            writePosition += HEADER_SIZE + length;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void invalidate(long id) {
+        invalidationGenerations.invalidate(Long.hashCode(id));
+        invalidationCount.increment();
+
+        lock.writeLock().lock();
+        try {
+            remove(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void invalidateAll() {
+        invalidationGenerations.invalidateAll();
+        invalidationCount.increment();
+
+        lock.writeLock().lock();
+        try {
+            Arrays.fill(indexPositions, EMPTY);
+            indexSize = 0;
+            indexUsedCount = 0;
+            weight = 0;
+            evictionPosition = writePosition;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Statistics, the weight is the size of the live entries in the slabs.
+     */
+    CacheStatistics getStatistics() {
+        lock.readLock().lock();
+        try {
+            return new CacheStatistics(hitCount.sum(), missCount.sum(), evictionCount.sum(), invalidationCount.sum(),
+                    notCacheableCount.sum(), indexSize, weight);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Total size of the slabs.
+     */
+    long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Removes from the index the entries which start before the position, they are going to be overwritten.
+     */
+    private void evict(long limit) {
+        while (evictionPosition < limit && evictionPosition < writePosition) {
+            int offset = getSlabOffset(evictionPosition);
+            ByteBuffer slab = slabs[getSlabIndex(evictionPosition)];
+
+            int length = slabSize - offset < HEADER_SIZE ? END_OF_SLAB : slab.getInt(offset);
+            if (length == END_OF_SLAB) {
+                evictionPosition += slabSize - offset;
+                continue;
+            }
+
+            long id = slab.getLong(offset + 4);
+            int slot = findSlot(id);
+            if (slot >= 0 && indexPositions[slot] == evictionPosition) {
+                indexPositions[slot] = REMOVED;
+                --indexSize;
+                weight -= HEADER_SIZE + length;
+                evictionCount.increment();
+            }
+
+            evictionPosition += HEADER_SIZE + length;
+        }
+    }
+
+    private boolean isLive(long position) {
+        return position >= evictionPosition && position < writePosition;
+    }
+
+    private ByteBuffer getSlab(int index) {
+        if (slabs[index] == null) {
+            slabs[index] = ByteBuffer.allocateDirect(slabSize);
+        }
+        return slabs[index];
+    }
+
+    private int getSlabIndex(long position) {
+        return (int) ((position % capacity) / slabSize);
+    }
+
+    private int getSlabOffset(long position) {
+        return (int) (position % slabSize);
+    }
+
+    private long find(long id) {
+        int slot = findSlot(id);
+        return slot < 0 ? EMPTY : indexPositions[slot];
+    }
+
+    /**
+     * @return Slot of the indexed id or -1.
+     */
+    private int findSlot(long id) {
+        int mask = indexIds.length - 1;
+        for (int slot = RowRollIndex.hash(id) & mask; ; slot = (slot + 1) & mask) {
+            long position = indexPositions[slot];
+            if (position == EMPTY) {
+                return -1;
+            }
+            if (position != REMOVED && indexIds[slot] == id) {
+                return slot;
+            }
+        }
+    }
+
+    private void remove(long id) {
+        int slot = findSlot(id);
+        if (slot >= 0) {
+            long position = indexPositions[slot];
+            if (isLive(position)) {
+                weight -= HEADER_SIZE + slabs[getSlabIndex(position)].getInt(getSlabOffset(position));
+            }
+            indexPositions[slot] = REMOVED;
+            --indexSize;
+        }
+    }
+
+    private void putIndex(long id, long position) {
+        if (2 * (indexUsedCount + 1) > indexIds.length) {
+            rehash();
+        }
+
+        int mask = indexIds.length - 1;
+        int slot = RowRollIndex.hash(id) & mask;
+        while (indexPositions[slot] != EMPTY && indexPositions[slot] != REMOVED) {
+            slot = (slot + 1) & mask;
+        }
+
+        if (indexPositions[slot] == EMPTY) {
+            ++indexUsedCount;
+        }
+        indexIds[slot] = id;
+        indexPositions[slot] = position;
+        ++indexSize;
+    }
+
+    /**
+     * Drops removed slots and grows the index if it is more than a quarter full.
+     */
+    private void rehash() {
+        long[] ids = indexIds;
+        long[] positions = indexPositions;
+
+        int newCapacity = MIN_INDEX_CAPACITY;
+        while (newCapacity < 4 * (indexSize + 1)) {
+            newCapacity <<= 1;
+        }
+
+        indexIds = new long[newCapacity];
+        indexPositions = new long[newCapacity];
+        Arrays.fill(indexPositions, EMPTY);
+        indexSize = 0;
+        indexUsedCount = 0;
+
+        for (int i = 0; i < ids.length; i++) {
+            if (positions[i] >= 0) {
+                putIndex(ids[i], positions[i]);
+            }
+        }
+    }
+
+    interface Decoder<T> {
+        /**
+         * @param buffer Buffer with the payload between position and limit.
+         * @return Decoded value.
+         */
+        T decode(ByteBuffer buffer);
+    }
+}
@@ -33,6 +33,8 @@ class PreparedStatementUtil {
 
     private static final int MAX_RETRY_COUNT = 10;
 
+    private static final int SCAN_FETCH_SIZE = 1000;
+
     private static ResultSet preparedStatementExecuteQuery(PreparedStatement statement, String query, Object[] args)
             throws SQLException {
         ResultSet result;
@@ -151,6 +153,73 @@ class PreparedStatementUtil {
         }
     }
 
+    /**
+     * Unlike other methods it doesn't retry the query on connection problems,
+     * because some rows could have been already handled.
+     *
+     * The rows are fetched by portions where possible, otherwise MySQL and PostgreSQL drivers
+     * read the whole result into memory before the first row. If the connection is not attached
+     * to the thread, MySQL streams rows (fetch size is Integer.MIN_VALUE) and PostgreSQL uses
+     * a cursor (positive fetch size with autocommit off for the scan). The attached connection
+     * is used as is: MySQL fetches by portions only with useCursorFetch=true in the URL,
+     * PostgreSQL only inside a transaction.
+     */
+    static long scan(DataSource dataSource, DataSourceUtil dataSourceUtil, Dialect dialect, String query,
+                     Object[] args, RowCursorHandler handler) throws SQLException {
+        boolean attached = dataSourceUtil.isConnectionAttached(dataSource);
+        Connection connection = dataSourceUtil.getConnection(dataSource);
+        PreparedStatement statement = null;
+        boolean restoreAutoCommit = false;
+
+        try {
+            statement = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            switch (dialect) {
+                case MYSQL:
+                    // Streaming result blocks other statements of the connection, so the handler
+                    // can't query the attached connection while it is scanned.
+                    statement.setFetchSize(attached ? SCAN_FETCH_SIZE : Integer.MIN_VALUE);
+                    break;
+                case POSTGRESQL:
+                    // Autocommit of the attached connection is not changed, otherwise the writes
+                    // of the handler would be held in the transaction until the end of the scan.
+                    if (!attached && connection.getAutoCommit()) {
+                        connection.setAutoCommit(false);
+                        restoreAutoCommit = true;
+                    }
+                    statement.setFetchSize(SCAN_FETCH_SIZE);
+                    break;
+                default:
+                    statement.setFetchSize(SCAN_FETCH_SIZE);
+                    break;
+            }
+
+            setupPreparedStatementParameters(statement, args);
+            ResultSet resultSet = preparedStatementExecuteQuery(statement, query, args);
+            statement.clearParameters();
+
+            try {
+                RowCursor cursor = new RowCursor(resultSet);
+                while (cursor.next()) {
+                    handler.handle(cursor);
+                }
+                return cursor.getRowIndex() + 1;
+            } finally {
+                resultSet.close();
+            }
+        } finally {
+            try {
+                tryCloseStatement(statement);
+                if (restoreAutoCommit) {
+                    // Ends the transaction opened for the cursor, the connection is not attached,
+                    // so nothing but the scan used it.
+                    connection.setAutoCommit(true);
+                }
+            } finally {
+                tryCloseConnection(dataSourceUtil, dataSource, connection);
+            }
+        }
+    }
+
     static int execute(
             final DataSource dataSource, final DataSourceUtil dataSourceUtil, final String query,
             final Object[] args, final List<Row> generatedKeys) throws SQLException {
@@ -13,11 +13,20 @@ class Query {
      * @param args  Parameters to be substituted instead of jokers
      * @return {@code query} with substitutions.
      */
-    @SuppressWarnings("AccessOfSystemProperties")
     public static String format(String query, Object... args) {
-        boolean tableQuotation = Boolean.parseBoolean(System.getProperty("jacuzzi.tableQuotation"));
-        boolean fieldQuotation = Boolean.parseBoolean(System.getProperty("jacuzzi.fieldQuotation"));
+        return format(isTableQuotation(), isFieldQuotation(), query, args);
+    }
 
+    /**
+     * The same as {@link #format(String, Object...)}, but doesn't read quotation properties.
+     *
+     * @param tableQuotation Quote table names.
+     * @param fieldQuotation Quote field names.
+     * @param query          String with jokers
+     * @param args           Parameters to be substituted instead of jokers
+     * @return {@code query} with substitutions.
+     */
+    static String format(boolean tableQuotation, boolean fieldQuotation, String query, Object... args) {
         StringBuilder result = new StringBuilder(query.length() + 32);
         int index = 0;
 
@@ -62,4 +71,14 @@ class Query {
 
         return result.toString();
     }
+
+    @SuppressWarnings("AccessOfSystemProperties")
+    static boolean isTableQuotation() {
+        return Boolean.parseBoolean(System.getProperty("jacuzzi.tableQuotation"));
+    }
+
+    @SuppressWarnings("AccessOfSystemProperties")
+    static boolean isFieldQuotation() {
+        return Boolean.parseBoolean(System.getProperty("jacuzzi.fieldQuotation"));
+    }
 }
@@ -0,0 +1,361 @@
+package org.jacuzzi.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Cache of query results by SQL and arguments. Each result is tagged with the tables it reads
+ * and the versions of the tables at the moment the query started. Writes increment versions
+ * of the written tables, so the results tagged with older versions are never returned.
+ */
+final class QueryCache {
+    private static final int MAX_CACHED_TABLES_COUNT = 1024;
+
+    /**
+     * Memoized value for the queries which write unknown tables, compared by identity.
+     */
+    private static final String[] UNKNOWN_TABLES = {};
+
+    private static final Set<String> TABLE_TERMINATING_KEYWORDS = new HashSet<>(Arrays.asList(
+            "WHERE", "JOIN", "INNER", "LEFT", "RIGHT", "FULL", "CROSS", "OUTER", "NATURAL", "STRAIGHT_JOIN",
+            "ON", "USING", "GROUP", "ORDER", "HAVING", "LIMIT", "OFFSET", "FETCH", "UNION", "EXCEPT",
+            "INTERSECT", "FOR", "WINDOW", "SET", "VALUES", "SELECT", "LOCK"
+    ));
+
+    private final SegmentedLruCache<QueryKey, Result> cache;
+
+    /**
+     * Versions of tables by lower-cased table name.
+     */
+    private final ConcurrentMap<String, AtomicLong> tableVersions = new ConcurrentHashMap<>();
+
+    /**
+     * Incremented on writes to unknown tables, it invalidates all results.
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    private final ConcurrentMap<String, String[]> readTablesByQuery = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String[]> writeTablesByQuery = new ConcurrentHashMap<>();
+
+    QueryCache(CacheSettings settings) {
+        cache = new SegmentedLruCache<>(settings, result -> result.weight);
+    }
+
+    /**
+     * @param tables Tables read by the query or null to parse them from the query.
+     * @param query  SQL query.
+     * @param args   Query arguments.
+     * @param loader Executes the query.
+     * @return Cached or loaded result, it should not be modified.
+     */
+    RowRoll get(Collection<String> tables, String query, Object[] args, Supplier<RowRoll> loader) {
+        String[] resultTables = tables == null ? getReadTables(query) : normalizeTables(tables);
+
+        return cache.get(new QueryKey(query, args), this::isValid, key -> {
+            long[] versions = new long[resultTables.length];
+            for (int i = 0; i < resultTables.length; i++) {
+                versions[i] = getTableVersion(resultTables[i]).get();
+            }
+            long currentVersion = version.get();
+
+            RowRoll rowRoll = loader.get();
+            rowRoll.trimToSize();
+            return new Result(rowRoll, resultTables, versions, currentVersion,
+                    2L * query.length() + rowRoll.getApproximateSize());
+        }).rowRoll;
+    }
+
+    /**
+     * Invalidates results which read the tables written by the query.
+     *
+     * @param query Executed SQL query.
+     */
+    void invalidateWrittenTables(String query) {
+        invalidateTables(getWriteTables(query));
+    }
+
+    /**
+     * @param tables Tables to invalidate, null means all tables.
+     */
+    void invalidateTables(String[] tables) {
+        if (tables == null) {
+            version.incrementAndGet();
+            cache.invalidateAll();
+        } else {
+            for (String table : tables) {
+                getTableVersion(table).incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @param query Executed SQL query.
+     * @return Tables written by the query or null if they are unknown.
+     */
+    String[] getWriteTables(String query) {
+        String[] tables = writeTablesByQuery.get(query);
+        if (tables == null) {
+            tables = parseWriteTables(query);
+            memoize(writeTablesByQuery, query, tables == null ? UNKNOWN_TABLES : tables);
+            return tables;
+        }
+        return tables == UNKNOWN_TABLES ? null : tables;
+    }
+
+    CacheStatistics getStatistics() {
+        return cache.getStatistics();
+    }
+
+    private String[] getReadTables(String query) {
+        String[] tables = readTablesByQuery.get(query);
+        if (tables == null) {
+            tables = parseReadTables(tokenize(query)).toArray(new String[0]);
+            memoize(readTablesByQuery, query, tables);
+        }
+        return tables;
+    }
+
+    private boolean isValid(Result result) {
+        if (result.version != version.get()) {
+            return false;
+        }
+
+        for (int i = 0; i < result.tables.length; i++) {
+            if (getTableVersion(result.tables[i]).get() != result.versions[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private AtomicLong getTableVersion(String table) {
+        AtomicLong tableVersion = tableVersions.get(table);
+        return tableVersion == null ? tableVersions.computeIfAbsent(table, key -> new AtomicLong()) : tableVersion;
+    }
+
+    private static void memoize(ConcurrentMap<String, String[]> memo, String query, String[] tables) {
+        if (memo.size() >= MAX_CACHED_TABLES_COUNT) {
+            memo.clear();
+        }
+        memo.put(query, tables);
+    }
+
+    static String[] normalizeTables(Collection<String> tables) {
+        Set<String> result = new LinkedHashSet<>();
+        for (String table : tables) {
+            result.add(normalizeTable(table));
+        }
+        return result.toArray(new String[0]);
+    }
+
+    /**
+     * @return Tables after FROM and JOIN, including comma-separated lists of tables.
+     */
+    static Set<String> parseReadTables(List<String> tokens) {
+        Set<String> tables = new LinkedHashSet<>();
+
+        for (int i = 0; i < tokens.size(); i++) {
+            boolean from = "FROM".equalsIgnoreCase(tokens.get(i));
+            if (!from && !"JOIN".equalsIgnoreCase(tokens.get(i))) {
+                continue;
+            }
+
+            int j = i + 1;
+            while (j < tokens.size() && isTable(tokens.get(j))) {
+                tables.add(normalizeTable(tokens.get(j++)));
+
+                if (j < tokens.size() && "AS".equalsIgnoreCase(tokens.get(j))) {
+                    ++j;
+                }
+                if (j < tokens.size() && isTable(tokens.get(j))) {
+                    ++j;
+                }
+
+                if (!from || j >= tokens.size() || !",".equals(tokens.get(j))) {
+                    break;
+                }
+                ++j;
+            }
+        }
+
+        return tables;
+    }
+
+    /**
+     * @return Tables written (and read) by INSERT, REPLACE, MERGE, UPDATE and DELETE
+     *         or null if the query is not recognized.
+     */
+    static String[] parseWriteTables(String query) {
+        List<String> tokens = tokenize(query);
+        if (tokens.isEmpty()) {
+            return null;
+        }
+
+        String statement = tokens.get(0).toUpperCase(Locale.ENGLISH);
+        Set<String> tables = new LinkedHashSet<>();
+
+        switch (statement) {
+            case "SELECT":
+                return new String[0];
+            case "INSERT":
+            case "REPLACE":
+            case "MERGE":
+                int intoIndex = indexOfIgnoreCase(tokens, "INTO");
+                if (intoIndex < 0 || intoIndex + 1 >= tokens.size() || !isTable(tokens.get(intoIndex + 1))) {
+                    return null;
+                }
+                tables.add(normalizeTable(tokens.get(intoIndex + 1)));
+                break;
+            case "UPDATE":
+                for (int i = 1; i < tokens.size(); i++) {
+                    String token = tokens.get(i);
+                    if (!"LOW_PRIORITY".equalsIgnoreCase(token) && !"IGNORE".equalsIgnoreCase(token)) {
+                        if (!isTable(token)) {
+                            return null;
+                        }
+                        tables.add(normalizeTable(token));
+                        break;
+                    }
+                }
+                break;
+            case "DELETE":
+                break;
+            default:
+                return null;
+        }
+
+        tables.addAll(parseReadTables(tokens));
+        return tables.isEmpty() ? null : tables.toArray(new String[0]);
+    }
+
+    private static int indexOfIgnoreCase(List<String> tokens, String token) {
+        for (int i = 0; i < tokens.size(); i++) {
+            if (token.equalsIgnoreCase(tokens.get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isTable(String token) {
+        char c = token.charAt(0);
+        return (Character.isLetter(c) || c == '_' || c == '`' || c == '"' || c == '[')
+                && !TABLE_TERMINATING_KEYWORDS.contains(token.toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @return Lower-cased table name without schema and quotes.
+     */
+    static String normalizeTable(String table) {
+        int dotIndex = table.lastIndexOf('.');
+        String result = dotIndex >= 0 ? table.substring(dotIndex + 1) : table;
+
+        if (result.length() >= 2 && (result.charAt(0) == '`' || result.charAt(0) == '"' || result.charAt(0) == '[')) {
+            result = result.substring(1, result.length() - 1);
+        }
+
+        return result.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Splits the query into identifiers (possibly qualified and quoted), numbers and punctuation.
+     * String literals and comments are skipped.
+     */
+    static List<String> tokenize(String query) {
+        List<String> tokens = new ArrayList<>();
+        int length = query.length();
+        int i = 0;
+
+        while (i < length) {
+            char c = query.charAt(i);
+
+            if (Character.isWhitespace(c)) {
+                ++i;
+            } else if (c == '\'') {
+                i = skipQuoted(query, i, '\'');
+            } else if (c == '-' && i + 1 < length && query.charAt(i + 1) == '-') {
+                while (i < length && query.charAt(i) != '\n') {
+                    ++i;
+                }
+            } else if (c == '/' && i + 1 < length && query.charAt(i + 1) == '*') {
+                int end = query.indexOf("*/", i + 2);
+                i = end < 0 ? length : end + 2;
+            } else if (isIdentifierStart(c)) {
+                int start = i;
+                while (i < length && isIdentifierStart(query.charAt(i))) {
+                    char q = query.charAt(i);
+                    if (q == '`' || q == '"') {
+                        i = skipQuoted(query, i, q);
+                    } else if (q == '[') {
+                        int end = query.indexOf(']', i);
+                        i = end < 0 ? length : end + 1;
+                    } else {
+                        while (i < length && (Character.isLetterOrDigit(query.charAt(i))
+                                || query.charAt(i) == '_' || query.charAt(i) == '$')) {
+                            ++i;
+                        }
+                    }
+
+                    if (i + 1 < length && query.charAt(i) == '.' && isIdentifierStart(query.charAt(i + 1))) {
+                        ++i;
+                    } else {
+                        break;
+                    }
+                }
+                tokens.add(query.substring(start, i));
+            } else {
+                tokens.add(String.valueOf(c));
+                ++i;
+            }
+        }
+
+        return tokens;
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '`' || c == '"' || c == '[';
+    }
+
+    private static int skipQuoted(String query, int start, char quote) {
+        int i = start + 1;
+        while (i < query.length()) {
+            if (query.charAt(i) == quote) {
+                if (i + 1 < query.length() && query.charAt(i + 1) == quote) {
+                    i += 2;
+                } else {
+                    return i + 1;
+                }
+            } else {
+                ++i;
+            }
+        }
+        return i;
+    }
+
+    private static final class Result {
+        private final RowRoll rowRoll;
+        private final String[] tables;
+        private final long[] versions;
+        private final long version;
+        private final long weight;
+
+        private Result(RowRoll rowRoll, String[] tables, long[] versions, long version, long weight) {
+            this.rowRoll = rowRoll;
+            this.tables = tables;
+            this.versions = versions;
+            this.version = version;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.jacuzzi.core;
+
+import java.util.Arrays;
+
+/**
+ * Key of SQL query with its arguments. Queries are equal if they have equal SQL and arguments.
+ */
+final class QueryKey {
+    private final String query;
+    private final Object[] args;
+    private final int hashCode;
+
+    QueryKey(String query, Object[] args) {
+        this.query = query;
+        this.args = args == null ? new Object[0] : args.clone();
+        hashCode = 31 * query.hashCode() + Arrays.deepHashCode(this.args);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        QueryKey key = (QueryKey) o;
+        return hashCode == key.hashCode && query.equals(key.query) && Arrays.deepEquals(args, key.args);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return query + ' ' + Arrays.deepToString(args);
+    }
+}
@@ -0,0 +1,863 @@
+package org.jacuzzi.core;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Whole table kept in memory as immutable snapshot of rows by id.
+ *
+ * The snapshot is refreshed in the background when it is accessed after the refresh interval:
+ * only the rows with the update time not less than the latest seen one are read, and the new snapshot
+ * replaces the old one atomically (copy-on-write). Deleted rows and missed changes are found
+ * by reconciliation after the reconciliation interval. Rows changed through the DAO are reread by ids
+ * right after the write, so the writer sees its changes. Rows invalidated by other nodes
+ * are reread by ids on the next refresh.
+ *
+ * Reconciliation of integral ids compares checksums of id ranges (count, sum of ids and sum of row hashes)
+ * computed by the database with the ones of the snapshot, splits mismatching ranges into buckets recursively
+ * and rereads only the small mismatching ranges. Row hashes are computed by the database over the values
+ * of the row when it is read, and kept with the row in the snapshot. Other ids are reconciled by reading all ids.
+ *
+ * Rows and indexes of the snapshot are {@link LayeredMap}s, so a change of a few rows doesn't copy
+ * the whole table. Snapshots may have hash indexes by columns, they are updated incrementally on refresh:
+ * only the groups of changed rows are copied.
+ *
+ * The snapshot may be saved to the file periodically, then the first access after restart
+ * reads the file instead of the table and revalidates the rows in the background.
+ *
+ * Refreshes are serialized by the monitor of the table, rereads of changed rows don't wait for them:
+ * the queries and the file writes run without locks, only the swaps of the snapshot are serialized.
+ */
+final class ReferenceTable {
+    private static final Logger logger = Logger.getLogger(ReferenceTable.class);
+
+    /**
+     * Number of buckets of a range compared by one query.
+     */
+    private static final int CHECKSUM_BUCKET_COUNT = 16;
+
+    /**
+     * Ranges with at most that number of rows (both in the database and in the snapshot) are reread.
+     */
+    private static final int MAX_REREAD_RANGE_SIZE = 64;
+
+    private final Source source;
+    private final long refreshIntervalMillis;
+    private final long reconciliationIntervalMillis;
+
+    /**
+     * Guards the swaps of the snapshot, never held while querying the database or writing the file.
+     */
+    private final Object swapLock = new Object();
+
+    private volatile Snapshot snapshot;
+    private volatile boolean refreshRunning;
+    private final Set<Object> changedIds = ConcurrentHashMap.newKeySet();
+    private volatile boolean reloadRequested;
+    private volatile List<String> indexedColumns = Collections.emptyList();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private final AtomicLong reconciliationQueryCount = new AtomicLong();
+
+    private volatile File snapshotFile;
+    private volatile long snapshotWriteIntervalMillis;
+    private final Object snapshotFileLock = new Object();
+    private long snapshotWriteTime;
+    private Snapshot writtenSnapshot;
+
+    ReferenceTable(Source source, long refreshIntervalMillis, long reconciliationIntervalMillis) {
+        this.source = source;
+        this.refreshIntervalMillis = refreshIntervalMillis;
+        this.reconciliationIntervalMillis = reconciliationIntervalMillis;
+    }
+
+    /**
+     * @return Current snapshot, the first call loads the whole table.
+     */
+    Snapshot getSnapshot() {
+        Snapshot result = snapshot;
+
+        if (result == null) {
+            boolean loadedFromFile = false;
+
+            synchronized (this) {
+                if (snapshot == null) {
+                    refreshRunning = true;
+                    try {
+                        Snapshot loaded = readSnapshotFile();
+                        if (loaded == null) {
+                            loaded = load();
+                        } else {
+                            loadedFromFile = true;
+                        }
+                        synchronized (swapLock) {
+                            snapshot = loaded;
+                        }
+                    } finally {
+                        refreshRunning = false;
+                    }
+                }
+                result = snapshot;
+            }
+
+            if (loadedFromFile) {
+                refreshInBackground();
+            }
+            return result;
+        }
+
+        if (!changedIds.isEmpty() || reloadRequested || System.currentTimeMillis() >= result.refreshTime) {
+            refreshInBackground();
+        }
+
+        return result;
+    }
+
+    private void refreshInBackground() {
+        if (refreshing.compareAndSet(false, true)) {
+            try {
+                ExecutorUtil.getBackgroundExecutor().submit(() -> {
+                    try {
+                        refresh(false);
+                    } catch (RuntimeException e) {
+                        logger.warn("Can't refresh reference table snapshot.", e);
+                    } finally {
+                        refreshing.set(false);
+                    }
+                });
+            } catch (RuntimeException e) {
+                refreshing.set(false);
+                logger.warn("Can't schedule refresh of reference table snapshot.", e);
+            }
+        }
+    }
+
+    /**
+     * Makes the first access read the snapshot from the file if it exists, and makes refreshes
+     * write the changed snapshot to the file after the interval. The first call wins.
+     *
+     * @param file                File to save the snapshot.
+     * @param writeIntervalMillis Minimal interval between writes.
+     */
+    synchronized void setSnapshotFile(File file, long writeIntervalMillis) {
+        if (snapshotFile == null) {
+            snapshotFile = file;
+            snapshotWriteIntervalMillis = writeIntervalMillis;
+        } else if (!snapshotFile.equals(file) || snapshotWriteIntervalMillis != writeIntervalMillis) {
+            logger.warn("Reference table snapshot is already saved to " + snapshotFile + " every "
+                    + snapshotWriteIntervalMillis + " ms, so " + file + " every " + writeIntervalMillis
+                    + " ms is ignored.");
+        }
+    }
+
+    /**
+     * Writes the current snapshot to the file atomically (via temporary file).
+     * Does nothing if there is no file or no snapshot yet.
+     *
+     * @throws IOException If the file can't be written.
+     */
+    void writeSnapshotFile() throws IOException {
+        Snapshot current = snapshot;
+        if (current != null) {
+            synchronized (snapshotFileLock) {
+                writeSnapshotFile(current);
+            }
+        }
+    }
+
+    /**
+     * Writes the snapshot to the file, should be called holding the file lock.
+     */
+    private void writeSnapshotFile(Snapshot current) throws IOException {
+        File file = snapshotFile;
+        if (file == null) {
+            return;
+        }
+
+        RowRoll rowRoll = new RowRoll();
+        for (Row row : current.getRows()) {
+            rowRoll.addRow(row);
+        }
+
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try {
+            ArrayMap.writeMappedRowRoll(temporaryFile, rowRoll);
+        } catch (RuntimeException e) {
+            throw new IOException("Can't write reference table snapshot to " + temporaryFile + '.', e);
+        }
+
+        try {
+            Files.move(temporaryFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        writtenSnapshot = current;
+        snapshotWriteTime = System.currentTimeMillis() + snapshotWriteIntervalMillis;
+    }
+
+    /**
+     * @return Snapshot read from the file, it should be refreshed and reconciled immediately,
+     *         or null if there is no file or it can't be read.
+     */
+    private Snapshot readSnapshotFile() {
+        File file = snapshotFile;
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+
+        try {
+            // Not mapped: a mapped file can't be replaced on Windows until the mapping is collected.
+            MappedRowRoll rowRoll = ArrayMap.readMappedRowRoll(file);
+            Map<Object, Row> rowsById = new LinkedHashMap<>();
+            Object watermark = null;
+
+            for (int i = 0; i < rowRoll.size(); i++) {
+                Row row = rowRoll.getRow(i);
+                rowsById.put(source.getId(row), row);
+                watermark = max(watermark, source.getWatermark(row));
+            }
+
+            Map<String, LayeredMap<Object, Map<Object, Row>>> indexes = new HashMap<>();
+            for (String column : indexedColumns) {
+                indexes.put(column, buildIndex(column, rowsById));
+            }
+
+            long now = System.currentTimeMillis();
+            Snapshot result = new Snapshot(new LayeredMap<>(rowsById), indexes, watermark, now, now);
+            synchronized (snapshotFileLock) {
+                writtenSnapshot = result;
+                snapshotWriteTime = now + snapshotWriteIntervalMillis;
+            }
+            return result;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Can't read reference table snapshot from " + file + ", reading the table.", e);
+            return null;
+        }
+    }
+
+    private void writeSnapshotFileIfNeeded(Snapshot current) {
+        if (snapshotFile == null) {
+            return;
+        }
+
+        synchronized (snapshotFileLock) {
+            if (current != writtenSnapshot && System.currentTimeMillis() >= snapshotWriteTime) {
+                try {
+                    writeSnapshotFile(current);
+                } catch (IOException e) {
+                    logger.warn("Can't write reference table snapshot to " + snapshotFile + '.', e);
+                    snapshotWriteTime = System.currentTimeMillis() + snapshotWriteIntervalMillis;
+                }
+            }
+        }
+    }
+
+    /**
+     * Rereads the rows and replaces them in the snapshot in the current thread, doesn't wait
+     * for a running refresh. If the rows can't be read or a refresh may overwrite them with
+     * older ones, they are reread on the next access.
+     *
+     * @param ids Normalized ids of the changed rows.
+     */
+    void rereadRows(Collection<Object> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        if (snapshot == null) {
+            if (refreshRunning) {
+                changedIds.addAll(ids);
+            }
+            return;
+        }
+
+        changedIds.removeAll(ids);
+
+        try {
+            // Changed rows by ids, null means deleted row.
+            Map<Object, Row> changes = new LinkedHashMap<>();
+            for (Object id : ids) {
+                changes.put(id, null);
+            }
+            for (Row row : source.findRowsByIds(ids)) {
+                changes.put(source.getId(row), row);
+            }
+
+            boolean overlapsRefresh;
+            synchronized (swapLock) {
+                // The watermark is kept, so concurrent changes of the other rows are not skipped.
+                Snapshot current = snapshot;
+                snapshot = applyChanges(current, changes, current.watermark,
+                        current.refreshTime, current.reconciliationTime);
+                overlapsRefresh = refreshRunning;
+            }
+
+            if (overlapsRefresh) {
+                changedIds.addAll(ids);
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Can't reread changed rows of reference table snapshot.", e);
+            changedIds.addAll(ids);
+        }
+    }
+
+    /**
+     * Makes the next access refresh the snapshot and reread the row.
+     *
+     * @param id Normalized id of the changed row.
+     */
+    void addChangedId(Object id) {
+        changedIds.add(id);
+    }
+
+    /**
+     * Makes the next access reload the whole table.
+     */
+    void requestReload() {
+        reloadRequested = true;
+    }
+
+    /**
+     * Adds hash index by the column to the current and future snapshots.
+     *
+     * @param column Column name.
+     */
+    synchronized void addIndex(String column) {
+        String key = column.toLowerCase(Locale.ENGLISH);
+        if (indexedColumns.contains(key)) {
+            return;
+        }
+
+        List<String> columns = new ArrayList<>(indexedColumns);
+        columns.add(key);
+        indexedColumns = columns;
+
+        synchronized (swapLock) {
+            Snapshot current = snapshot;
+            if (current != null) {
+                Map<String, LayeredMap<Object, Map<Object, Row>>> indexes = new HashMap<>(current.indexes);
+                indexes.put(key, buildIndex(key, current.rowsById));
+                snapshot = new Snapshot(current.rowsById, indexes, current.watermark,
+                        current.refreshTime, current.reconciliationTime);
+            }
+        }
+    }
+
+    /**
+     * Refreshes the snapshot in the current thread, then writes it to the file if needed.
+     *
+     * @param reconcile Reconcile ids even if the reconciliation interval has not passed.
+     */
+    void refresh(boolean reconcile) {
+        Snapshot refreshed;
+        synchronized (this) {
+            refreshRunning = true;
+            try {
+                refreshed = refreshSnapshot(reconcile);
+            } finally {
+                refreshRunning = false;
+            }
+        }
+        writeSnapshotFileIfNeeded(refreshed);
+    }
+
+    /**
+     * @return Refreshed snapshot which replaced the current one, should be called holding the monitor.
+     */
+    private Snapshot refreshSnapshot(boolean reconcile) {
+        Snapshot current = snapshot;
+        if (current == null || reloadRequested) {
+            reloadRequested = false;
+            changedIds.clear();
+            Snapshot loaded = load();
+            synchronized (swapLock) {
+                snapshot = loaded;
+            }
+            return loaded;
+        }
+
+        List<Object> rereadIds = new ArrayList<>(changedIds);
+        changedIds.removeAll(rereadIds);
+
+        long now = System.currentTimeMillis();
+        Object watermark = current.watermark;
+
+        // Changed rows by ids, null means deleted row.
+        Map<Object, Row> changes = new LinkedHashMap<>();
+
+        for (Row row : source.findRows(watermark)) {
+            changes.put(source.getId(row), row);
+            watermark = max(watermark, source.getWatermark(row));
+        }
+
+        if (!rereadIds.isEmpty()) {
+            for (Object id : rereadIds) {
+                changes.put(id, null);
+            }
+            for (Row row : source.findRowsByIds(rereadIds)) {
+                changes.put(source.getId(row), row);
+                watermark = max(watermark, source.getWatermark(row));
+            }
+        }
+
+        long reconciliationTime = current.reconciliationTime;
+        if (reconcile || now >= reconciliationTime) {
+            Map<Object, Row> rows = new HashMap<>(current.rowsById);
+            applyChanges(rows, changes);
+
+            Map<Object, Row> reconciliationChanges = reconcileByChecksums(rows);
+            if (reconciliationChanges == null) {
+                reconciliationChanges = reconcileByIds(rows);
+            }
+
+            for (Map.Entry<Object, Row> change : reconciliationChanges.entrySet()) {
+                changes.put(change.getKey(), change.getValue());
+                if (change.getValue() != null) {
+                    watermark = max(watermark, source.getWatermark(change.getValue()));
+                }
+            }
+
+            reconciliationTime = now + reconciliationIntervalMillis;
+        }
+
+        // Rows reread concurrently are kept, they are reread once more on the next refresh.
+        synchronized (swapLock) {
+            Snapshot result = applyChanges(snapshot, changes, watermark,
+                    now + refreshIntervalMillis, reconciliationTime);
+            snapshot = result;
+            return result;
+        }
+    }
+
+    /**
+     * @return New snapshot with the changes applied to the rows and the indexes of the current one,
+     *         it shares the rows and the indexes with the current one if there are no changes.
+     */
+    private Snapshot applyChanges(Snapshot current, Map<Object, Row> changes, Object watermark,
+                                  long refreshTime, long reconciliationTime) {
+        if (changes.isEmpty()) {
+            return new Snapshot(current.rowsById, current.indexes, watermark, refreshTime, reconciliationTime);
+        }
+
+        Map<String, LayeredMap<Object, Map<Object, Row>>> indexes = new HashMap<>(current.indexes.size());
+        for (Map.Entry<String, LayeredMap<Object, Map<Object, Row>>> entry : current.indexes.entrySet()) {
+            indexes.put(entry.getKey(), updateIndex(entry.getKey(), entry.getValue(), current.rowsById, changes));
+        }
+
+        return new Snapshot(current.rowsById.with(changes), indexes, watermark, refreshTime, reconciliationTime);
+    }
+
+    /**
+     * @return Number of queries made by reconciliations.
+     */
+    long getReconciliationQueryCount() {
+        return reconciliationQueryCount.get();
+    }
+
+    private static void applyChanges(Map<Object, Row> rowsById, Map<Object, Row> changes) {
+        for (Map.Entry<Object, Row> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                rowsById.remove(change.getKey());
+            } else {
+                rowsById.put(change.getKey(), change.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return Changed rows by ids found by reading all ids, null means deleted row.
+     */
+    private Map<Object, Row> reconcileByIds(Map<Object, Row> rowsById) {
+        Map<Object, Row> changes = new HashMap<>();
+
+        Set<Object> ids = source.findIds();
+        reconciliationQueryCount.incrementAndGet();
+
+        for (Object id : rowsById.keySet()) {
+            if (!ids.contains(id)) {
+                changes.put(id, null);
+            }
+        }
+
+        List<Object> missingIds = new ArrayList<>();
+        for (Object id : ids) {
+            if (!rowsById.containsKey(id)) {
+                missingIds.add(id);
+            }
+        }
+
+        if (!missingIds.isEmpty()) {
+            for (Row row : source.findRowsByIds(missingIds)) {
+                changes.put(source.getId(row), row);
+            }
+            reconciliationQueryCount.incrementAndGet();
+        }
+
+        return changes;
+    }
+
+    /**
+     * @return Changed rows by ids found by comparing checksums of id ranges, null means deleted row,
+     *         or null if some ids are not integral or the checksums can't be computed.
+     */
+    private Map<Object, Row> reconcileByChecksums(Map<Object, Row> rowsById) {
+        int size = rowsById.size();
+        long[] ids = new long[size];
+
+        int index = 0;
+        for (Object id : rowsById.keySet()) {
+            if (!(id instanceof Long)) {
+                return null;
+            }
+            ids[index++] = (Long) id;
+        }
+        Arrays.sort(ids);
+
+        // Prefix sums of ids and row hashes in the order of ids.
+        long[] idSums = new long[size + 1];
+        long[] rowHashSums = new long[size + 1];
+        for (int i = 0; i < size; i++) {
+            idSums[i + 1] = idSums[i] + ids[i];
+            rowHashSums[i + 1] = rowHashSums[i] + source.getRowHash(rowsById.get(ids[i]));
+        }
+
+        try {
+            long[] bounds = source.findIdBounds();
+            reconciliationQueryCount.incrementAndGet();
+
+            long from = size == 0 ? Long.MAX_VALUE : ids[0];
+            long to = size == 0 ? Long.MIN_VALUE : ids[size - 1];
+            if (bounds != null) {
+                from = Math.min(from, bounds[0]);
+                to = Math.max(to, bounds[1]);
+            }
+
+            Map<Object, Row> changes = new HashMap<>();
+            if (from <= to) {
+                ChecksumRanges ranges = new ChecksumRanges(ids, idSums, rowHashSums);
+                reconcileRange(ranges, from, to + 1, -1, changes);
+            }
+            return changes;
+        } catch (RuntimeException e) {
+            logger.warn("Can't reconcile reference table by checksums, reading all ids.", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param from        Minimal id of the range.
+     * @param to          Id after the range.
+     * @param remoteCount Number of rows in the range in the database or -1 if unknown.
+     */
+    private void reconcileRange(ChecksumRanges ranges, long from, long to, long remoteCount,
+                                Map<Object, Row> changes) {
+        int localFrom = ranges.lowerBound(from);
+        int localTo = ranges.lowerBound(to);
+
+        if (to - from <= CHECKSUM_BUCKET_COUNT || remoteCount >= 0
+                && remoteCount <= MAX_REREAD_RANGE_SIZE && localTo - localFrom <= MAX_REREAD_RANGE_SIZE) {
+            rereadRange(ranges, from, to, changes);
+            return;
+        }
+
+        long width = (to - from + CHECKSUM_BUCKET_COUNT - 1) / CHECKSUM_BUCKET_COUNT;
+        long[][] remoteChecksums = new long[CHECKSUM_BUCKET_COUNT][3];
+        for (long[] checksum : source.findIdBucketChecksums(from, to, width)) {
+            remoteChecksums[(int) checksum[0]] = new long[]{checksum[1], checksum[2], checksum[3]};
+        }
+        reconciliationQueryCount.incrementAndGet();
+
+        for (int bucket = 0; bucket < CHECKSUM_BUCKET_COUNT; bucket++) {
+            long bucketFrom = from + bucket * width;
+            if (bucketFrom >= to) {
+                break;
+            }
+            long bucketTo = Math.min(to, bucketFrom + width);
+
+            long[] remoteChecksum = remoteChecksums[bucket];
+            if (!Arrays.equals(remoteChecksum, ranges.getChecksum(bucketFrom, bucketTo))) {
+                reconcileRange(ranges, bucketFrom, bucketTo, remoteChecksum[0], changes);
+            }
+        }
+    }
+
+    private void rereadRange(ChecksumRanges ranges, long from, long to, Map<Object, Row> changes) {
+        Set<Object> foundIds = new HashSet<>();
+
+        for (Row row : source.findRowsByIdRange(from, to)) {
+            Object id = source.getId(row);
+            foundIds.add(id);
+            changes.put(id, row);
+        }
+        reconciliationQueryCount.incrementAndGet();
+
+        for (int i = ranges.lowerBound(from), end = ranges.lowerBound(to); i < end; i++) {
+            if (!foundIds.contains(ranges.ids[i])) {
+                changes.put(ranges.ids[i], null);
+            }
+        }
+    }
+
+    private Snapshot load() {
+        long now = System.currentTimeMillis();
+        Map<Object, Row> rowsById = new LinkedHashMap<>();
+        Object watermark = null;
+
+        for (Row row : source.findRows(null)) {
+            rowsById.put(source.getId(row), row);
+            watermark = max(watermark, source.getWatermark(row));
+        }
+
+        Map<String, LayeredMap<Object, Map<Object, Row>>> indexes = new HashMap<>();
+        for (String column : indexedColumns) {
+            indexes.put(column, buildIndex(column, rowsById));
+        }
+
+        return new Snapshot(new LayeredMap<>(rowsById), indexes, watermark,
+                now + refreshIntervalMillis, now + reconciliationIntervalMillis);
+    }
+
+    private LayeredMap<Object, Map<Object, Row>> buildIndex(String column, Map<Object, Row> rowsById) {
+        Map<Object, Map<Object, Row>> index = new HashMap<>();
+        for (Map.Entry<Object, Row> entry : rowsById.entrySet()) {
+            index.computeIfAbsent(getIndexValue(column, entry.getValue()), key -> new LinkedHashMap<>())
+                    .put(entry.getKey(), entry.getValue());
+        }
+        return new LayeredMap<>(index);
+    }
+
+    /**
+     * Only the value groups of the changed rows are copied, the rest of the index is shared.
+     */
+    private LayeredMap<Object, Map<Object, Row>> updateIndex(String column,
+                                                             LayeredMap<Object, Map<Object, Row>> index,
+                                                             Map<Object, Row> rowsById, Map<Object, Row> changes) {
+        // Copies of the changed groups by values, empty groups are removed.
+        Map<Object, Map<Object, Row>> groupChanges = new HashMap<>();
+
+        for (Map.Entry<Object, Row> change : changes.entrySet()) {
+            Object id = change.getKey();
+
+            Row previousRow = rowsById.get(id);
+            if (previousRow != null) {
+                getGroupForUpdate(index, groupChanges, getIndexValue(column, previousRow)).remove(id);
+            }
+
+            Row row = change.getValue();
+            if (row != null) {
+                getGroupForUpdate(index, groupChanges, getIndexValue(column, row)).put(id, row);
+            }
+        }
+
+        groupChanges.replaceAll((value, group) -> group.isEmpty() ? null : group);
+        return index.with(groupChanges);
+    }
+
+    private static Map<Object, Row> getGroupForUpdate(Map<Object, Map<Object, Row>> index,
+                                                      Map<Object, Map<Object, Row>> groupChanges, Object value) {
+        Map<Object, Row> group = groupChanges.get(value);
+        if (group == null) {
+            Map<Object, Row> current = index.get(value);
+            group = current == null ? new LinkedHashMap<>() : new LinkedHashMap<>(current);
+            groupChanges.put(value, group);
+        }
+        return group;
+    }
+
+    private Object getIndexValue(String column, Row row) {
+        return normalizeValue(source.getColumnValue(row, column));
+    }
+
+    /**
+     * @return Integral numbers as Long, enums as names, dates as {@code java.util.Date}, other values as is.
+     */
+    static Object normalizeValue(Object value) {
+        if (value instanceof Enum) {
+            return ((Enum<?>) value).name();
+        }
+        if (value instanceof Date && value.getClass() != Date.class) {
+            return new Date(((Date) value).getTime());
+        }
+        return TypeOracle.normalizeId(value);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object max(Object a, Object b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        return ((Comparable) a).compareTo(b) >= 0 ? a : b;
+    }
+
+    /**
+     * Checksums of id ranges of the snapshot.
+     */
+    private static final class ChecksumRanges {
+        private final long[] ids;
+        private final long[] idSums;
+        private final long[] rowHashSums;
+
+        private ChecksumRanges(long[] ids, long[] idSums, long[] rowHashSums) {
+            this.ids = ids;
+            this.idSums = idSums;
+            this.rowHashSums = rowHashSums;
+        }
+
+        /**
+         * @return Index of the first id not less than the given one.
+         */
+        private int lowerBound(long id) {
+            int index = Arrays.binarySearch(ids, id);
+            return index < 0 ? -index - 1 : index;
+        }
+
+        /**
+         * @return Count, sum of ids and sum of row hashes of the ids in [from, to).
+         */
+        private long[] getChecksum(long from, long to) {
+            int start = lowerBound(from);
+            int end = lowerBound(to);
+            return new long[]{end - start, idSums[end] - idSums[start], rowHashSums[end] - rowHashSums[start]};
+        }
+    }
+
+    /**
+     * Reads the table.
+     */
+    interface Source {
+        /**
+         * Rows returned by the source carry their row hashes, see {@link #getRowHash(Row)}.
+         *
+         * @param watermark Minimal update time or null to find all rows.
+         * @return Rows with the update time not less than the watermark.
+         */
+        List<Row> findRows(Object watermark);
+
+        List<Row> findRowsByIds(Collection<Object> ids);
+
+        /**
+         * @return Rows with the ids in [from, to).
+         */
+        List<Row> findRowsByIdRange(long from, long to);
+
+        /**
+         * @return Minimal and maximal ids or null if the table is empty.
+         */
+        long[] findIdBounds();
+
+        /**
+         * @param from  Minimal id of the range.
+         * @param to    Id after the range.
+         * @param width Width of the bucket.
+         * @return Bucket index (id - from) / width, count, sum of ids (modulo 2^64) and sum of row hashes
+         *         for the non-empty buckets.
+         */
+        List<long[]> findIdBucketChecksums(long from, long to, long width);
+
+        /**
+         * @return Hash of the row computed by the database when the row was read,
+         *         0 if the database can't compute row hashes.
+         */
+        long getRowHash(Row row);
+
+        /**
+         * @return Normalized ids of all rows.
+         */
+        Set<Object> findIds();
+
+        /**
+         * @return Normalized id of the row.
+         */
+        Object getId(Row row);
+
+        /**
+         * @return Update time of the row.
+         */
+        Object getWatermark(Row row);
+
+        /**
+         * @return Value of the column (as it is in the entity) in the row.
+         */
+        Object getColumnValue(Row row, String column);
+    }
+
+    /**
+     * Immutable snapshot of the table, rows should not be modified.
+     */
+    static final class Snapshot {
+        private final LayeredMap<Object, Row> rowsById;
+        private final Map<String, LayeredMap<Object, Map<Object, Row>>> indexes;
+        private final Collection<Row> rows;
+        private final Object watermark;
+        private final long refreshTime;
+        private final long reconciliationTime;
+
+        private Snapshot(LayeredMap<Object, Row> rowsById, Map<String, LayeredMap<Object, Map<Object, Row>>> indexes,
+                         Object watermark, long refreshTime, long reconciliationTime) {
+            this.rowsById = rowsById;
+            this.indexes = indexes;
+            this.rows = Collections.unmodifiableCollection(rowsById.values());
+            this.watermark = watermark;
+            this.refreshTime = refreshTime;
+            this.reconciliationTime = reconciliationTime;
+        }
+
+        /**
+         * @param id Normalized id.
+         * @return Row or null.
+         */
+        Row get(Object id) {
+            return rowsById.get(id);
+        }
+
+        Collection<Row> getRows() {
+            return rows;
+        }
+
+        /**
+         * @param column Column name.
+         * @param value  Column value.
+         * @return Rows with the value of the column or null if there is no index by the column.
+         */
+        Collection<Row> findByIndex(String column, Object value) {
+            Map<Object, Map<Object, Row>> index = indexes.get(column.toLowerCase(Locale.ENGLISH));
+            if (index == null) {
+                return null;
+            }
+
+            if (value == null) {
+                return Collections.emptyList();
+            }
+
+            Map<Object, Row> group = index.get(normalizeValue(value));
+            return group == null ? Collections.<Row>emptyList() : Collections.unmodifiableCollection(group.values());
+        }
+
+        int size() {
+            return rowsById.size();
+        }
+    }
+}
@@ -42,15 +42,20 @@ public class Row implements Map<String, Object>, Serializable {
      */
     static List<Row> readFromResultSet(ResultSet resultSet) {
         ArrayList<Row> result = new ArrayList<>();
+        StringDeduplicator stringDeduplicator = null;
 
         try {
             ResultSetMetaData metaData = resultSet.getMetaData();
+            stringDeduplicator = new StringDeduplicator(metaData.getColumnCount());
             while (resultSet.next()) {
-                addRowFromResultSet(resultSet, result, metaData);
+                addRowFromResultSet(resultSet, result, metaData, stringDeduplicator);
             }
         } catch (SQLException e) {
             throw new DatabaseException("Can't read the list of rows from the result set.", e);
         } finally {
+            if (stringDeduplicator != null) {
+                stringDeduplicator.close();
+            }
             try {
                 resultSet.close();
             } catch (SQLException ignored) {
@@ -70,6 +75,7 @@ public class Row implements Map<String, Object>, Serializable {
      */
     static RowRoll readRowRollFromResultSet(ResultSet resultSet) {
         RowRoll result = new RowRoll();
+        StringDeduplicator stringDeduplicator = null;
 
         try {
             ResultSetMetaData metaData = resultSet.getMetaData();
@@ -80,16 +86,22 @@ public class Row implements Map<String, Object>, Serializable {
             }
             result.setKeys(keys);
 
+            stringDeduplicator = new StringDeduplicator(columnCount);
             while (resultSet.next()) {
                 Object[] values = new Object[columnCount];
                 for (int i = 1; i <= columnCount; ++i) {
-                    values[i - 1] = PreparedStatementUtil.prepareResultSetGetObject(resultSet.getObject(i));
+                    values[i - 1] = stringDeduplicator.deduplicate(
+                            i - 1, PreparedStatementUtil.prepareResultSetGetObject(resultSet.getObject(i))
+                    );
                 }
                 result.addValues(values);
             }
         } catch (SQLException e) {
             throw new DatabaseException("Can't read the list of rows from the result set.", e);
         } finally {
+            if (stringDeduplicator != null) {
+                stringDeduplicator.close();
+            }
             try {
                 resultSet.close();
             } catch (SQLException ignored) {
@@ -113,7 +125,7 @@ public class Row implements Map<String, Object>, Serializable {
         try {
             ResultSetMetaData metaData = resultSet.getMetaData();
             if (resultSet.next()) {
-                addRowFromResultSet(resultSet, result, metaData);
+                addRowFromResultSet(resultSet, result, metaData, null);
             }
         } catch (SQLException e) {
             throw new DatabaseException("Can't read the first row from the result set.", e);
@@ -131,15 +143,21 @@ public class Row implements Map<String, Object>, Serializable {
     /**
      * Reads the current row from result set and adds it to the list.
      *
-     * @param resultSet Result set to be read.
-     * @param result    List to be appended by new row.
-     * @param metaData  JDBC meta data.
+     * @param resultSet          Result set to be read.
+     * @param result             List to be appended by new row.
+     * @param metaData           JDBC meta data.
+     * @param stringDeduplicator Deduplicator for string values or {@code null}.
      */
-    private static void addRowFromResultSet(ResultSet resultSet, List<Row> result, ResultSetMetaData metaData) {
+    private static void addRowFromResultSet(ResultSet resultSet, List<Row> result, ResultSetMetaData metaData,
+                                            StringDeduplicator stringDeduplicator) {
         try {
             Row row = new Row(metaData.getColumnCount());
             for (int i = 1; i <= metaData.getColumnCount(); ++i) {
-                row.put(metaData.getColumnLabel(i), PreparedStatementUtil.prepareResultSetGetObject(resultSet.getObject(i)));
+                Object value = PreparedStatementUtil.prepareResultSetGetObject(resultSet.getObject(i));
+                if (stringDeduplicator != null) {
+                    value = stringDeduplicator.deduplicate(i - 1, value);
+                }
+                row.put(metaData.getColumnLabel(i), value);
             }
             result.add(row);
         } catch (SQLException e) {
@@ -147,6 +165,59 @@ public class Row implements Map<String, Object>, Serializable {
         }
     }
 
+    /**
+     * @return Copy of the row, mutable values (dates and byte arrays) are copied too.
+     */
+    Row copy() {
+        Row result = new Row(size());
+        for (Entry<String, Object> entry : entrySet()) {
+            result.put(entry.getKey(), copyValue(entry.getValue()));
+        }
+        return result;
+    }
+
+    static List<Row> copy(List<Row> rows) {
+        List<Row> result = new ArrayList<>(rows.size());
+        for (Row row : rows) {
+            result.add(row.copy());
+        }
+        return result;
+    }
+
+    /**
+     * @return Approximate heap size of the row in bytes (column names are considered as shared).
+     */
+    long getApproximateSize() {
+        long result = 48 + 16L * size();
+        for (Object value : values()) {
+            result += getApproximateValueSize(value);
+        }
+        return result;
+    }
+
+    static long getApproximateValueSize(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return 40 + 2L * ((String) value).length();
+        }
+        if (value instanceof byte[]) {
+            return 16 + ((byte[]) value).length;
+        }
+        return 24;
+    }
+
+    static Object copyValue(Object value) {
+        if (value instanceof Date) {
+            return ((Date) value).clone();
+        }
+        if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        }
+        return value;
+    }
+
     @Override
     public int size() {
         return delegateMap.size();
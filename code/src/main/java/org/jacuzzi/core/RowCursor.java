@@ -0,0 +1,179 @@
+package org.jacuzzi.core;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Date;
+
+/**
+ * Mutable cursor over the rows of the query result, see {@link Jacuzzi#scan(String, RowCursorHandler, Object...)}.
+ * Typed accessors read values straight from the JDBC result set, so reading primitive values
+ * doesn't create any garbage. Columns are 0-based like in {@link RowRoll}.
+ */
+@SuppressWarnings("unused")
+public class RowCursor {
+    private final ResultSet resultSet;
+    private final String[] labels;
+    private long rowIndex = -1;
+
+    RowCursor(ResultSet resultSet) throws SQLException {
+        this.resultSet = resultSet;
+
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        labels = new String[metaData.getColumnCount()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = metaData.getColumnLabel(i + 1);
+        }
+    }
+
+    boolean next() throws SQLException {
+        if (resultSet.next()) {
+            ++rowIndex;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * @return Index of the current row (0-based).
+     */
+    public long getRowIndex() {
+        return rowIndex;
+    }
+
+    public int getColumnCount() {
+        return labels.length;
+    }
+
+    public String getColumnLabel(int column) {
+        return labels[column];
+    }
+
+    /**
+     * @param label Column label.
+     * @return Column index or -1 if there is no such column.
+     */
+    public int getColumn(String label) {
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i].equals(label)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the value as object to check it, so prefer {@link #wasNull()} after typed accessors.
+     *
+     * @param column Column index.
+     * @return {@code true} iff the value is SQL NULL.
+     */
+    public boolean isNull(int column) {
+        try {
+            return resultSet.getObject(column + 1) == null;
+        } catch (SQLException e) {
+            throw new DatabaseException("Can't read column " + column + '.', e);
+        }
+    }
+
+    /**
+     * @return {@code true} iff the last read value was SQL NULL.
+     */
+    public boolean wasNull() {
+        try {
+            return resultSet.wasNull();
+        } catch (SQLException e) {
+            throw new DatabaseException("Can't check the last read value for NULL.", e);
+        }
+    }
+
+    /**
+     * @param column Column index.
+     * @return Value or 0 for SQL NULL.
+     */
+    public long getLong(int column) {
+        try {
+            return resultSet.getLong(column + 1);
+        } catch (SQLException e) {
+            throw new DatabaseException("Can't read column " + column + " as long.", e);
+        }
+    }
+
+    /**
+     * @param column Column index.
+     * @return Value or 0 for SQL NULL.
+     */
+    public int getInt(int column) {
+        try {
+            return resultSet.getInt(column + 1);
+        } catch (SQLException e) {
+            throw new DatabaseException("Can't read column " + column + " as int.", e);
+        }
+    }
+
+    /**
+     * @param column Column index.
+     * @return Value or 0 for SQL NULL.
+     */
+    public double getDouble(int column) {
+        try {
+            return resultSet.getDouble(column + 1);
+        } catch (SQLException e) {
+            throw new DatabaseException("Can't read column " + column + " as double.", e);
+        }
+    }
+
+    /**
+     * @param column Column index.
+     * @return Value or {@code false} for SQL NULL.
+     */
+    public boolean getBoolean(int column) {
+        try {
+            return resultSet.getBoolean(column + 1);
+        } catch (SQLException e) {
+            throw new DatabaseException("Can't read column " + column + " as boolean.", e);
+        }
+    }
+
+    public String getString(int column) {
+        try {
+            return resultSet.getString(column + 1);
+        } catch (SQLException e) {
+            throw new DatabaseException("Can't read column " + column + " as String.", e);
+        }
+    }
+
+    public Date getDate(int column) {
+        try {
+            Timestamp timestamp = resultSet.getTimestamp(column + 1);
+            return timestamp == null ? null : new Date(timestamp.getTime());
+        } catch (SQLException e) {
+            throw new DatabaseException("Can't read column " + column + " as Date.", e);
+        }
+    }
+
+    /**
+     * @param column Column index.
+     * @return Value as it would be in the {@link Row}.
+     */
+    public Object getObject(int column) {
+        try {
+            return PreparedStatementUtil.prepareResultSetGetObject(resultSet.getObject(column + 1));
+        } catch (SQLException e) {
+            throw new DatabaseException("Can't read column " + column + '.', e);
+        }
+    }
+
+    /**
+     * @return Copy of the current row, it stays valid after the cursor moves.
+     */
+    public Row copy() {
+        Row row = new Row(labels.length);
+        for (int i = 0; i < labels.length; i++) {
+            row.put(labels[i], getObject(i));
+        }
+        return row;
+    }
+}
@@ -0,0 +1,14 @@
+package org.jacuzzi.core;
+
+/**
+ * Handler for {@link Jacuzzi#scan(String, RowCursorHandler, Object...)}.
+ */
+public interface RowCursorHandler {
+    /**
+     * Called once per row. The cursor instance is the same for all the rows and it is valid
+     * only during the call, use {@link RowCursor#copy()} to keep the row.
+     *
+     * @param cursor Cursor positioned on the current row.
+     */
+    void handle(RowCursor cursor);
+}
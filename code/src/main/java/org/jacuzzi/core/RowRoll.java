@@ -1,6 +1,8 @@
 package org.jacuzzi.core;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -14,6 +16,15 @@ public class RowRoll {
     private int[] keyHashCodes;
     private ArrayList<Object[]> valuesList;
 
+    public RowRoll() {
+        // No operations.
+    }
+
+    RowRoll(String[] keys, ArrayList<Object[]> valuesList) {
+        setKeys(keys);
+        this.valuesList = valuesList;
+    }
+
     @SuppressWarnings("WeakerAccess")
     public void setKeys(String[] keys) {
         this.keys = keys;
@@ -125,6 +136,46 @@ public class RowRoll {
         return keys == null ? 0 : keys.length;
     }
 
+    /**
+     * @return Copy of the rowRoll, mutable values (dates and byte arrays) are copied too.
+     */
+    RowRoll copy() {
+        RowRoll result = new RowRoll();
+        if (keys != null) {
+            result.setKeys(keys);
+        }
+
+        if (valuesList != null) {
+            result.valuesList = new ArrayList<>(valuesList.size());
+            for (Object[] values : valuesList) {
+                Object[] copiedValues = new Object[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    copiedValues[i] = Row.copyValue(values[i]);
+                }
+                result.valuesList.add(copiedValues);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return Approximate heap size of the rowRoll in bytes (keys are considered as shared).
+     */
+    long getApproximateSize() {
+        long result = 64;
+        if (valuesList != null) {
+            result += 16L + 8L * valuesList.size();
+            for (Object[] values : valuesList) {
+                result += 16 + 8L * values.length;
+                for (Object value : values) {
+                    result += Row.getApproximateValueSize(value);
+                }
+            }
+        }
+        return result;
+    }
+
     String[] getKeys() {
         return keys;
     }
@@ -155,4 +206,86 @@ public class RowRoll {
 
         return valuesList.get(index)[column];
     }
+
+    /**
+     * Builds hash index to find rows by the values of the given columns.
+     *
+     * @param columns Columns to index.
+     * @return Index over the current rows.
+     */
+    public RowRollIndex index(String... columns) {
+        return new RowRollIndex(this, columns);
+    }
+
+    /**
+     * Inner hash join of this rowRoll with the other one. The index is built over the other rowRoll.
+     * Result rows contain all the columns of this rowRoll followed by the columns of the other
+     * rowRoll except {@code rightColumns}. Null keys never match like in SQL.
+     *
+     * @param other        RowRoll to join with.
+     * @param leftColumns  Columns of this rowRoll to join by.
+     * @param rightColumns Distinct columns of the other rowRoll to join by.
+     * @return Joined rows.
+     */
+    public RowRoll hashJoin(RowRoll other, String[] leftColumns, String[] rightColumns) {
+        if (leftColumns.length != rightColumns.length) {
+            throw new IllegalArgumentException("Expected the same number of columns to join by, but "
+                    + leftColumns.length + " and " + rightColumns.length + " found.");
+        }
+
+        if (new HashSet<>(Arrays.asList(rightColumns)).size() != rightColumns.length) {
+            throw new IllegalArgumentException("Expected distinct columns to join by, but "
+                    + Arrays.toString(rightColumns) + " found.");
+        }
+
+        if (keys == null || other.keys == null) {
+            return new RowRoll();
+        }
+
+        int[] leftColumnIndexes = new int[leftColumns.length];
+        for (int i = 0; i < leftColumns.length; i++) {
+            leftColumnIndexes[i] = getColumn(leftColumns[i]);
+            if (leftColumnIndexes[i] == -1) {
+                throw new IllegalArgumentException("Can't find column '" + leftColumns[i] + "' in the rowRoll.");
+            }
+        }
+
+        RowRollIndex index = other.index(rightColumns);
+
+        boolean[] joinColumns = new boolean[other.keys.length];
+        for (int column : index.getColumns()) {
+            joinColumns[column] = true;
+        }
+
+        int[] otherColumnIndexes = new int[other.keys.length - rightColumns.length];
+        String[] joinedKeys = Arrays.copyOf(keys, keys.length + otherColumnIndexes.length);
+        for (int i = 0, j = 0; i < other.keys.length; i++) {
+            if (!joinColumns[i]) {
+                if (getColumn(other.keys[i]) != -1) {
+                    throw new IllegalArgumentException("Both rowRolls contain column '" + other.keys[i]
+                            + "', use aliases to have unique column names.");
+                }
+                otherColumnIndexes[j] = i;
+                joinedKeys[keys.length + j] = other.keys[i];
+                ++j;
+            }
+        }
+
+        ArrayList<Object[]> joinedValuesList = new ArrayList<>();
+        if (valuesList != null) {
+            for (Object[] values : valuesList) {
+                index.forEach(values, leftColumnIndexes, otherIndex -> {
+                    Object[] otherValues = other.valuesList.get(otherIndex);
+                    Object[] joinedValues = Arrays.copyOf(values, joinedKeys.length);
+                    for (int i = 0; i < otherColumnIndexes.length; i++) {
+                        joinedValues[values.length + i] = otherValues[otherColumnIndexes[i]];
+                    }
+                    joinedValuesList.add(joinedValues);
+                });
+            }
+        }
+        joinedValuesList.trimToSize();
+
+        return new RowRoll(joinedKeys, joinedValuesList);
+    }
 }
@@ -0,0 +1,276 @@
+package org.jacuzzi.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hash index over the rows of {@link RowRoll}, use {@link RowRoll#index(String...)} to build it.
+ *
+ * Index over the single column of integral values stores keys as primitive longs
+ * in the open-addressing table, so neither building nor lookup boxes the values.
+ * Other indexes keep exactly one key instance per distinct value (so equal strings are shared).
+ *
+ * Rows with null in any of the key columns are not indexed and null keys are never found, like in SQL.
+ *
+ * Rows added to the rowRoll after the index has been built are not indexed.
+ */
+public class RowRollIndex {
+    private static final int[] EMPTY_INT_ARRAY = {};
+
+    private final int[] columns;
+
+    /**
+     * Next row with the same key or -1, rows in the chain go in ascending order.
+     */
+    private final int[] next;
+
+    /**
+     * Number of rows in the chain started by the head.
+     */
+    private final int[] chainLengths;
+
+    private final boolean longKeys;
+
+    private long[] tableKeys;
+    private int[] tableHeads;
+
+    private Map<Object, Integer> heads;
+
+    RowRollIndex(RowRoll rowRoll, String... columnNames) {
+        if (columnNames.length == 0) {
+            throw new IllegalArgumentException("Expected at least one column to build index.");
+        }
+
+        columns = new int[columnNames.length];
+        for (int i = 0; i < columnNames.length; i++) {
+            columns[i] = rowRoll.getColumn(columnNames[i]);
+            if (columns[i] == -1) {
+                throw new IllegalArgumentException("Can't find column '" + columnNames[i] + "' in the rowRoll.");
+            }
+        }
+
+        List<Object[]> valueList = rowRoll.getValueList();
+        int size = rowRoll.size();
+        next = new int[size];
+        chainLengths = new int[size];
+
+        longKeys = columns.length == 1 && hasOnlyIntegralValues(valueList, size, columns[0]);
+        if (longKeys) {
+            int capacity = Integer.highestOneBit(Math.max(2, size) * 2 - 1) << 1;
+            tableKeys = new long[capacity];
+            tableHeads = new int[capacity];
+            Arrays.fill(tableHeads, -1);
+        } else {
+            heads = new HashMap<>();
+        }
+
+        // Rows are added in reverse order to have chains in ascending order.
+        for (int index = size - 1; index >= 0; index--) {
+            Object[] values = valueList.get(index);
+            if (hasNull(values, columns)) {
+                continue;
+            }
+
+            if (longKeys) {
+                long value = ((Number) values[columns[0]]).longValue();
+                int position = findPosition(value);
+                tableKeys[position] = value;
+                tableHeads[position] = link(index, tableHeads[position]);
+            } else {
+                Object key = getKey(values);
+                Integer head = heads.get(key);
+                heads.put(key, link(index, head == null ? -1 : head));
+            }
+        }
+    }
+
+    /**
+     * @param values Key values, one per indexed column.
+     * @return Indexes of the rows with the given key in ascending order.
+     */
+    public int[] find(Object... values) {
+        if (values.length != columns.length) {
+            throw new IllegalArgumentException("Expected " + columns.length + " key values, but "
+                    + values.length + " found.");
+        }
+
+        for (Object value : values) {
+            if (value == null) {
+                return EMPTY_INT_ARRAY;
+            }
+        }
+
+        if (longKeys) {
+            Object value = values[0];
+            if (!isIntegral(value)) {
+                return EMPTY_INT_ARRAY;
+            }
+            return find(((Number) value).longValue());
+        }
+
+        Integer head = heads.get(columns.length == 1 ? normalize(values[0]) : new RowRollUtil.GroupKey(normalize(values)));
+        return head == null ? EMPTY_INT_ARRAY : toArray(head);
+    }
+
+    /**
+     * Finds rows by the integral key without boxing.
+     *
+     * @param value Key value.
+     * @return Indexes of the rows with the given key in ascending order.
+     */
+    public int[] find(long value) {
+        return toArray(findHead(value));
+    }
+
+    /**
+     * @param values Key values, one per indexed column.
+     * @return Index of the first row with the given key or -1.
+     */
+    public int findFirst(Object... values) {
+        int[] indexes = find(values);
+        return indexes.length == 0 ? -1 : indexes[0];
+    }
+
+    private int findHead(long value) {
+        if (longKeys) {
+            return tableHeads[findPosition(value)];
+        }
+
+        Integer head = columns.length == 1 ? heads.get(value) : null;
+        return head == null ? -1 : head;
+    }
+
+    int[] getColumns() {
+        return columns;
+    }
+
+    boolean isLongKeys() {
+        return longKeys;
+    }
+
+    /**
+     * Calls the visitor for each row with the given key in ascending order.
+     */
+    void forEach(Object[] values, int[] valueColumns, RowVisitor visitor) {
+        if (hasNull(values, valueColumns)) {
+            return;
+        }
+
+        int head;
+
+        if (longKeys) {
+            Object value = values[valueColumns[0]];
+            if (!isIntegral(value)) {
+                return;
+            }
+            head = findHead(((Number) value).longValue());
+        } else {
+            Object key;
+            if (valueColumns.length == 1) {
+                key = normalize(values[valueColumns[0]]);
+            } else {
+                Object[] keyValues = new Object[valueColumns.length];
+                for (int i = 0; i < valueColumns.length; i++) {
+                    keyValues[i] = normalize(values[valueColumns[i]]);
+                }
+                key = new RowRollUtil.GroupKey(keyValues);
+            }
+
+            Integer boxedHead = heads.get(key);
+            head = boxedHead == null ? -1 : boxedHead;
+        }
+
+        for (int index = head; index != -1; index = next[index]) {
+            visitor.visit(index);
+        }
+    }
+
+    private int link(int index, int head) {
+        next[index] = head;
+        chainLengths[index] = head == -1 ? 1 : chainLengths[head] + 1;
+        return index;
+    }
+
+    private int[] toArray(int head) {
+        if (head == -1) {
+            return EMPTY_INT_ARRAY;
+        }
+
+        int[] result = new int[chainLengths[head]];
+        for (int i = 0, index = head; index != -1; i++, index = next[index]) {
+            result[i] = index;
+        }
+        return result;
+    }
+
+    private int findPosition(long value) {
+        int mask = tableKeys.length - 1;
+        int position = hash(value) & mask;
+
+        while (tableHeads[position] != -1 && tableKeys[position] != value) {
+            position = (position + 1) & mask;
+        }
+
+        return position;
+    }
+
+    private Object getKey(Object[] values) {
+        if (columns.length == 1) {
+            return normalize(values[columns[0]]);
+        }
+
+        Object[] keyValues = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            keyValues[i] = normalize(values[columns[i]]);
+        }
+        return new RowRollUtil.GroupKey(keyValues);
+    }
+
+    static int hash(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        return (int) value;
+    }
+
+    private static boolean hasNull(Object[] values, int[] valueColumns) {
+        for (int column : valueColumns) {
+            if (values[column] == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasOnlyIntegralValues(List<Object[]> valueList, int size, int column) {
+        for (int index = 0; index < size; index++) {
+            Object value = valueList.get(index)[column];
+            if (value != null && !isIntegral(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isIntegral(Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+    }
+
+    private static Object normalize(Object value) {
+        return isIntegral(value) ? (Object) ((Number) value).longValue() : value;
+    }
+
+    private static Object[] normalize(Object[] values) {
+        Object[] result = new Object[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = normalize(values[i]);
+        }
+        return result;
+    }
+
+    interface RowVisitor {
+        void visit(int index);
+    }
+}
@@ -0,0 +1,533 @@
+package org.jacuzzi.core;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
+
+/**
+ * In-memory relational operators over {@link RowRoll}.
+ *
+ * Operators work directly on the value arrays of the rowRoll, so no {@link Row} instances are created.
+ * Each operator returns new RowRoll. Filtered and sorted rowRolls share value arrays with the source one,
+ * so don't modify rows of the source rowRoll after that.
+ *
+ * Large rowRolls are processed in parallel using the common fork-join pool.
+ */
+@SuppressWarnings("unused")
+public final class RowRollUtil {
+    /**
+     * Row count starting from which operators run in parallel.
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 15;
+
+    private RowRollUtil() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @param rowRoll   Source rows.
+     * @param predicate Predicate to be tested for each row.
+     * @return Rows matching the predicate in the original order.
+     */
+    public static RowRoll filter(RowRoll rowRoll, RowPredicate predicate) {
+        if (rowRoll.getKeys() == null) {
+            return new RowRoll();
+        }
+
+        List<Object[]> valueList = getValueList(rowRoll);
+        IntStream indexes = IntStream.range(0, valueList.size());
+        if (valueList.size() >= PARALLEL_THRESHOLD) {
+            indexes = indexes.parallel();
+        }
+
+        int[] matchedIndexes = indexes.filter(index -> predicate.test(rowRoll, index)).toArray();
+
+        ArrayList<Object[]> result = new ArrayList<>(matchedIndexes.length);
+        for (int matchedIndex : matchedIndexes) {
+            result.add(valueList.get(matchedIndex));
+        }
+
+        return new RowRoll(rowRoll.getKeys(), result);
+    }
+
+    /**
+     * @param rowRoll Source rows.
+     * @param columns Columns to keep.
+     * @return Rows containing only the given columns in the given order.
+     */
+    public static RowRoll project(RowRoll rowRoll, String... columns) {
+        if (rowRoll.getKeys() == null) {
+            return new RowRoll();
+        }
+
+        int[] columnIndexes = getColumnIndexes(rowRoll, columns);
+        List<Object[]> valueList = getValueList(rowRoll);
+
+        Object[][] result = new Object[valueList.size()][];
+        if (result.length >= PARALLEL_THRESHOLD) {
+            Arrays.parallelSetAll(result, index -> project(valueList.get(index), columnIndexes));
+        } else {
+            Arrays.setAll(result, index -> project(valueList.get(index), columnIndexes));
+        }
+
+        return new RowRoll(columns.clone(), new ArrayList<>(Arrays.asList(result)));
+    }
+
+    /**
+     * Stable sort by several keys. Nulls go first in ascending order.
+     *
+     * @param rowRoll  Source rows.
+     * @param sortKeys Keys to compare rows by, the first key is the most significant.
+     * @return Sorted rows.
+     */
+    public static RowRoll sort(RowRoll rowRoll, SortKey... sortKeys) {
+        if (rowRoll.getKeys() == null) {
+            return new RowRoll();
+        }
+
+        int[] columnIndexes = new int[sortKeys.length];
+        for (int i = 0; i < sortKeys.length; i++) {
+            columnIndexes[i] = getColumnIndex(rowRoll, sortKeys[i].column);
+        }
+
+        Comparator<Object[]> comparator = (valuesA, valuesB) -> {
+            for (int i = 0; i < columnIndexes.length; i++) {
+                int comparison = compareValues(valuesA[columnIndexes[i]], valuesB[columnIndexes[i]]);
+                if (comparison != 0) {
+                    return sortKeys[i].descending ? -comparison : comparison;
+                }
+            }
+            return 0;
+        };
+
+        Object[][] result = getValueList(rowRoll).toArray(new Object[0][]);
+        if (result.length >= PARALLEL_THRESHOLD) {
+            Arrays.parallelSort(result, comparator);
+        } else {
+            Arrays.sort(result, comparator);
+        }
+
+        return new RowRoll(rowRoll.getKeys(), new ArrayList<>(Arrays.asList(result)));
+    }
+
+    /**
+     * Hash group-by. Result contains the group columns followed by the aggregate columns,
+     * groups go in the order of their first appearance.
+     *
+     * @param rowRoll    Source rows.
+     * @param columns    Columns to group by.
+     * @param aggregates Aggregates to calculate for each group.
+     * @return One row per group.
+     */
+    public static RowRoll groupBy(RowRoll rowRoll, String[] columns, Aggregate... aggregates) {
+        String[] keys = new String[columns.length + aggregates.length];
+        System.arraycopy(columns, 0, keys, 0, columns.length);
+        for (int i = 0; i < aggregates.length; i++) {
+            keys[columns.length + i] = aggregates[i].label;
+        }
+
+        if (rowRoll.getKeys() == null) {
+            return new RowRoll(keys, new ArrayList<>());
+        }
+
+        int[] columnIndexes = getColumnIndexes(rowRoll, columns);
+        int[] aggregateColumnIndexes = new int[aggregates.length];
+        for (int i = 0; i < aggregates.length; i++) {
+            aggregateColumnIndexes[i] = aggregates[i].column == null ? -1 : getColumnIndex(rowRoll, aggregates[i].column);
+        }
+
+        List<Object[]> valueList = getValueList(rowRoll);
+        GroupByTask task = new GroupByTask(
+                valueList, columnIndexes, aggregates, aggregateColumnIndexes, 0, valueList.size()
+        );
+        Map<Object, Accumulator[]> groups = valueList.size() >= PARALLEL_THRESHOLD ? task.invoke() : task.compute();
+
+        ArrayList<Object[]> result = new ArrayList<>(groups.size());
+        for (Map.Entry<Object, Accumulator[]> group : groups.entrySet()) {
+            Object[] values = new Object[keys.length];
+
+            if (columns.length == 1) {
+                values[0] = group.getKey();
+            } else {
+                ((GroupKey) group.getKey()).copyTo(values);
+            }
+
+            Accumulator[] accumulators = group.getValue();
+            for (int i = 0; i < accumulators.length; i++) {
+                values[columns.length + i] = accumulators[i].getResult();
+            }
+
+            result.add(values);
+        }
+
+        return new RowRoll(keys, result);
+    }
+
+    /**
+     * @param rowRoll Source rows.
+     * @param columns Columns to keep, all the columns if empty.
+     * @return Distinct rows (projected to the given columns) in the order of their first appearance.
+     */
+    public static RowRoll distinct(RowRoll rowRoll, String... columns) {
+        if (rowRoll.getKeys() == null) {
+            return new RowRoll();
+        }
+
+        return groupBy(rowRoll, columns.length == 0 ? rowRoll.getKeys() : columns);
+    }
+
+    private static List<Object[]> getValueList(RowRoll rowRoll) {
+        List<Object[]> valueList = rowRoll.getValueList();
+        return valueList == null ? Collections.emptyList() : valueList;
+    }
+
+    private static int getColumnIndex(RowRoll rowRoll, String column) {
+        int index = rowRoll.getColumn(column);
+        if (index == -1) {
+            throw new IllegalArgumentException("Can't find column '" + column + "' in the rowRoll.");
+        }
+        return index;
+    }
+
+    private static int[] getColumnIndexes(RowRoll rowRoll, String[] columns) {
+        int[] columnIndexes = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            columnIndexes[i] = getColumnIndex(rowRoll, columns[i]);
+        }
+        return columnIndexes;
+    }
+
+    private static Object[] project(Object[] values, int[] columnIndexes) {
+        Object[] result = new Object[columnIndexes.length];
+        for (int i = 0; i < columnIndexes.length; i++) {
+            result[i] = values[columnIndexes[i]];
+        }
+        return result;
+    }
+
+    private static Object getGroupKey(Object[] values, int[] columnIndexes) {
+        if (columnIndexes.length == 1) {
+            return values[columnIndexes[0]];
+        } else {
+            return new GroupKey(project(values, columnIndexes));
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static int compareValues(Object valueA, Object valueB) {
+        if (valueA == valueB) {
+            return 0;
+        }
+        if (valueA == null) {
+            return -1;
+        }
+        if (valueB == null) {
+            return 1;
+        }
+
+        if (valueA instanceof Number && valueB instanceof Number && valueA.getClass() != valueB.getClass()) {
+            return toBigDecimal((Number) valueA).compareTo(toBigDecimal((Number) valueB));
+        }
+
+        return ((Comparable) valueA).compareTo(valueB);
+    }
+
+    private static boolean isIntegral(Number number) {
+        return number instanceof Long || number instanceof Integer
+                || number instanceof Short || number instanceof Byte;
+    }
+
+    private static BigDecimal toBigDecimal(Number number) {
+        if (number instanceof BigDecimal) {
+            return (BigDecimal) number;
+        } else if (number instanceof BigInteger) {
+            return new BigDecimal((BigInteger) number);
+        } else if (isIntegral(number)) {
+            return BigDecimal.valueOf(number.longValue());
+        } else {
+            return BigDecimal.valueOf(number.doubleValue());
+        }
+    }
+
+    /**
+     * Row predicate for {@link #filter(RowRoll, RowPredicate)}.
+     * Use {@link RowRoll#getValue(int, int)} to access values without creating a row.
+     */
+    public interface RowPredicate {
+        boolean test(RowRoll rowRoll, int index);
+    }
+
+    public static final class SortKey {
+        private final String column;
+        private final boolean descending;
+
+        private SortKey(String column, boolean descending) {
+            this.column = column;
+            this.descending = descending;
+        }
+
+        public static SortKey asc(String column) {
+            return new SortKey(column, false);
+        }
+
+        public static SortKey desc(String column) {
+            return new SortKey(column, true);
+        }
+    }
+
+    /**
+     * Aggregate for {@link #groupBy(RowRoll, String[], Aggregate...)}. Nulls are ignored like in SQL.
+     */
+    public static final class Aggregate {
+        private final AggregateType type;
+        private final String column;
+        private final String label;
+
+        private Aggregate(AggregateType type, String column, String label) {
+            this.type = type;
+            this.column = column;
+            this.label = label;
+        }
+
+        /**
+         * @return COUNT(*) aggregate.
+         */
+        public static Aggregate count() {
+            return new Aggregate(AggregateType.COUNT, null, "COUNT(*)");
+        }
+
+        /**
+         * @param column Column to count non-null values in.
+         * @return COUNT(column) aggregate.
+         */
+        public static Aggregate count(String column) {
+            return new Aggregate(AggregateType.COUNT, column, "COUNT(" + column + ')');
+        }
+
+        /**
+         * Sum is {@code Long} for integral values, {@code Double} if any value is floating point and
+         * {@code BigDecimal} if any value is {@code BigDecimal} or {@code BigInteger}.
+         *
+         * @param column Column to sum.
+         * @return SUM(column) aggregate.
+         */
+        public static Aggregate sum(String column) {
+            return new Aggregate(AggregateType.SUM, column, "SUM(" + column + ')');
+        }
+
+        public static Aggregate min(String column) {
+            return new Aggregate(AggregateType.MIN, column, "MIN(" + column + ')');
+        }
+
+        public static Aggregate max(String column) {
+            return new Aggregate(AggregateType.MAX, column, "MAX(" + column + ')');
+        }
+
+        /**
+         * @param label Column label for the aggregate in the result.
+         * @return The same aggregate with the given label.
+         */
+        public Aggregate as(String label) {
+            return new Aggregate(type, column, label);
+        }
+    }
+
+    private enum AggregateType {
+        COUNT,
+        SUM,
+        MIN,
+        MAX
+    }
+
+    static final class GroupKey {
+        private final Object[] values;
+        private final int hashCode;
+
+        GroupKey(Object[] values) {
+            this.values = values;
+            this.hashCode = Arrays.hashCode(values);
+        }
+
+        private void copyTo(Object[] target) {
+            System.arraycopy(values, 0, target, 0, values.length);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof GroupKey && hashCode == ((GroupKey) o).hashCode
+                    && Arrays.equals(values, ((GroupKey) o).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static final class Accumulator {
+        private final AggregateType type;
+        private long count;
+        private long longSum;
+        private double doubleSum;
+        private BigDecimal decimalSum;
+        private boolean floating;
+        private Object value;
+
+        private Accumulator(AggregateType type) {
+            this.type = type;
+        }
+
+        private void add(Object item) {
+            if (item == null) {
+                return;
+            }
+
+            ++count;
+
+            switch (type) {
+                case SUM:
+                    addToSum((Number) item);
+                    break;
+                case MIN:
+                    if (value == null || compareValues(item, value) < 0) {
+                        value = item;
+                    }
+                    break;
+                case MAX:
+                    if (value == null || compareValues(item, value) > 0) {
+                        value = item;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void addToSum(Number number) {
+            if (decimalSum != null || number instanceof BigDecimal || number instanceof BigInteger) {
+                if (decimalSum == null) {
+                    decimalSum = floating ? BigDecimal.valueOf(doubleSum) : BigDecimal.valueOf(longSum);
+                }
+                decimalSum = decimalSum.add(toBigDecimal(number));
+            } else if (floating || !isIntegral(number)) {
+                if (!floating) {
+                    floating = true;
+                    doubleSum = longSum;
+                }
+                doubleSum += number.doubleValue();
+            } else {
+                longSum += number.longValue();
+            }
+        }
+
+        private void merge(Accumulator accumulator) {
+            if (accumulator.count == 0) {
+                return;
+            }
+
+            switch (type) {
+                case SUM:
+                    if (accumulator.decimalSum != null) {
+                        addToSum(accumulator.decimalSum);
+                    } else if (accumulator.floating) {
+                        addToSum(accumulator.doubleSum);
+                    } else {
+                        addToSum(accumulator.longSum);
+                    }
+                    break;
+                case MIN:
+                case MAX:
+                    add(accumulator.value);
+                    --count;
+                    break;
+                default:
+                    break;
+            }
+
+            count += accumulator.count;
+        }
+
+        private Object getResult() {
+            switch (type) {
+                case COUNT:
+                    return count;
+                case SUM:
+                    if (count == 0) {
+                        return null;
+                    }
+                    return decimalSum != null ? decimalSum : floating ? (Object) doubleSum : (Object) longSum;
+                default:
+                    return value;
+            }
+        }
+    }
+
+    private static final class GroupByTask extends RecursiveTask<Map<Object, Accumulator[]>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Object[]> valueList;
+        private final int[] columnIndexes;
+        private final Aggregate[] aggregates;
+        private final int[] aggregateColumnIndexes;
+        private final int from;
+        private final int to;
+
+        private GroupByTask(List<Object[]> valueList, int[] columnIndexes, Aggregate[] aggregates,
+                            int[] aggregateColumnIndexes, int from, int to) {
+            this.valueList = valueList;
+            this.columnIndexes = columnIndexes;
+            this.aggregates = aggregates;
+            this.aggregateColumnIndexes = aggregateColumnIndexes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Map<Object, Accumulator[]> compute() {
+            if (to - from >= PARALLEL_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                GroupByTask left = new GroupByTask(valueList, columnIndexes, aggregates, aggregateColumnIndexes, from, middle);
+                GroupByTask right = new GroupByTask(valueList, columnIndexes, aggregates, aggregateColumnIndexes, middle, to);
+                right.fork();
+                Map<Object, Accumulator[]> result = left.compute();
+                merge(result, right.join());
+                return result;
+            }
+
+            Map<Object, Accumulator[]> result = new LinkedHashMap<>();
+            for (int index = from; index < to; index++) {
+                Object[] values = valueList.get(index);
+                Accumulator[] accumulators = result.computeIfAbsent(
+                        getGroupKey(values, columnIndexes), key -> newAccumulators()
+                );
+                for (int i = 0; i < accumulators.length; i++) {
+                    accumulators[i].add(aggregateColumnIndexes[i] == -1 ? Boolean.TRUE : values[aggregateColumnIndexes[i]]);
+                }
+            }
+            return result;
+        }
+
+        private Accumulator[] newAccumulators() {
+            Accumulator[] accumulators = new Accumulator[aggregates.length];
+            for (int i = 0; i < aggregates.length; i++) {
+                accumulators[i] = new Accumulator(aggregates[i].type);
+            }
+            return accumulators;
+        }
+
+        private static void merge(Map<Object, Accumulator[]> target, Map<Object, Accumulator[]> source) {
+            for (Map.Entry<Object, Accumulator[]> entry : source.entrySet()) {
+                Accumulator[] accumulators = target.get(entry.getKey());
+                if (accumulators == null) {
+                    target.put(entry.getKey(), entry.getValue());
+                } else {
+                    for (int i = 0; i < accumulators.length; i++) {
+                        accumulators[i].merge(entry.getValue()[i]);
+                    }
+                }
+            }
+        }
+    }
+}
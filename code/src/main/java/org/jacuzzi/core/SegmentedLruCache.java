@@ -0,0 +1,349 @@
+package org.jacuzzi.core;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Size- and weight-bounded cache with segmented LRU eviction: new entries go to the probation segment,
+ * entries hit there are promoted to the protected segment. So the entries which are accessed once
+ * don't flush the frequently accessed ones.
+ *
+ * Keys are spread over several independently locked parts to reduce contention.
+ *
+ * Invalidation wins over concurrent loading: the value loaded by the query which started
+ * before an invalidation of its key is not cached.
+ *
+ * @param <K> Key type.
+ * @param <V> Value type, values should not be modified after they are put in the cache.
+ */
+final class SegmentedLruCache<K, V> {
+    private static final Logger logger = Logger.getLogger(SegmentedLruCache.class);
+
+    private static final int PART_COUNT = 16;
+
+    /**
+     * Approximate heap size of the entry without the value.
+     */
+    private static final long ENTRY_OVERHEAD_BYTES = 96;
+
+    private final CacheSettings settings;
+    private final Weigher<? super V> weigher;
+    private final List<Part> parts;
+
+    private final InvalidationGenerations invalidationGenerations = new InvalidationGenerations();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder invalidationCount = new LongAdder();
+    private final LongAdder notCacheableCount = new LongAdder();
+
+    SegmentedLruCache(CacheSettings settings, Weigher<? super V> weigher) {
+        this.settings = settings;
+        this.weigher = weigher;
+
+        int partCount = Math.min(PART_COUNT, Integer.highestOneBit(settings.getMaxSize()));
+        parts = new ArrayList<>(partCount);
+        for (int i = 0; i < partCount; i++) {
+            parts.add(new Part((settings.getMaxSize() + partCount - 1) / partCount,
+                    settings.getMaxWeight() == Long.MAX_VALUE ? Long.MAX_VALUE : settings.getMaxWeight() / partCount));
+        }
+    }
+
+    /**
+     * @param key    Key.
+     * @param loader Loads value if it is not cached, null values are not cached.
+     * @return Cached or loaded value.
+     */
+    V get(K key, Function<? super K, ? extends V> loader) {
+        return get(key, null, loader);
+    }
+
+    /**
+     * @param key       Key.
+     * @param validator Cached values which don't pass it are removed, null means all values are valid.
+     * @param loader    Loads value if it is not cached, null values are not cached.
+     * @return Cached or loaded value.
+     */
+    V get(K key, Predicate<? super V> validator, Function<? super K, ? extends V> loader) {
+        Part part = getPart(key);
+        long generation = invalidationGenerations.get(key.hashCode());
+        long now = System.currentTimeMillis();
+
+        Entry<V> entry;
+        boolean refresh = false;
+
+        synchronized (part) {
+            entry = part.get(key);
+
+            if (entry != null && now >= entry.expirationTime) {
+                part.remove(key);
+                entry = null;
+            }
+
+            if (entry != null && validator != null && !validator.test(entry.value)) {
+                part.remove(key);
+                entry = null;
+                invalidationCount.increment();
+            }
+
+            if (entry != null && now >= entry.refreshTime && !entry.refreshing) {
+                entry.refreshing = true;
+                refresh = true;
+            }
+        }
+
+        if (entry != null) {
+            hitCount.increment();
+            if (refresh) {
+                scheduleRefresh(key, loader, entry);
+            }
+            return entry.value;
+        }
+
+        missCount.increment();
+        V value = loader.apply(key);
+        if (value != null) {
+            put(key, value, generation);
+        }
+        return value;
+    }
+
+    /**
+     * @param key Key.
+     * @return Cached value or null, doesn't affect statistics.
+     */
+    V getIfPresent(K key) {
+        Part part = getPart(key);
+        synchronized (part) {
+            Entry<V> entry = part.get(key);
+            return entry == null || System.currentTimeMillis() >= entry.expirationTime ? null : entry.value;
+        }
+    }
+
+    /**
+     * @param key Key.
+     * @return Current invalidation generation of the key, pass it to {@link #put(Object, Object, long)}.
+     */
+    long getInvalidationGeneration(K key) {
+        return invalidationGenerations.get(key.hashCode());
+    }
+
+    /**
+     * Puts the value unless the key was invalidated since the generation.
+     * Values heavier than the weight limit of the part are not cached, otherwise they would evict
+     * the other entries of the part and then themselves.
+     */
+    void put(K key, V value, long generation) {
+        Part part = getPart(key);
+        Entry<V> entry = newEntry(value);
+
+        if (entry.weight > part.maxWeight) {
+            notCacheableCount.increment();
+            synchronized (part) {
+                // The previous value is stale now.
+                part.remove(key);
+            }
+            return;
+        }
+
+        synchronized (part) {
+            if (invalidationGenerations.get(key.hashCode()) == generation) {
+                part.put(key, entry);
+            }
+        }
+    }
+
+    void invalidate(K key) {
+        invalidationGenerations.invalidate(key.hashCode());
+        invalidationCount.increment();
+
+        Part part = getPart(key);
+        synchronized (part) {
+            part.remove(key);
+        }
+    }
+
+    void invalidateAll() {
+        invalidationGenerations.invalidateAll();
+        invalidationCount.increment();
+
+        for (Part part : parts) {
+            synchronized (part) {
+                part.clear();
+            }
+        }
+    }
+
+    CacheStatistics getStatistics() {
+        long size = 0;
+        long weight = 0;
+
+        for (Part part : parts) {
+            synchronized (part) {
+                size += part.probation.size() + part.protectedEntries.size();
+                weight += part.weight;
+            }
+        }
+
+        return new CacheStatistics(hitCount.sum(), missCount.sum(), evictionCount.sum(), invalidationCount.sum(),
+                notCacheableCount.sum(), size, weight);
+    }
+
+    private void scheduleRefresh(K key, Function<? super K, ? extends V> loader, Entry<V> entry) {
+        long generation = invalidationGenerations.get(key.hashCode());
+
+        try {
+            ExecutorUtil.getBackgroundExecutor().submit(() -> {
+                try {
+                    V value = loader.apply(key);
+                    if (value == null) {
+                        Part part = getPart(key);
+                        synchronized (part) {
+                            if (part.get(key) == entry) {
+                                part.remove(key);
+                            }
+                        }
+                    } else {
+                        put(key, value, generation);
+                    }
+                } catch (RuntimeException e) {
+                    logger.warn("Can't refresh cached value for key " + key + '.', e);
+                } finally {
+                    entry.refreshing = false;
+                }
+            });
+        } catch (RuntimeException e) {
+            entry.refreshing = false;
+            logger.warn("Can't schedule refresh of cached value for key " + key + '.', e);
+        }
+    }
+
+    private Entry<V> newEntry(V value) {
+        long now = System.currentTimeMillis();
+        long timeToLive = settings.getTimeToLiveMillis();
+        long staleWhileRevalidate = settings.getStaleWhileRevalidateMillis();
+        double refreshAheadRatio = settings.getRefreshAheadRatio();
+
+        long refreshTime;
+        if (refreshAheadRatio > 0) {
+            refreshTime = now + (long) (timeToLive * refreshAheadRatio);
+        } else {
+            refreshTime = staleWhileRevalidate > 0 ? now + timeToLive : Long.MAX_VALUE;
+        }
+
+        return new Entry<>(value, ENTRY_OVERHEAD_BYTES + weigher.weigh(value),
+                now + timeToLive + staleWhileRevalidate, refreshTime);
+    }
+
+    private Part getPart(K key) {
+        return parts.get(RowRollIndex.hash(key.hashCode()) & (parts.size() - 1));
+    }
+
+    interface Weigher<V> {
+        /**
+         * @param value Value.
+         * @return Approximate heap size of the value in bytes.
+         */
+        long weigh(V value);
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long weight;
+        private final long expirationTime;
+        private final long refreshTime;
+        private volatile boolean refreshing;
+
+        private Entry(V value, long weight, long expirationTime, long refreshTime) {
+            this.value = value;
+            this.weight = weight;
+            this.expirationTime = expirationTime;
+            this.refreshTime = refreshTime;
+        }
+    }
+
+    private final class Part {
+        private final int maxSize;
+        private final int maxProtectedSize;
+        private final long maxWeight;
+
+        private final LinkedHashMap<K, Entry<V>> probation = new LinkedHashMap<>();
+        private final LinkedHashMap<K, Entry<V>> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+        private long weight;
+
+        private Part(int maxSize, long maxWeight) {
+            this.maxSize = maxSize;
+            this.maxProtectedSize = Math.max(1, maxSize * 4 / 5);
+            this.maxWeight = maxWeight;
+        }
+
+        /**
+         * Finds the entry and promotes it to the protected segment.
+         */
+        private Entry<V> get(K key) {
+            Entry<V> entry = protectedEntries.get(key);
+            if (entry != null) {
+                return entry;
+            }
+
+            entry = probation.remove(key);
+            if (entry != null) {
+                protectedEntries.put(key, entry);
+                if (protectedEntries.size() > maxProtectedSize) {
+                    Iterator<Map.Entry<K, Entry<V>>> iterator = protectedEntries.entrySet().iterator();
+                    Map.Entry<K, Entry<V>> eldest = iterator.next();
+                    iterator.remove();
+                    probation.put(eldest.getKey(), eldest.getValue());
+                }
+            }
+
+            return entry;
+        }
+
+        private void put(K key, Entry<V> entry) {
+            remove(key);
+            probation.put(key, entry);
+            weight += entry.weight;
+            evict();
+        }
+
+        private void remove(K key) {
+            Entry<V> entry = probation.remove(key);
+            if (entry == null) {
+                entry = protectedEntries.remove(key);
+            }
+            if (entry != null) {
+                weight -= entry.weight;
+            }
+        }
+
+        private void clear() {
+            probation.clear();
+            protectedEntries.clear();
+            weight = 0;
+        }
+
+        private void evict() {
+            while (probation.size() + protectedEntries.size() > maxSize || weight > maxWeight) {
+                Map<K, Entry<V>> victims = probation.isEmpty() ? protectedEntries : probation;
+                if (victims.isEmpty()) {
+                    break;
+                }
+
+                Iterator<Map.Entry<K, Entry<V>>> iterator = victims.entrySet().iterator();
+                weight -= iterator.next().getValue().weight;
+                iterator.remove();
+                evictionCount.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.jacuzzi.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Shares single execution of identical read queries which are in flight at the same time.
+ * Queries are identical if they have equal SQL and arguments.
+ *
+ * The result of the execution is never returned to more than one caller: if other callers
+ * joined the execution, each of them (including the one which executed the query) gets a copy.
+ */
+final class SingleFlight {
+    private final ConcurrentMap<QueryKey, Flight> flights = new ConcurrentHashMap<>();
+
+    private final AtomicLong executionCount = new AtomicLong();
+    private final AtomicLong suppressedExecutionCount = new AtomicLong();
+
+    /**
+     * @param query    SQL query.
+     * @param args     Query arguments.
+     * @param executor Executes the query.
+     * @param copier   Returns a copy of the result.
+     * @param <R>      Result type.
+     * @return Result of the own or shared execution.
+     */
+    @SuppressWarnings("unchecked")
+    <R> R execute(String query, Object[] args, Supplier<R> executor, UnaryOperator<R> copier) {
+        QueryKey key = new QueryKey(query, args);
+
+        while (true) {
+            Flight flight = new Flight();
+            Flight existingFlight = flights.putIfAbsent(key, flight);
+
+            if (existingFlight == null) {
+                executionCount.incrementAndGet();
+                return lead(key, flight, executor, copier);
+            }
+
+            if (existingFlight.join()) {
+                suppressedExecutionCount.incrementAndGet();
+                return copier.apply((R) existingFlight.await());
+            }
+
+            // The flight has been finished just now, try again.
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> R lead(QueryKey key, Flight flight, Supplier<R> executor, UnaryOperator<R> copier) {
+        int followerCount;
+
+        try {
+            flight.result = executor.get();
+        } catch (Throwable e) {
+            // Errors are recorded too, otherwise the followers would wait forever.
+            flight.failure = e;
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+            followerCount = flight.close();
+            flight.done.countDown();
+        }
+
+        return followerCount == 0 ? (R) flight.result : copier.apply((R) flight.result);
+    }
+
+    /**
+     * @return Number of executed queries.
+     */
+    long getExecutionCount() {
+        return executionCount.get();
+    }
+
+    /**
+     * @return Number of queries which were not executed, because they joined identical query in flight.
+     */
+    long getSuppressedExecutionCount() {
+        return suppressedExecutionCount.get();
+    }
+
+    private static final class Flight {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private int followerCount;
+        private boolean closed;
+        private Object result;
+        private Throwable failure;
+
+        private synchronized boolean join() {
+            if (closed) {
+                return false;
+            }
+            ++followerCount;
+            return true;
+        }
+
+        private synchronized int close() {
+            closed = true;
+            return followerCount;
+        }
+
+        private Object await() {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DatabaseException("Interrupted while waiting for identical query in flight.", e);
+            }
+
+            if (failure != null) {
+                throw new DatabaseException("Identical query in flight failed.", failure);
+            }
+
+            return result;
+        }
+    }
+}
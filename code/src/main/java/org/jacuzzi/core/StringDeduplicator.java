@@ -0,0 +1,112 @@
+package org.jacuzzi.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replaces equal strings in the same column of the result set by a single instance.
+ * It makes large results of low-cardinality columns (statuses, types, enum names)
+ * much more compact in heap.
+ *
+ * Each column has its own bounded table, which is dropped as soon as the column
+ * turns out to be high-cardinality. Use -Djacuzzi.deduplicateStrings=false to disable it.
+ *
+ * Single instance is used to read single result set, so it is not thread-safe.
+ */
+@SuppressWarnings("AccessOfSystemProperties")
+class StringDeduplicator {
+    private static final boolean ENABLED = !"false".equals(System.getProperty("jacuzzi.deduplicateStrings"));
+
+    /**
+     * Column having more distinct strings is considered as high-cardinality.
+     */
+    private static final int MAX_DISTINCT_STRING_COUNT = 1024;
+
+    /**
+     * After that many strings in the column the hit ratio is checked.
+     */
+    private static final int SAMPLE_SIZE = 4096;
+
+    private static final double MIN_HIT_RATIO = 0.5;
+
+    /**
+     * Approximate size of String instance without its characters: object and array headers and fields.
+     */
+    private static final int STRING_OVERHEAD_BYTES = 40;
+
+    private static final AtomicLong savedBytes = new AtomicLong();
+
+    private final ColumnTable[] columnTables;
+    private long localSavedBytes;
+
+    StringDeduplicator(int columnCount) {
+        columnTables = new ColumnTable[columnCount];
+    }
+
+    /**
+     * @param column Column index (0-based).
+     * @param value  Value of the column.
+     * @return The same value or equal string which has been returned before for the column.
+     */
+    Object deduplicate(int column, Object value) {
+        if (!ENABLED || !(value instanceof String)) {
+            return value;
+        }
+
+        ColumnTable columnTable = columnTables[column];
+        if (columnTable == null) {
+            columnTable = new ColumnTable();
+            columnTables[column] = columnTable;
+        }
+
+        if (columnTable.strings == null) {
+            return value;
+        }
+
+        String string = (String) value;
+        ++columnTable.lookupCount;
+
+        String result = columnTable.strings.get(string);
+        if (result != null) {
+            ++columnTable.hitCount;
+            localSavedBytes += STRING_OVERHEAD_BYTES + string.length();
+        } else {
+            if (columnTable.strings.size() >= MAX_DISTINCT_STRING_COUNT) {
+                columnTable.strings = null;
+                return value;
+            }
+            columnTable.strings.put(string, string);
+            result = string;
+        }
+
+        if (columnTable.lookupCount == SAMPLE_SIZE && columnTable.hitCount < SAMPLE_SIZE * MIN_HIT_RATIO) {
+            columnTable.strings = null;
+        }
+
+        return result;
+    }
+
+    /**
+     * Call it after reading the result set to update the total statistics.
+     */
+    void close() {
+        if (localSavedBytes > 0) {
+            savedBytes.addAndGet(localSavedBytes);
+            localSavedBytes = 0;
+        }
+    }
+
+    /**
+     * @return Approximate number of heap bytes saved by deduplication since the start.
+     */
+    static long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    private static final class ColumnTable {
+        private Map<String, String> strings = new HashMap<>();
+        private int lookupCount;
+        private int hitCount;
+    }
+}
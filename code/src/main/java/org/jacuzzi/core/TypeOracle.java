@@ -12,6 +12,11 @@ import java.util.NoSuchElementException;
  * @author Mike Mirzayanov
  */
 public abstract class TypeOracle<T> {
+    /**
+     * Name of the column with the row hash, see {@link #getSelectWithRowHashSql(Dialect)}.
+     */
+    static final String ROW_HASH_COLUMN = "jacuzzi_row_hash";
+
     public abstract String getIdColumn();
 
     public abstract String getTableName();
@@ -34,6 +39,129 @@ public abstract class TypeOracle<T> {
 
     public abstract String getQuerySetSql();
 
+    /**
+     * @return "SELECT fields FROM table " to be followed by WHERE section.
+     */
+    abstract String getSelectSql();
+
+    /**
+     * @return "SELECT id FROM table " to be followed by WHERE section.
+     */
+    abstract String getSelectIdSql();
+
+    /**
+     * @return "SELECT fields FROM table WHERE id = ?".
+     */
+    abstract String getFindByIdSql();
+
+    /**
+     * @param idCount Number of ids.
+     * @return "SELECT fields FROM table WHERE id IN (?, ...)".
+     */
+    abstract String getFindByIdsSql(int idCount);
+
+    /**
+     * @param column     Column name.
+     * @param valueCount Number of values.
+     * @return "SELECT fields FROM table WHERE column IN (?, ...) ORDER BY id".
+     */
+    abstract String getFindByColumnValuesSql(String column, int valueCount);
+
+    /**
+     * @param column Column name.
+     * @return "SELECT fields FROM table WHERE column &gt;= ?".
+     */
+    abstract String getFindByColumnAtLeastSql(String column);
+
+    /**
+     * @param afterId   Add condition "id > ?".
+     * @param predicate Additional condition or null.
+     * @return "SELECT fields FROM table WHERE (predicate) AND id > ? ORDER BY id LIMIT ?".
+     */
+    abstract String getScanSql(boolean afterId, String predicate);
+
+    /**
+     * @return "SELECT MIN(id), MAX(id) FROM table " to be followed by WHERE section.
+     */
+    abstract String getMinMaxIdSql();
+
+    /**
+     * @return "id &gt;= ? AND id &lt;= ?".
+     */
+    abstract String getIdRangePredicate();
+
+    /**
+     * The row hash is computed by the database over the values of all selected columns
+     * (see {@link #ROW_HASH_COLUMN}), so it doesn't depend on the JDBC types of the values.
+     *
+     * @param dialect Dialect.
+     * @return "SELECT fields, row hash FROM table " to be followed by WHERE section,
+     *         or {@link #getSelectSql()} if the dialect can't compute row hashes.
+     */
+    abstract String getSelectWithRowHashSql(Dialect dialect);
+
+    /**
+     * Checksums of the buckets of ids in the range: the bucket of id is (id - from) / width.
+     *
+     * @param dialect Dialect.
+     * @return "SELECT bucket, COUNT(1), SUM(id), SUM(row hash) ... WHERE id &gt;= ? AND id &lt; ?
+     *         GROUP BY bucket" with parameters from, width, from, to, the sum of row hashes is 0
+     *         if the dialect can't compute row hashes.
+     */
+    abstract String getIdBucketChecksumSql(Dialect dialect);
+
+    /**
+     * @return "SELECT COUNT(id) FROM table " to be followed by WHERE section.
+     */
+    abstract String getCountSql();
+
+    /**
+     * @return "SELECT COUNT(1) FROM table WHERE id = ?".
+     */
+    abstract String getCountByIdSql();
+
+    /**
+     * @param includeId Include id into the field list.
+     * @return "INSERT INTO table (fields) VALUES " to be followed by values patterns.
+     */
+    abstract String getInsertSql(boolean includeId);
+
+    /**
+     * @return "UPDATE table SET field = ?, ... WHERE id = ?".
+     */
+    abstract String getUpdateByIdSql();
+
+    /**
+     * @param changeMask Bit i is set if i-th value of {@link #getQuerySetArguments(Object)} should be set,
+     *                   at most 64 values are supported.
+     * @return "UPDATE table SET field = ?, ... WHERE id = ?" for the masked fields only.
+     */
+    abstract String getUpdateByIdSql(long changeMask);
+
+    /**
+     * Builds the statement which inserts rows or updates them if rows with the same ids exist.
+     * Arguments are {@link #getValueListForInsert(boolean, Object)} with includeId=true
+     * for each row, so it is applicable to the instances with reasonable ids only.
+     * MySQL statement updates the rows colliding by any unique key, so check
+     * {@link Jacuzzi#isMySqlUpsertApplicable(String)} before using it.
+     *
+     * @param dialect  SQL dialect.
+     * @param rowCount Number of rows.
+     * @return Upsert statement or null if it is not supported for the dialect or the class
+     *         (i.e. there is updatable field which is not inserted).
+     */
+    abstract String getUpsertSql(Dialect dialect, int rowCount);
+
+    /**
+     * @return "DELETE FROM table WHERE id = ?".
+     */
+    abstract String getDeleteByIdSql();
+
+    /**
+     * @return "DELETE FROM table WHERE id IN (" to be followed by jokers and ")".
+     */
+    abstract String getDeleteByIdsSql();
+
     /**
      * @param fields Fields to find joined with AND operator.
      * @return WHERE section. For example: "`id`=? AND `name`=?".
@@ -44,10 +172,49 @@ public abstract class TypeOracle<T> {
 
     public abstract void setIdValue(T instance, Object value);
 
+    /**
+     * @param instance Entity instance.
+     * @param column   Mapped column name (case insensitive).
+     * @return Value of the field mapped to the column.
+     */
+    abstract Object getColumnValue(T instance, String column);
+
+    /**
+     * @param column Mapped column name (case insensitive).
+     * @return Type of the field mapped to the column as the setter accepts it.
+     */
+    abstract Class<?> getColumnType(String column);
+
+    /**
+     * Reads single value without creating the entity.
+     *
+     * @param row    Selected row.
+     * @param column Mapped column name (case insensitive).
+     * @return Value of the column converted to the type of the field, null if the row has no such column.
+     */
+    abstract Object getRowValue(Row row, String column);
+
+    /**
+     * Sets list to the property which is not mapped to a column (like the list of child entities)
+     * using public setter "setProperty" with single parameter which accepts List. If there are several
+     * such setters, the one with the most specific parameter type is used.
+     *
+     * @param instance Entity instance.
+     * @param property Property name.
+     * @param value    List to set.
+     */
+    abstract void setListPropertyValue(T instance, String property, List<?> value);
+
     public abstract Object getIdValue(T instance);
 
     public abstract T newInstance();
 
+    /**
+     * @return Codec of the selected fields.
+     * @throws MappingException If some selected field has type which can't be encoded.
+     */
+    abstract EntityCodec<T> getEntityCodec();
+
     @SuppressWarnings({"unchecked"})
     public static <T> TypeOracle<T> getTypeOracle(Class<T> typeClass) {
         Map<Class<?>, TypeOracle<?>> cache = CachedTypeOracle.getThreadLocalCache();
@@ -61,6 +228,20 @@ public abstract class TypeOracle<T> {
         }
     }
 
+    /**
+     * Ids of integral types are compared as longs, because the key type of DAO
+     * and the type of id value returned by the database may differ.
+     *
+     * @param id Id value.
+     * @return Id value to be used as the key in maps.
+     */
+    static Object normalizeId(Object id) {
+        if (id instanceof Integer || id instanceof Short || id instanceof Byte) {
+            return ((Number) id).longValue();
+        }
+        return id;
+    }
+
     @SuppressWarnings({"unchecked"})
     static <T> T convertTo(Object parameter, Class<T> expectedClazz) {
         if (parameter == null) {
@@ -20,6 +20,11 @@ class TypeOracleImpl<T> extends TypeOracle<T> {
     private static final Object[] EMPTY_OBJECT_ARRAY = {};
     private static final Map<Long, String> LOWER_CASED_COLUMNS_CACHE = new ConcurrentHashMap<>();
 
+    /**
+     * Maximal number of cached statements of each kind per class, the cache is cleared on overflow.
+     */
+    private static final int MAX_CACHED_SQL_COUNT = 1024;
+
     private final Class<T> clazz;
     private final FastClass fastClazz;
     private final List<Field> fields;
@@ -27,6 +32,47 @@ class TypeOracleImpl<T> extends TypeOracle<T> {
     private final Field idField;
     private final String tableName;
 
+    /**
+     * Quotation properties are read once, all the SQL below is built using them.
+     */
+    private final boolean tableQuotation = Query.isTableQuotation();
+    private final boolean fieldQuotation = Query.isFieldQuotation();
+
+    /**
+     * Field lists by includeId, useTablePrefix and operationType.
+     */
+    private final String[] fieldLists = new String[2 * 2 * OperationType.values().length];
+
+    private String querySetSql;
+    private String selectSql;
+    private String findByIdSql;
+    private String selectIdSql;
+    private String countSql;
+    private String minMaxIdSql;
+    private String idRangePredicate;
+    private String countByIdSql;
+    private String insertSqlWithId;
+    private String insertSqlWithoutId;
+    private String valuesPatternListWithId;
+    private String valuesPatternListWithNullId;
+    private String valuesPatternListWithoutId;
+    private String updateByIdSql;
+    private String deleteByIdSql;
+    private final Map<Long, String> updateByIdSqlByChangeMask = new ConcurrentHashMap<>();
+    private final Map<Integer, String> findByIdsSqlByIdCount = new ConcurrentHashMap<>();
+    private final Map<String, String> findByColumnValuesSqlByKey = new ConcurrentHashMap<>();
+    private final Map<String, String> findByColumnAtLeastSqlByColumn = new ConcurrentHashMap<>();
+    private final Map<Dialect, String> selectWithRowHashSqlByDialect = new ConcurrentHashMap<>();
+    private final Map<Dialect, String> idBucketChecksumSqlByDialect = new ConcurrentHashMap<>();
+    private final Map<String, FastMethod> propertySetterByProperty = new ConcurrentHashMap<>();
+
+    /**
+     * Upserts by dialect and row count, empty string means not supported.
+     */
+    private final Map<Long, String> upsertSqlByDialectAndRowCount = new ConcurrentHashMap<>();
+    private String deleteByIdsSql;
+    private volatile EntityCodec<T> entityCodec;
+
     @SuppressWarnings("OverlyLongMethod")
     TypeOracleImpl(Class<T> clazz) {
         this.clazz = clazz;
@@ -111,24 +157,531 @@ class TypeOracleImpl<T> extends TypeOracle<T> {
         return tableName;
     }
 
+    private String format(String query, Object... args) {
+        return Query.format(tableQuotation, fieldQuotation, query, args);
+    }
+
     @Override
     public String getQuerySetSql() {
         if (fields.isEmpty()) {
             throw new MappingException("Nothing to set for class " + clazz + '.');
         }
 
-        StringBuilder result = new StringBuilder();
-        result.append("SET");
+        String result = querySetSql;
+        if (result == null) {
+            StringBuilder sql = new StringBuilder();
+            sql.append("SET");
+
+            for (Field field : fields) {
+                if (field.isIgnoreUpdate()) {
+                    continue;
+                }
+
+                sql.append(format(" ?f = ?,", field.getColumn()));
+            }
+
+            result = querySetSql = sql.substring(0, sql.length() - 1);
+        }
+
+        return result;
+    }
+
+    @Override
+    String getSelectSql() {
+        String result = selectSql;
+        if (result == null) {
+            result = selectSql = "SELECT " + getFieldList(true, true, OperationType.SELECT)
+                    + format(" FROM ?t ", tableName);
+        }
+        return result;
+    }
+
+    @Override
+    String getSelectIdSql() {
+        String result = selectIdSql;
+        if (result == null) {
+            result = selectIdSql = format("SELECT ?t.?f FROM ?t ", tableName, getIdColumn(), tableName);
+        }
+        return result;
+    }
+
+    @Override
+    String getFindByIdSql() {
+        String result = findByIdSql;
+        if (result == null) {
+            result = findByIdSql = getSelectSql() + format("WHERE ?f = ?", getIdColumn());
+        }
+        return result;
+    }
+
+    @Override
+    String getFindByIdsSql(int idCount) {
+        if (idCount <= 0) {
+            throw new IllegalArgumentException("Expected positive id count, but " + idCount + " found.");
+        }
+
+        String result = findByIdsSqlByIdCount.get(idCount);
+
+        if (result == null) {
+            StringBuilder sql = new StringBuilder(getSelectSql());
+            sql.append(format("WHERE ?t.?f IN (", tableName, getIdColumn()));
+            for (int i = 0; i < idCount; i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            result = sql.append(')').toString();
+
+            if (findByIdsSqlByIdCount.size() >= MAX_CACHED_SQL_COUNT) {
+                findByIdsSqlByIdCount.clear();
+            }
+            findByIdsSqlByIdCount.put(idCount, result);
+        }
+
+        return result;
+    }
+
+    @Override
+    String getFindByColumnValuesSql(String column, int valueCount) {
+        if (valueCount <= 0) {
+            throw new IllegalArgumentException("Expected positive value count, but " + valueCount + " found.");
+        }
+
+        String key = column + ',' + valueCount;
+        String result = findByColumnValuesSqlByKey.get(key);
+
+        if (result == null) {
+            StringBuilder sql = new StringBuilder(getSelectSql());
+            sql.append(format("WHERE ?t.?f IN (", tableName, getField(column).getColumn()));
+            for (int i = 0; i < valueCount; i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            result = sql.append(format(") ORDER BY ?t.?f", tableName, getIdColumn())).toString();
+
+            if (findByColumnValuesSqlByKey.size() >= MAX_CACHED_SQL_COUNT) {
+                findByColumnValuesSqlByKey.clear();
+            }
+            findByColumnValuesSqlByKey.put(key, result);
+        }
+
+        return result;
+    }
+
+    private Field getField(String column) {
+        Field field = fieldByColumn.get(column);
+
+        if (field == null) {
+            for (Field candidate : fields) {
+                if (candidate.getColumn().equalsIgnoreCase(column)) {
+                    field = candidate;
+                    break;
+                }
+            }
+        }
+
+        if (field == null) {
+            throw new MappingException("Can't find field mapped to column " + column + " in " + clazz + '.');
+        }
+
+        return field;
+    }
+
+    @Override
+    Object getColumnValue(T instance, String column) {
+        Field field = getField(column);
+
+        try {
+            return field.getGetter().invoke(instance, EMPTY_OBJECT_ARRAY);
+        } catch (InvocationTargetException e) {
+            throw new MappingException("Can't invoke getter " + field.getGetter() + '.', e);
+        }
+    }
+
+    @Override
+    Class<?> getColumnType(String column) {
+        return getField(column).getSetter().getParameterTypes()[0];
+    }
+
+    @Override
+    Object getRowValue(Row row, String column) {
+        Field field = getField(column);
+
+        Object value = row.get(field.getColumn());
+        if (value == null) {
+            for (Map.Entry<String, Object> entry : row.entrySet()) {
+                if (entry.getKey().equalsIgnoreCase(field.getColumn())) {
+                    value = entry.getValue();
+                    break;
+                }
+            }
+        }
+
+        return convertTo(value, field.getSetter().getParameterTypes()[0]);
+    }
+
+    @Override
+    void setListPropertyValue(T instance, String property, List<?> value) {
+        FastMethod setter = propertySetterByProperty.get(property);
+
+        if (setter == null) {
+            String setterName = ReflectionUtil.getSetterName(property);
+            java.lang.reflect.Method listSetter = null;
+            for (java.lang.reflect.Method method : clazz.getMethods()) {
+                if (method.getName().equals(setterName) && method.getParameterCount() == 1
+                        && method.getParameterTypes()[0].isAssignableFrom(List.class)
+                        && (listSetter == null
+                        || listSetter.getParameterTypes()[0].isAssignableFrom(method.getParameterTypes()[0]))) {
+                    listSetter = method;
+                }
+            }
+
+            if (listSetter == null) {
+                throw new MappingException("Can't find public setter " + setterName
+                        + " accepting List in " + clazz + '.');
+            }
+
+            setter = fastClazz.getMethod(listSetter);
+            propertySetterByProperty.put(property, setter);
+        }
+
+        try {
+            setter.invoke(instance, new Object[]{value});
+        } catch (InvocationTargetException e) {
+            throw new MappingException("Can't invoke setter " + setter + '.', e);
+        }
+    }
+
+    @Override
+    String getFindByColumnAtLeastSql(String column) {
+        String result = findByColumnAtLeastSqlByColumn.get(column);
+
+        if (result == null) {
+            result = getSelectSql() + format("WHERE ?t.?f >= ?", tableName, getField(column).getColumn());
+
+            if (findByColumnAtLeastSqlByColumn.size() >= MAX_CACHED_SQL_COUNT) {
+                findByColumnAtLeastSqlByColumn.clear();
+            }
+            findByColumnAtLeastSqlByColumn.put(column, result);
+        }
+
+        return result;
+    }
+
+    @Override
+    String getScanSql(boolean afterId, String predicate) {
+        String idColumn = getIdColumn();
+        StringBuilder sql = new StringBuilder(getSelectSql()).append("WHERE ");
+
+        if (predicate != null) {
+            sql.append('(').append(predicate).append(')');
+        }
+
+        if (afterId) {
+            sql.append(predicate == null ? "" : " AND ").append(format("?t.?f > ?", tableName, idColumn));
+        } else if (predicate == null) {
+            sql.append("TRUE");
+        }
+
+        return sql.append(format(" ORDER BY ?t.?f LIMIT ?", tableName, idColumn)).toString();
+    }
+
+    @Override
+    String getMinMaxIdSql() {
+        String result = minMaxIdSql;
+        if (result == null) {
+            String idColumn = getIdColumn();
+            result = minMaxIdSql = format("SELECT MIN(?t.?f), MAX(?t.?f) FROM ?t ",
+                    tableName, idColumn, tableName, idColumn, tableName);
+        }
+        return result;
+    }
+
+    @Override
+    String getSelectWithRowHashSql(Dialect dialect) {
+        String result = selectWithRowHashSqlByDialect.get(dialect);
+
+        if (result == null) {
+            String rowHash = getRowHashExpression(dialect);
+            result = rowHash == null ? getSelectSql() : "SELECT " + getFieldList(true, true, OperationType.SELECT)
+                    + ", " + rowHash + " AS " + ROW_HASH_COLUMN + format(" FROM ?t ", tableName);
+            selectWithRowHashSqlByDialect.put(dialect, result);
+        }
+
+        return result;
+    }
+
+    @Override
+    String getIdBucketChecksumSql(Dialect dialect) {
+        String result = idBucketChecksumSqlByDialect.get(dialect);
+
+        if (result == null) {
+            String idColumn = getIdColumn();
+            String rowHash = getRowHashExpression(dialect);
+
+            result = format("SELECT jacuzzi_bucket, COUNT(1), SUM(jacuzzi_id), SUM(jacuzzi_checksum) FROM "
+                    + "(SELECT FLOOR((?t.?f - ?) / ?) AS jacuzzi_bucket, ?t.?f AS jacuzzi_id, ",
+                    tableName, idColumn, tableName, idColumn)
+                    + (rowHash == null ? "0" : rowHash)
+                    + format(" AS jacuzzi_checksum FROM ?t WHERE ?t.?f >= ? AND ?t.?f < ?) jacuzzi_buckets "
+                    + "GROUP BY jacuzzi_bucket", tableName, tableName, idColumn, tableName, idColumn);
+
+            idBucketChecksumSqlByDialect.put(dialect, result);
+        }
+
+        return result;
+    }
 
+    /**
+     * Hash of the values of the selected columns as non-negative BIGINT less than 2^32: CRC32 on MySQL,
+     * the first 32 bits of MD5 on PostgreSQL. Nulls and column boundaries are marked by control characters.
+     * HSQLDB has no hash functions, so its rows are reconciled by counts and sums of ids only.
+     *
+     * @return Row hash expression or null if the dialect is not supported.
+     */
+    private String getRowHashExpression(Dialect dialect) {
+        List<String> columns = new ArrayList<>(fields.size());
         for (Field field : fields) {
-            if (field.isIgnoreUpdate()) {
-                continue;
+            if (!field.isIgnoreSelect()) {
+                columns.add(format("?t.?f", tableName, field.getColumn()));
+            }
+        }
+
+        switch (dialect) {
+            case MYSQL: {
+                StringBuilder values = new StringBuilder("CONCAT_WS(CHAR(31)");
+                for (String column : columns) {
+                    values.append(", COALESCE(").append(column).append(", CHAR(30))");
+                }
+                return "CRC32(" + values.append(')') + ')';
+            }
+            case POSTGRESQL: {
+                StringBuilder values = new StringBuilder("CONCAT_WS(CHR(31)");
+                for (String column : columns) {
+                    values.append(", COALESCE(CAST(").append(column).append(" AS TEXT), CHR(30))");
+                }
+                return "CAST(CAST('x' || SUBSTR(MD5(" + values.append(')') + "), 1, 8) AS BIT(32)) AS BIGINT)";
+            }
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    String getIdRangePredicate() {
+        String result = idRangePredicate;
+        if (result == null) {
+            String idColumn = getIdColumn();
+            result = idRangePredicate = format("?t.?f >= ? AND ?t.?f <= ?", tableName, idColumn, tableName, idColumn);
+        }
+        return result;
+    }
+
+    @Override
+    String getCountSql() {
+        String result = countSql;
+        if (result == null) {
+            result = countSql = format("SELECT COUNT(?f) FROM ?t ", getIdColumn(), tableName);
+        }
+        return result;
+    }
+
+    @Override
+    String getCountByIdSql() {
+        String result = countByIdSql;
+        if (result == null) {
+            result = countByIdSql = format("SELECT COUNT(1) FROM ?t WHERE ?f = ?", tableName, getIdColumn());
+        }
+        return result;
+    }
+
+    @Override
+    String getInsertSql(boolean includeId) {
+        String result = includeId ? insertSqlWithId : insertSqlWithoutId;
+        if (result == null) {
+            result = format("INSERT INTO ?t ", tableName)
+                    + '(' + getFieldList(includeId, false, OperationType.INSERT) + ") VALUES ";
+            if (includeId) {
+                insertSqlWithId = result;
+            } else {
+                insertSqlWithoutId = result;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    String getUpdateByIdSql() {
+        String result = updateByIdSql;
+        if (result == null) {
+            result = updateByIdSql = format("UPDATE ?t ", tableName) + getQuerySetSql()
+                    + format(" WHERE ?f = ?", getIdColumn());
+        }
+        return result;
+    }
+
+    @Override
+    String getUpdateByIdSql(long changeMask) {
+        String result = updateByIdSqlByChangeMask.get(changeMask);
+
+        if (result == null) {
+            if (changeMask == 0) {
+                throw new IllegalArgumentException("Nothing to set for class " + clazz + '.');
             }
 
-            result.append(Query.format(" ?f = ?,", field.getColumn()));
+            StringBuilder sql = new StringBuilder(format("UPDATE ?t SET", tableName));
+            int index = 0;
+            boolean first = true;
+
+            for (Field field : fields) {
+                if (field.isIgnoreUpdate()) {
+                    continue;
+                }
+
+                if (index < Long.SIZE && (changeMask & (1L << index)) != 0) {
+                    sql.append(first ? " " : ", ").append(format("?f = ?", field.getColumn()));
+                    first = false;
+                }
+
+                ++index;
+            }
+
+            if (first) {
+                throw new IllegalArgumentException("Change mask " + Long.toBinaryString(changeMask)
+                        + " doesn't match fields of class " + clazz + '.');
+            }
+
+            result = sql.append(format(" WHERE ?f = ?", getIdColumn())).toString();
+
+            if (updateByIdSqlByChangeMask.size() >= MAX_CACHED_SQL_COUNT) {
+                updateByIdSqlByChangeMask.clear();
+            }
+            updateByIdSqlByChangeMask.put(changeMask, result);
         }
 
-        return result.substring(0, result.length() - 1);
+        return result;
+    }
+
+    @Override
+    String getUpsertSql(Dialect dialect, int rowCount) {
+        if (rowCount <= 0) {
+            throw new IllegalArgumentException("Expected positive row count, but " + rowCount + " found.");
+        }
+
+        long key = (long) rowCount * Dialect.values().length + dialect.ordinal();
+        String result = upsertSqlByDialectAndRowCount.get(key);
+
+        if (result == null) {
+            result = buildUpsertSql(dialect, rowCount);
+            if (upsertSqlByDialectAndRowCount.size() >= MAX_CACHED_SQL_COUNT) {
+                upsertSqlByDialectAndRowCount.clear();
+            }
+            upsertSqlByDialectAndRowCount.put(key, result == null ? "" : result);
+        }
+
+        return result == null || result.isEmpty() ? null : result;
+    }
+
+    @SuppressWarnings("OverlyLongMethod")
+    private String buildUpsertSql(Dialect dialect, int rowCount) {
+        if (dialect == Dialect.OTHER || idField == null || idField.isIgnoreInsert() || fields.isEmpty()) {
+            return null;
+        }
+
+        List<Field> insertFields = new ArrayList<>(fields.size());
+        List<Field> updateFields = new ArrayList<>(fields.size());
+
+        for (Field field : fields) {
+            if (!field.isIgnoreInsert()) {
+                insertFields.add(field);
+            }
+
+            if (!field.isId() && !field.isIgnoreUpdate()) {
+                if (field.isIgnoreInsert()) {
+                    // Upsert can't set the value which is not inserted.
+                    return null;
+                }
+                updateFields.add(field);
+            }
+        }
+
+        StringBuilder values = new StringBuilder();
+        for (int row = 0; row < rowCount; row++) {
+            values.append(row == 0 ? "(" : ", (");
+            for (int i = 0; i < insertFields.size(); i++) {
+                values.append(i == 0 ? "?" : ", ?");
+            }
+            values.append(')');
+        }
+
+        String fieldList = getFieldList(true, false, OperationType.INSERT);
+        StringBuilder sql = new StringBuilder();
+
+        switch (dialect) {
+            case HSQLDB:
+                sql.append(format("MERGE INTO ?t USING (VALUES ", tableName)).append(values)
+                        .append(") AS source (").append(fieldList).append(')')
+                        .append(format(" ON ?t.?f = source.?f", tableName, idField.getColumn(), idField.getColumn()));
+
+                if (!updateFields.isEmpty()) {
+                    sql.append(" WHEN MATCHED THEN UPDATE SET ");
+                    for (int i = 0; i < updateFields.size(); i++) {
+                        String column = updateFields.get(i).getColumn();
+                        sql.append(i == 0 ? "" : ", ").append(format("?f = source.?f", column, column));
+                    }
+                }
+
+                sql.append(" WHEN NOT MATCHED THEN INSERT (").append(fieldList).append(") VALUES (");
+                for (int i = 0; i < insertFields.size(); i++) {
+                    sql.append(i == 0 ? "" : ", ").append(format("source.?f", insertFields.get(i).getColumn()));
+                }
+                sql.append(')');
+                break;
+            case MYSQL:
+                // Row alias instead of deprecated VALUES(column), requires MySQL 8.0.19+.
+                sql.append(getInsertSql(true)).append(values).append(" AS new ON DUPLICATE KEY UPDATE ");
+                if (updateFields.isEmpty()) {
+                    sql.append(format("?f = ?f", idField.getColumn(), idField.getColumn()));
+                } else {
+                    for (int i = 0; i < updateFields.size(); i++) {
+                        String column = updateFields.get(i).getColumn();
+                        sql.append(i == 0 ? "" : ", ").append(format("?f = new.?f", column, column));
+                    }
+                }
+                break;
+            case POSTGRESQL:
+                sql.append(getInsertSql(true)).append(values)
+                        .append(format(" ON CONFLICT (?f) DO ", idField.getColumn()));
+                if (updateFields.isEmpty()) {
+                    sql.append("NOTHING");
+                } else {
+                    sql.append("UPDATE SET ");
+                    for (int i = 0; i < updateFields.size(); i++) {
+                        String column = updateFields.get(i).getColumn();
+                        sql.append(i == 0 ? "" : ", ").append(format("?f = EXCLUDED.?f", column, column));
+                    }
+                }
+                break;
+            default:
+                return null;
+        }
+
+        return sql.toString();
+    }
+
+    @Override
+    String getDeleteByIdSql() {
+        String result = deleteByIdSql;
+        if (result == null) {
+            result = deleteByIdSql = format("DELETE FROM ?t WHERE ?f = ?", tableName, getIdColumn());
+        }
+        return result;
+    }
+
+    @Override
+    String getDeleteByIdsSql() {
+        String result = deleteByIdsSql;
+        if (result == null) {
+            result = deleteByIdsSql = format("DELETE FROM ?t WHERE ?f IN (", tableName, getIdColumn());
+        }
+        return result;
     }
 
     @Override
@@ -155,6 +708,16 @@ class TypeOracleImpl<T> extends TypeOracle<T> {
             throw new MappingException("Nothing to set for class " + clazz + '.');
         }
 
+        int index = ((includeId ? 2 : 0) + (useTablePrefix ? 1 : 0)) * OperationType.values().length
+                + operationType.ordinal();
+        String result = fieldLists[index];
+        if (result == null) {
+            result = fieldLists[index] = buildFieldList(includeId, useTablePrefix, operationType);
+        }
+        return result;
+    }
+
+    private String buildFieldList(boolean includeId, boolean useTablePrefix, OperationType operationType) {
         StringBuilder result = new StringBuilder();
 
         for (Field field : fields) {
@@ -170,9 +733,9 @@ class TypeOracleImpl<T> extends TypeOracle<T> {
             }
 
             if (useTablePrefix) {
-                result.append(Query.format("?t.?f", tableName, field.getColumn()));
+                result.append(format("?t.?f", tableName, field.getColumn()));
             } else {
-                result.append(Query.format("?f", field.getColumn()));
+                result.append(format("?f", field.getColumn()));
             }
         }
 
@@ -185,6 +748,30 @@ class TypeOracleImpl<T> extends TypeOracle<T> {
             throw new MappingException("Nothing to set for class " + clazz + '.');
         }
 
+        if (!includeId) {
+            String result = valuesPatternListWithoutId;
+            if (result == null) {
+                result = valuesPatternListWithoutId = buildValuesPatternListForInsert(false, false);
+            }
+            return result;
+        }
+
+        if (hasReasonableId(instance)) {
+            String result = valuesPatternListWithId;
+            if (result == null) {
+                result = valuesPatternListWithId = buildValuesPatternListForInsert(true, true);
+            }
+            return result;
+        } else {
+            String result = valuesPatternListWithNullId;
+            if (result == null) {
+                result = valuesPatternListWithNullId = buildValuesPatternListForInsert(true, false);
+            }
+            return result;
+        }
+    }
+
+    private String buildValuesPatternListForInsert(boolean includeId, boolean reasonableId) {
         StringBuilder result = new StringBuilder();
 
         for (Field field : fields) {
@@ -196,7 +783,7 @@ class TypeOracleImpl<T> extends TypeOracle<T> {
                 result.append(", ");
             }
 
-            if (!field.isId() || hasReasonableId(instance)) {
+            if (!field.isId() || reasonableId) {
                 result.append('?');
             } else {
                 result.append("NULL");
@@ -302,6 +889,25 @@ class TypeOracleImpl<T> extends TypeOracle<T> {
         return instance;
     }
 
+    @Override
+    EntityCodec<T> getEntityCodec() {
+        if (entityCodec == null) {
+            List<FastMethod> getters = new ArrayList<>();
+            List<FastMethod> setters = new ArrayList<>();
+
+            for (Field field : fields) {
+                if (!field.isIgnoreSelect()) {
+                    getters.add(field.getGetter());
+                    setters.add(field.getSetter());
+                }
+            }
+
+            entityCodec = new EntityCodec<>(this::newInstance, getters, setters);
+        }
+
+        return entityCodec;
+    }
+
     @Override
     public void setIdValue(T instance, Object value) {
         try {
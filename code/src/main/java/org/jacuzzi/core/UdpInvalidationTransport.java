@@ -0,0 +1,114 @@
+package org.jacuzzi.core;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Sends each message as UDP datagram to the listed peers and receives datagrams in a daemon thread.
+ * UDP doesn't guarantee delivery, so keep time to live of the caches reasonable.
+ */
+public class UdpInvalidationTransport implements InvalidationTransport {
+    private static final Logger logger = Logger.getLogger(UdpInvalidationTransport.class);
+
+    /**
+     * Much less than the maximal datagram size, so fragmented datagrams are rarely lost.
+     */
+    private static final int MAX_MESSAGE_SIZE = 8192;
+
+    private static final int MAX_SEND_ATTEMPTS = 3;
+
+    private final DatagramSocket socket;
+    private final List<InetSocketAddress> peers;
+    private volatile boolean closed;
+
+    /**
+     * @param bindAddress Local address to receive messages, port 0 means any free port.
+     * @param peers       Addresses of the other nodes.
+     * @throws IOException If the socket can't be bound.
+     */
+    public UdpInvalidationTransport(InetSocketAddress bindAddress, Collection<InetSocketAddress> peers)
+            throws IOException {
+        this.socket = new DatagramSocket(bindAddress);
+        this.peers = new CopyOnWriteArrayList<>(peers);
+    }
+
+    /**
+     * @param peer Address of another node.
+     */
+    public void addPeer(InetSocketAddress peer) {
+        peers.add(peer);
+    }
+
+    /**
+     * @return Local port to receive messages.
+     */
+    public int getLocalPort() {
+        return socket.getLocalPort();
+    }
+
+    @Override
+    public void start(Consumer<byte[]> receiver) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[MAX_MESSAGE_SIZE];
+
+            while (!closed) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(packet);
+                    receiver.accept(Arrays.copyOfRange(buffer, packet.getOffset(),
+                            packet.getOffset() + packet.getLength()));
+                } catch (IOException e) {
+                    if (!closed) {
+                        logger.warn("Can't receive invalidation message.", e);
+                    }
+                } catch (RuntimeException e) {
+                    logger.warn("Can't process invalidation message.", e);
+                }
+            }
+        }, "jacuzzi-invalidation-receiver-" + socket.getLocalPort());
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Sends the message to each peer on the best-effort basis: the failed peer is retried a few times
+     * and then skipped, the others get the message anyway. Never throws, so an unreachable peer
+     * doesn't make the bus invalidate whole tables on all the nodes.
+     */
+    @Override
+    public void send(byte[] message) {
+        for (InetSocketAddress peer : peers) {
+            for (int attempt = 1; attempt <= MAX_SEND_ATTEMPTS; attempt++) {
+                try {
+                    socket.send(new DatagramPacket(message, message.length, peer));
+                    break;
+                } catch (IOException | RuntimeException e) {
+                    if (attempt == MAX_SEND_ATTEMPTS) {
+                        logger.warn("Can't send invalidation message to " + peer + ", skipping it.", e);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public int getMaxMessageSize() {
+        return MAX_MESSAGE_SIZE;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        socket.close();
+    }
+}
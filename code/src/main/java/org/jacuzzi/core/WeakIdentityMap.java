@@ -0,0 +1,71 @@
+package org.jacuzzi.core;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Map which compares keys by identity and doesn't prevent them from being garbage collected.
+ * Entries of the collected keys are removed on the following modifications.
+ *
+ * All the methods are synchronized.
+ */
+final class WeakIdentityMap<K, V> {
+    private final Map<Reference<K>, V> map = new HashMap<>();
+    private final ReferenceQueue<K> queue = new ReferenceQueue<>();
+
+    synchronized V get(K key) {
+        return map.get(new Reference<>(key, null));
+    }
+
+    synchronized void put(K key, V value) {
+        expungeStaleEntries();
+        map.put(new Reference<>(key, queue), value);
+    }
+
+    synchronized void remove(K key) {
+        expungeStaleEntries();
+        map.remove(new Reference<>(key, null));
+    }
+
+    synchronized int size() {
+        expungeStaleEntries();
+        return map.size();
+    }
+
+    private void expungeStaleEntries() {
+        java.lang.ref.Reference<? extends K> reference;
+        while ((reference = queue.poll()) != null) {
+            map.remove(reference);
+        }
+    }
+
+    private static final class Reference<K> extends WeakReference<K> {
+        private final int hashCode;
+
+        private Reference(K key, ReferenceQueue<K> queue) {
+            super(key, queue);
+            hashCode = System.identityHashCode(key);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof Reference)) {
+                return false;
+            }
+
+            Object key = get();
+            return key != null && key == ((Reference<?>) o).get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -3,16 +3,33 @@ package org.jacuzzi;
 import com.mchange.v2.c3p0.ComboPooledDataSource;
 import org.apache.commons.lang3.ArrayUtils;
 import org.jacuzzi.core.*;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import javax.sql.DataSource;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import static java.lang.StrictMath.abs;
 import static org.junit.Assert.*;
@@ -53,6 +70,13 @@ public class JacuzziTest {
                 "surname VARCHAR(255) NULL)"
         );
 
+        connection.createStatement().execute("DROP TABLE UserPost IF EXISTS");
+        connection.createStatement().execute("CREATE TABLE UserPost (" +
+                "id BIGINT GENERATED BY DEFAULT AS IDENTITY (START WITH 1), " +
+                "userId BIGINT NOT NULL, " +
+                "text VARCHAR(255))"
+        );
+
         connection.createStatement().execute("DROP TABLE ConfigurationObject IF EXISTS");
         connection.createStatement().execute("CREATE TABLE ConfigurationObject (" +
                 "id INT GENERATED BY DEFAULT AS IDENTITY (START WITH 1), experience INT NOT NULL)"
@@ -89,6 +113,11 @@ public class JacuzziTest {
         settingDao = new SettingDaoImpl(dataSource);
     }
 
+    @After
+    public void tearDown() {
+        Jacuzzi.release(dataSource);
+    }
+
     @Test
     public void testOperationControlAnnotation() throws Exception {
         Jacuzzi jacuzzi = Jacuzzi.getJacuzzi(dataSource);
@@ -568,6 +597,1273 @@ public class JacuzziTest {
         assertEquals("123", jacuzzi.convertTo(123L, String.class));
     }
 
+    @Test
+    public void testMappedRowRoll() throws IOException {
+        for (int i = 0; i < 100; ++i) {
+            User user = new User();
+            user.setId(i + 1);
+            user.setName("name" + i);
+            user.setSurname(i % 3 == 0 ? null : "surname" + i);
+            userDao.insert(user);
+        }
+
+        Jacuzzi jacuzzi = Jacuzzi.getJacuzzi(dataSource);
+        RowRoll rowRoll = jacuzzi.findRowRoll("SELECT id, name, surname FROM User ORDER BY id");
+
+        File file = File.createTempFile("jacuzzi", ".rows");
+        try {
+            ArrayMap.writeMappedRowRoll(file, rowRoll);
+            MappedRowRoll mappedRowRoll = ArrayMap.mapRowRoll(file);
+
+            assertEquals(100, mappedRowRoll.size());
+            assertEquals(3, mappedRowRoll.getColumnCount());
+
+            for (int i = 99; i >= 0; --i) {
+                Row row = mappedRowRoll.getRow(i);
+                assertEquals(3, row.size());
+                for (int column = 0; column < 3; ++column) {
+                    assertEquals(rowRoll.getValue(i, column), mappedRowRoll.getValue(i, column));
+                }
+                assertEquals("name" + i, mappedRowRoll.getValue(i, 1));
+                assertEquals(i % 3 == 0 ? null : "surname" + i, mappedRowRoll.getValue(i, 2));
+                assertEquals((long) i + 1, row.values().iterator().next());
+            }
+
+            assertEquals(100, mappedRowRoll.toRowRoll().size());
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testRowRollUtil() {
+        RowRoll rowRoll = new RowRoll();
+        rowRoll.setKeys(new String[]{"id", "type", "cash"});
+        for (int i = 0; i < 100000; ++i) {
+            rowRoll.addValues(new Object[]{(long) i, "type" + i % 3, i % 10 == 0 ? null : (long) i % 7});
+        }
+
+        RowRoll filtered = RowRollUtil.filter(rowRoll, (roll, index) -> "type1".equals(roll.getValue(index, 1)));
+        assertEquals(33333, filtered.size());
+        assertEquals(1L, filtered.getValue(0, 0));
+        assertEquals(99997L, filtered.getValue(filtered.size() - 1, 0));
+
+        RowRoll projected = RowRollUtil.project(filtered, "cash", "id");
+        assertEquals(2, projected.getColumnCount());
+        assertEquals(0, projected.getColumn("cash"));
+        assertEquals(4L, projected.getValue(1, 1));
+
+        RowRoll sorted = RowRollUtil.sort(rowRoll, RowRollUtil.SortKey.asc("cash"), RowRollUtil.SortKey.desc("id"));
+        assertNull(sorted.getValue(0, 2));
+        assertEquals(99990L, sorted.getValue(0, 0));
+        assertEquals(6L, sorted.getValue(sorted.size() - 1, 2));
+        assertEquals(6L, sorted.getValue(sorted.size() - 1, 0));
+
+        RowRoll grouped = RowRollUtil.groupBy(rowRoll, new String[]{"type"},
+                RowRollUtil.Aggregate.count().as("count"), RowRollUtil.Aggregate.count("cash"),
+                RowRollUtil.Aggregate.sum("cash"), RowRollUtil.Aggregate.min("id"), RowRollUtil.Aggregate.max("id"));
+        assertEquals(3, grouped.size());
+        assertEquals("type0", grouped.getValue(0, 0));
+        assertEquals(33334L, grouped.getValue(0, grouped.getColumn("count")));
+        assertEquals(0L, grouped.getValue(0, grouped.getColumn("MIN(id)")));
+        assertEquals(99999L, grouped.getValue(0, grouped.getColumn("MAX(id)")));
+
+        long cashCount = 0;
+        long cashSum = 0;
+        for (int i = 0; i < rowRoll.size(); ++i) {
+            if (i % 3 == 0 && rowRoll.getValue(i, 2) != null) {
+                ++cashCount;
+                cashSum += (Long) rowRoll.getValue(i, 2);
+            }
+        }
+        assertEquals(cashCount, grouped.getValue(0, grouped.getColumn("COUNT(cash)")));
+        assertEquals(cashSum, grouped.getValue(0, grouped.getColumn("SUM(cash)")));
+
+        RowRoll distinct = RowRollUtil.distinct(rowRoll, "type", "cash");
+        assertEquals(3 * 8, distinct.size());
+        assertEquals(2, distinct.getColumnCount());
+    }
+
+    @Test
+    public void testRowRollIndexAndHashJoin() {
+        RowRoll users = new RowRoll();
+        users.setKeys(new String[]{"id", "name"});
+        for (int i = 0; i < 1000; ++i) {
+            users.addValues(new Object[]{(long) i, "user" + i % 100});
+        }
+
+        RowRoll payments = new RowRoll();
+        payments.setKeys(new String[]{"userId", "amount"});
+        for (int i = 0; i < 3000; ++i) {
+            payments.addValues(new Object[]{i % 1500, (long) i});
+        }
+
+        RowRollIndex idIndex = users.index("id");
+        assertArrayEquals(new int[]{42}, idIndex.find(42L));
+        assertArrayEquals(new int[]{42}, idIndex.find(42));
+        assertEquals(-1, idIndex.findFirst(1000L));
+
+        RowRollIndex nameIndex = users.index("name");
+        int[] indexes = nameIndex.find("user7");
+        assertEquals(10, indexes.length);
+        for (int i = 0; i < indexes.length; ++i) {
+            assertEquals(7 + 100 * i, indexes[i]);
+        }
+
+        RowRollIndex compositeIndex = users.index("name", "id");
+        assertArrayEquals(new int[]{107}, compositeIndex.find("user7", 107L));
+        assertEquals(0, compositeIndex.find("user7", 108L).length);
+
+        RowRoll joined = users.hashJoin(payments, new String[]{"id"}, new String[]{"userId"});
+        assertEquals(2000, joined.size());
+        assertEquals(3, joined.getColumnCount());
+        assertEquals(0L, joined.getValue(0, joined.getColumn("id")));
+        assertEquals(0L, joined.getValue(0, joined.getColumn("amount")));
+        assertEquals(1500L, joined.getValue(1, joined.getColumn("amount")));
+        assertEquals("user99", joined.getValue(joined.size() - 1, joined.getColumn("name")));
+    }
+
+    @Test
+    public void testHashJoinNullKeys() {
+        RowRoll left = new RowRoll();
+        left.setKeys(new String[]{"name", "kind", "left"});
+        left.addValues(new Object[]{"a", 1L, 0L});
+        left.addValues(new Object[]{null, 1L, 1L});
+        left.addValues(new Object[]{"b", null, 2L});
+        left.addValues(new Object[]{null, null, 3L});
+
+        RowRoll right = new RowRoll();
+        right.setKeys(new String[]{"rightName", "rightKind", "right"});
+        right.addValues(new Object[]{"a", 1L, 10L});
+        right.addValues(new Object[]{null, 1L, 11L});
+        right.addValues(new Object[]{"b", null, 12L});
+        right.addValues(new Object[]{null, null, 13L});
+
+        RowRoll joined = left.hashJoin(right, new String[]{"name"}, new String[]{"rightName"});
+        assertEquals(2, joined.size());
+        assertEquals(10L, joined.getValue(0, joined.getColumn("right")));
+        assertEquals(12L, joined.getValue(1, joined.getColumn("right")));
+
+        joined = left.hashJoin(right, new String[]{"name", "kind"}, new String[]{"rightName", "rightKind"});
+        assertEquals(1, joined.size());
+        assertEquals(0L, joined.getValue(0, joined.getColumn("left")));
+        assertEquals(10L, joined.getValue(0, joined.getColumn("right")));
+
+        assertEquals(0, right.index("rightName").find((Object) null).length);
+        assertEquals(0, right.index("rightName", "rightKind").find("b", null).length);
+        assertEquals(0, right.index("rightKind").find((Object) null).length);
+
+        try {
+            left.hashJoin(right, new String[]{"name", "kind"}, new String[]{"rightName", "rightName"});
+            fail("Expected IllegalArgumentException on duplicate columns to join by.");
+        } catch (IllegalArgumentException ignored) {
+            // No operations.
+        }
+    }
+
+    @Test
+    public void testStringDeduplication() {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            User user = new User();
+            user.setName("name" + i % 3);
+            user.setSurname("surname" + i);
+            users.add(user);
+        }
+        userDao.insert(users);
+
+        long savedBytes = Jacuzzi.getStringDeduplicationSavedBytes();
+
+        Jacuzzi jacuzzi = Jacuzzi.getJacuzzi(dataSource);
+        RowRoll rowRoll = jacuzzi.findRowRoll("SELECT name, surname FROM User ORDER BY id");
+        assertSame(rowRoll.getValue(0, 0), rowRoll.getValue(3, 0));
+        assertNotSame(rowRoll.getValue(0, 1), rowRoll.getValue(3, 1));
+        assertTrue(Jacuzzi.getStringDeduplicationSavedBytes() > savedBytes);
+
+        List<Row> rows = jacuzzi.findRows("SELECT name FROM User ORDER BY id");
+        assertSame(rows.get(1).values().iterator().next(), rows.get(4).values().iterator().next());
+    }
+
+    @Test
+    public void testScan() {
+        for (int i = 0; i < 100; ++i) {
+            User user = new User();
+            user.setName(i % 2 == 0 ? "name" + i : null);
+            userDao.insert(user);
+        }
+
+        Jacuzzi jacuzzi = Jacuzzi.getJacuzzi(dataSource);
+        long[] idSum = {0};
+        int[] nullNameCount = {0};
+        List<Row> copies = new ArrayList<>();
+
+        long count = jacuzzi.scan("SELECT id, name FROM User WHERE id <= ? ORDER BY id", cursor -> {
+            idSum[0] += cursor.getLong(0);
+            if (cursor.isNull(1)) {
+                ++nullNameCount[0];
+            }
+            if (cursor.getRowIndex() < 2) {
+                copies.add(cursor.copy());
+            }
+        }, 50);
+
+        assertEquals(50, count);
+        assertEquals(50 * 51 / 2, idSum[0]);
+        assertEquals(25, nullNameCount[0]);
+        assertEquals(2, copies.size());
+        assertTrue(copies.get(0).containsValue("name0"));
+        assertTrue(copies.get(1).containsValue(2L));
+    }
+
+    @Test
+    public void testFindThroughOverriddenFindBy() {
+        FilteringUserDao filteringUserDao = new FilteringUserDao(dataSource);
+
+        User user = new User();
+        user.setName("visible");
+        filteringUserDao.insert(user);
+        assertEquals("visible", filteringUserDao.find(user.getId()).getName());
+
+        user.setName("hidden");
+        filteringUserDao.update(user);
+        assertNull(filteringUserDao.find(user.getId()));
+        assertEquals("hidden", commonDao.find(user.getId()).getName());
+    }
+
+    @Test
+    public void testChangeTracking() {
+        TrackingUserDao trackingUserDao = new TrackingUserDao(dataSource);
+        Jacuzzi jacuzzi = Jacuzzi.getJacuzzi(dataSource);
+
+        User user = new User();
+        user.setName("name");
+        user.setSurname("surname");
+        trackingUserDao.insert(user);
+
+        user = trackingUserDao.find(user.getId());
+        jacuzzi.execute("UPDATE User SET name = ? WHERE id = ?", "changed", user.getId());
+
+        // Only surname is set, so the concurrent change of name survives.
+        user.setSurname("new surname");
+        trackingUserDao.update(user);
+        assertEquals("changed", commonDao.find(user.getId()).getName());
+        assertEquals("new surname", commonDao.find(user.getId()).getSurname());
+
+        // Rolled back update doesn't make the next update skip the changed column.
+        jacuzzi.beginTransaction();
+        user.setSurname("rolled back surname");
+        trackingUserDao.update(user);
+        jacuzzi.rollback();
+        assertEquals("new surname", commonDao.find(user.getId()).getSurname());
+        trackingUserDao.update(user);
+        assertEquals("rolled back surname", commonDao.find(user.getId()).getSurname());
+
+        // Nothing changed since the last update, so the database is not accessed.
+        jacuzzi.execute("DELETE FROM User WHERE id = ?", user.getId());
+        trackingUserDao.update(user);
+
+        user.setName("another name");
+        try {
+            trackingUserDao.update(user);
+            fail("Expected DatabaseException on update of deleted row.");
+        } catch (DatabaseException ignored) {
+            // No operations.
+        }
+    }
+
+    @Test
+    public void testEntityCache() {
+        CachingUserDao cachingUserDao = new CachingUserDao(dataSource);
+        Jacuzzi jacuzzi = Jacuzzi.getJacuzzi(dataSource);
+
+        User user = new User();
+        user.setName("name");
+        user.setSurname("surname");
+        cachingUserDao.insert(user);
+
+        for (int i = 0; i < 10; ++i) {
+            assertEquals("name", cachingUserDao.find(user.getId()).getName());
+        }
+        assertNotSame(cachingUserDao.find(user.getId()), cachingUserDao.find(user.getId()));
+
+        CacheStatistics statistics = cachingUserDao.getEntityCacheStatistics();
+        assertEquals(1, statistics.getMissCount());
+        assertEquals(11, statistics.getHitCount());
+        assertEquals(1, statistics.getSize());
+        assertTrue(statistics.getWeight() > 0);
+
+        // Direct updates are not visible until the entry expires.
+        jacuzzi.execute("UPDATE User SET name = ? WHERE id = ?", "direct", user.getId());
+        assertEquals("name", cachingUserDao.find(user.getId()).getName());
+
+        // Cache is shared by DAO instances, updates through DAO invalidate it.
+        user.setName("updated");
+        new CachingUserDao(dataSource).update(user);
+        assertEquals("updated", cachingUserDao.find(user.getId()).getName());
+
+        // Transactions bypass the cache, the entry is invalidated again after commit.
+        jacuzzi.beginTransaction();
+        user.setName("in transaction");
+        cachingUserDao.update(user);
+        assertEquals("in transaction", cachingUserDao.find(user.getId()).getName());
+        jacuzzi.commit();
+        assertEquals("in transaction", cachingUserDao.find(user.getId()).getName());
+
+        cachingUserDao.delete(user);
+        assertNull(cachingUserDao.find(user.getId()));
+        assertTrue(cachingUserDao.getEntityCacheStatistics().getInvalidationCount() >= 3);
+        assertNull(commonDao.getEntityCacheStatistics());
+    }
+
+    @Test
+    public void testQueryCache() {
+        Jacuzzi jacuzzi = Jacuzzi.getJacuzzi(dataSource);
+        jacuzzi.setQueryCache(new CacheSettings().setMaxSize(100));
+        QueryCachingUserDao queryCachingUserDao = new QueryCachingUserDao(dataSource);
+        UserPostDao userPostDao = new UserPostDao(dataSource);
+
+        User user = new User();
+        user.setName("name");
+        queryCachingUserDao.insert(user);
+
+        String joinQuery = "SELECT u.id FROM User u JOIN UserPost p ON p.userId = u.id";
+        assertEquals(1, jacuzzi.findRowsCached("SELECT * FROM User WHERE name = ?", "name").size());
+        assertEquals(0, jacuzzi.findRowsCached(joinQuery).size());
+        assertEquals(1, queryCachingUserDao.findBy("name = ?", "name").size());
+
+        // Write to UserPost doesn't invalidate queries over User only.
+        UserPost post = new UserPost();
+        post.setUserId(user.getId());
+        userPostDao.insert(post);
+        assertEquals(1, jacuzzi.findRowsCached(joinQuery).size());
+        assertEquals(1, jacuzzi.findRowsCached("SELECT * FROM User WHERE name = ?", "name").size());
+        assertEquals(1, jacuzzi.getQueryCacheStatistics().getHitCount());
+
+        // Returned results are copies.
+        jacuzzi.findRowRollCached(Collections.singletonList("User"), "SELECT name FROM User").getRow(0).put("NAME", "x");
+        assertEquals("name", jacuzzi.findRowRollCached(Collections.singletonList("User"), "SELECT name FROM User")
+                .getRow(0).get("NAME"));
+
+        // Write in transaction is visible after commit.
+        jacuzzi.beginTransaction();
+        jacuzzi.execute("UPDATE User SET name = ? WHERE id = ?", "changed", user.getId());
+        assertEquals(0, jacuzzi.findRowsCached("SELECT * FROM User WHERE name = ?", "name").size());
+        jacuzzi.commit();
+        assertEquals(0, queryCachingUserDao.findBy("name = ?", "name").size());
+        assertEquals(1, queryCachingUserDao.findBy("name = ?", "changed").size());
+
+        // Unknown writes invalidate everything.
+        long hitCount = jacuzzi.getQueryCacheStatistics().getHitCount();
+        jacuzzi.execute("DROP TABLE QueryCacheTest IF EXISTS");
+        assertEquals(1, jacuzzi.findRowsCached(joinQuery).size());
+        assertEquals(hitCount, jacuzzi.getQueryCacheStatistics().getHitCount());
+
+        // Results heavier than a part of the cache are not cached and don't evict the other results.
+        jacuzzi.setQueryCache(new CacheSettings().setMaxSize(100).setMaxWeight(16 * 2048));
+        for (int i = 0; i < 100; ++i) {
+            User other = new User();
+            other.setName("other" + i);
+            queryCachingUserDao.insert(other);
+        }
+        assertEquals(1, jacuzzi.findRowsCached("SELECT name FROM User WHERE id = ?", user.getId()).size());
+        assertEquals(101, jacuzzi.findRowsCached("SELECT * FROM User").size());
+        assertEquals(101, jacuzzi.findRowsCached("SELECT * FROM User").size());
+        assertEquals(1, jacuzzi.findRowsCached("SELECT name FROM User WHERE id = ?", user.getId()).size());
+        CacheStatistics statistics = jacuzzi.getQueryCacheStatistics();
+        assertEquals(2, statistics.getNotCacheableCount());
+        assertEquals(1, statistics.getHitCount());
+        assertEquals(1, statistics.getSize());
+        assertEquals(0, statistics.getEvictionCount());
+
+        jacuzzi.setQueryCache(null);
+        assertNull(jacuzzi.getQueryCacheStatistics());
+    }
+
+    @Test
+    public void testIdentityMapping() {
+        IdentityMappingUserDao identityMappingUserDao = new IdentityMappingUserDao(dataSource);
+        Jacuzzi jacuzzi = Jacuzzi.getJacuzzi(dataSource);
+
+        User user = new User();
+        user.setName("name");
+        identityMappingUserDao.insert(user);
+        assertNotSame(identityMappingUserDao.find(user.getId()), identityMappingUserDao.find(user.getId()));
+
+        jacuzzi.attachConnection();
+        User found = identityMappingUserDao.find(user.getId());
+        assertSame(found, identityMappingUserDao.find(user.getId()));
+        assertSame(found, identityMappingUserDao.findOnlyBy("name = ?", "name"));
+
+        User another = new User();
+        another.setName("another");
+        identityMappingUserDao.insert(another);
+        assertSame(another, identityMappingUserDao.find(another.getId()));
+        identityMappingUserDao.delete(another);
+        assertNull(identityMappingUserDao.find(another.getId()));
+        jacuzzi.detachConnection();
+
+        assertNotSame(found, identityMappingUserDao.find(user.getId()));
+
+        // Rollback discards the remembered instances.
+        jacuzzi.attachConnection();
+        jacuzzi.beginTransaction();
+        found = identityMappingUserDao.find(user.getId());
+        found.setName("changed");
+        identityMappingUserDao.update(found);
+        assertSame(found, identityMappingUserDao.find(user.getId()));
+        jacuzzi.rollback();
+        assertEquals("name", identityMappingUserDao.find(user.getId()).getName());
+        jacuzzi.detachConnection();
+    }
+
+    @Test
+    public void testReferenceTable() {
+        ReferenceSettingDao referenceSettingDao = new ReferenceSettingDao(dataSource);
+        Jacuzzi jacuzzi = Jacuzzi.getJacuzzi(dataSource);
+        Date updateTime = new Date();
+
+        for (int i = 0; i < 3; ++i) {
+            Setting setting = new Setting();
+            setting.setName("name" + i);
+            setting.setValue("value" + i);
+            setting.setUpdateTime(updateTime);
+            settingDao.insert(setting);
+        }
+
+        assertEquals(3, referenceSettingDao.findAll().size());
+        assertEquals("value1", referenceSettingDao.find(2L).getValue());
+        assertNotSame(referenceSettingDao.find(2L), referenceSettingDao.find(2L));
+
+        // Direct changes are visible after refresh: by update time or by reconciliation of ids.
+        jacuzzi.execute("UPDATE Setting SET value = ?, updateTime = ? WHERE id = ?",
+                "changed", new Date(updateTime.getTime() + 1000L), 2L);
+        jacuzzi.execute("DELETE FROM Setting WHERE id = ?", 3L);
+        assertEquals("value1", referenceSettingDao.find(2L).getValue());
+        assertEquals(3, referenceSettingDao.findAll().size());
+
+        referenceSettingDao.refreshReferenceTable();
+        assertEquals("changed", referenceSettingDao.find(2L).getValue());
+        assertNull(referenceSettingDao.find(3L));
+        assertEquals(2, referenceSettingDao.findAll().size());
+
+        // Writes through the DAO are visible to the writer immediately, whatever the update time is.
+        Setting setting = referenceSettingDao.find(1L);
+        setting.setValue("updated");
+        referenceSettingDao.update(setting);
+        assertEquals("updated", referenceSettingDao.find(1L).getValue());
+
+        Setting insertedSetting = new Setting();
+        insertedSetting.setName("inserted");
+        insertedSetting.setValue("inserted");
+        insertedSetting.setUpdateTime(new Date(updateTime.getTime() - 60000L));
+        referenceSettingDao.insert(insertedSetting);
+        assertEquals("inserted", referenceSettingDao.find(insertedSetting.getId()).getValue());
+        assertEquals(3, referenceSettingDao.findAll().size());
+
+        referenceSettingDao.deleteById(insertedSetting.getId());
+        assertNull(referenceSettingDao.find(insertedSetting.getId()));
+        assertEquals(2, referenceSettingDao.findAll().size());
+
+        // Writes in transactions are visible after commit only.
+        jacuzzi.beginTransaction();
+        setting.setValue("rolled back");
+        referenceSettingDao.update(setting);
+        jacuzzi.rollback();
+        assertEquals("updated", referenceSettingDao.find(1L).getValue());
+
+        jacuzzi.beginTransaction();
+        setting.setValue("committed");
+        referenceSettingDao.update(setting);
+        jacuzzi.commit();
+        assertEquals("committed", referenceSettingDao.find(1L).getValue());
+    }
+
+    @Test
+    public void testReferenceTableChecksumReconciliation() {
+        ReferenceSettingDao referenceSettingDao = new ReferenceSettingDao(dataSource);
+        Jacuzzi jacuzzi = Jacuzzi.getJacuzzi(dataSource);
+        Date updateTime = new Date();
+
+        List<Setting> settings = new ArrayList<>();
+        for (int i = 0; i < 2000; ++i) {
+            Setting setting = new Setting();
+            setting.setName("name" + i);
+            setting.setValue("value" + i);
+            setting.setUpdateTime(updateTime);
+            settings.add(setting);
+        }
+        referenceSettingDao.insert(settings);
+
+        assertEquals(2000, referenceSettingDao.findAll().size());
+        referenceSettingDao.refreshReferenceTable();
+        long queryCount = referenceSettingDao.getReferenceTableReconciliationQueryCount();
+        assertTrue(queryCount <= 2);
+
+        // Changes with the update time older than the latest seen one are found by checksums only,
+        // HSQLDB has no row hashes, so the checksums find deleted and inserted rows there.
+        Date oldUpdateTime = new Date(updateTime.getTime() - 7000L);
+        jacuzzi.execute("DELETE FROM Setting WHERE id = ?", 777L);
+        jacuzzi.execute("INSERT INTO Setting (id, name, value, updateTime) VALUES (?, ?, ?, ?)",
+                5000L, "inserted", "inserted", oldUpdateTime);
+
+        referenceSettingDao.refreshReferenceTable();
+        assertNull(referenceSettingDao.find(777L));
+        assertEquals("inserted", referenceSettingDao.find(5000L).getValue());
+        assertEquals(2000, referenceSettingDao.findAll().size());
+        assertEquals("value1232", referenceSettingDao.find(1233L).getValue());
+
+        // Only a few ranges are compared and reread.
+        assertTrue(referenceSettingDao.getReferenceTableReconciliationQueryCount() - queryCount < 30);
+    }
+
+    @Test
+    public void testReferenceTableSnapshotFile() throws IOException {
+        Jacuzzi jacuzzi = Jacuzzi.getJacuzzi(dataSource);
+        Date updateTime = new Date();
+
+        for (int i = 0; i < 3; ++i) {
+            Setting setting = new Setting();
+            setting.setName("name" + i);
+            setting.setValue("value" + i);
+            setting.setUpdateTime(updateTime);
+            settingDao.insert(setting);
+        }
+
+        File file = File.createTempFile("jacuzzi", ".rows");
+        assertTrue(file.delete());
+        DataSource restartedDataSource = null;
+        try {
+            SnapshotSettingDao snapshotSettingDao = new SnapshotSettingDao(dataSource, file);
+            assertEquals(3, snapshotSettingDao.findAll().size());
+            snapshotSettingDao.writeReferenceTableSnapshotFile();
+            assertTrue(file.isFile());
+
+            jacuzzi.execute("UPDATE Setting SET value = ? WHERE id = ?", "not revalidated", 1L);
+            jacuzzi.execute("UPDATE Setting SET value = ?, updateTime = ? WHERE id = ?",
+                    "changed", new Date(updateTime.getTime() + 1000L), 2L);
+            jacuzzi.execute("DELETE FROM Setting WHERE id = ?", 3L);
+
+            // After restart the first access returns the rows from the file, they are revalidated in background.
+            restartedDataSource = newDataSource();
+            SnapshotSettingDao restartedSettingDao = new SnapshotSettingDao(restartedDataSource, file);
+            Map<Long, Setting> restoredSettings = new HashMap<>();
+            for (Setting setting : restartedSettingDao.findAll()) {
+                restoredSettings.put(setting.getId(), setting);
+            }
+            assertEquals(3, restoredSettings.size());
+            assertEquals("value0", restoredSettings.get(1L).getValue());
+            assertEquals(settingDao.find(1L).getUpdateTime().getTime(),
+                    restoredSettings.get(1L).getUpdateTime().getTime());
+            assertEquals("value1", restoredSettings.get(2L).getValue());
+
+            restartedSettingDao.refreshReferenceTable();
+            assertEquals("changed", restartedSettingDao.find(2L).getValue());
+            assertNull(restartedSettingDao.find(3L));
+            assertEquals(2, restartedSettingDao.findAll().size());
+            assertEquals("name0", restartedSettingDao.findBy("name = ?", "name0").get(0).getName());
+        } finally {
+            if (restartedDataSource != null) {
+                Jacuzzi.release(restartedDataSource);
+            }
+            assertTrue(!file.exists() || file.delete());
+        }
+    }
+
+    @Test
+    public void testReferenceTableIndex() {
+        ReferenceSettingDao referenceSettingDao = new ReferenceSettingDao(dataSource);
+        Jacuzzi jacuzzi = Jacuzzi.getJacuzzi(dataSource);
+        Date updateTime = new Date();
+
+        for (int i = 0; i < 4; ++i) {
+            Setting setting = new Setting();
+            setting.setName("name" + i % 2);
+            setting.setValue("value" + i);
+            setting.setUpdateTime(updateTime);
+            settingDao.insert(setting);
+        }
+
+        assertEquals(2, referenceSettingDao.findBy("name = ?", "name1").size());
+        assertEquals("value2", referenceSettingDao.findBy("WHERE `name`=?", "name0").get(1).getValue());
+        assertTrue(referenceSettingDao.findBy("name = ?", "unknown").isEmpty());
+
+        // Indexed queries don't touch the database until refresh, others do.
+        jacuzzi.execute("INSERT INTO Setting (name, value, updateTime) VALUES (?, ?, ?)",
+                "name1", "value4", new Date(updateTime.getTime() + 1000L));
+        jacuzzi.execute("UPDATE Setting SET name = ?, updateTime = ? WHERE id = ?",
+                "name2", new Date(updateTime.getTime() + 1000L), 1L);
+        assertEquals(2, referenceSettingDao.findBy("name = ?", "name1").size());
+        assertEquals(3, referenceSettingDao.findBy("name = ? AND id > ?", "name1", 0L).size());
+
+        referenceSettingDao.refreshReferenceTable();
+        assertEquals(3, referenceSettingDao.findBy("name = ?", "name1").size());
+        assertEquals(1, referenceSettingDao.findBy("name = ?", "name0").size());
+        assertEquals("value0", referenceSettingDao.findOnlyBy("name = ?", "name2").getValue());
+
+        // Strings are compared by the database unless the index is declared exact, integral values aren't.
+        DefaultIndexSettingDao defaultIndexSettingDao = new DefaultIndexSettingDao(dataSource);
+        jacuzzi.execute("UPDATE Setting SET value = ? WHERE id = ?", "not refreshed", 2L);
+        Set<String> indexedValues = new HashSet<>();
+        for (Setting setting : referenceSettingDao.findBy("name = ?", "name1")) {
+            indexedValues.add(setting.getValue());
+        }
+        assertTrue(indexedValues.contains("value1"));
+        Set<String> selectedValues = new HashSet<>();
+        for (Setting setting : defaultIndexSettingDao.findBy("name = ?", "name1")) {
+            selectedValues.add(setting.getValue());
+        }
+        assertTrue(selectedValues.contains("not refreshed"));
+        assertEquals("value1", defaultIndexSettingDao.findOnlyBy("id = ?", 2L).getValue());
+        assertEquals("value1", defaultIndexSettingDao.findOnlyBy("id = ?", 2).getValue());
+        assertEquals("not refreshed", defaultIndexSettingDao.findOnlyBy("id = ?", "2").getValue());
+
+        // Rows written one by one are applied to the snapshot without copying it.
+        List<Setting> written = new ArrayList<>();
+        for (int i = 0; i < 300; ++i) {
+            Setting setting = new Setting();
+            setting.setName("written" + i % 3);
+            setting.setValue("written" + i);
+            setting.setUpdateTime(updateTime);
+            referenceSettingDao.insert(setting);
+            written.add(setting);
+        }
+        referenceSettingDao.delete(written.get(0));
+        written.get(1).setName("written0");
+        referenceSettingDao.update(written.get(1));
+
+        assertEquals(304, referenceSettingDao.findAll().size());
+        assertEquals(100, referenceSettingDao.findBy("name = ?", "written0").size());
+        assertEquals(99, referenceSettingDao.findBy("name = ?", "written1").size());
+        assertNull(referenceSettingDao.find(written.get(0).getId()));
+        assertEquals("written299", referenceSettingDao.find(written.get(299).getId()).getValue());
+    }
+
+    @Test
+    public void testReferenceTableThroughOverriddenFindBy() {
+        FilteringSettingDao filteringSettingDao = new FilteringSettingDao(dataSource);
+        Date updateTime = new Date();
+
+        for (int i = 0; i < 3; ++i) {
+            Setting setting = new Setting();
+            setting.setName(i == 1 ? "hidden" : "name" + i);
+            setting.setValue("value" + i);
+            setting.setUpdateTime(updateTime);
+            settingDao.insert(setting);
+        }
+
+        assertEquals(2, filteringSettingDao.findAll().size());
+        assertEquals("value0", filteringSettingDao.find(1L).getValue());
+        assertNull(filteringSettingDao.find(2L));
+        assertEquals("value2", filteringSettingDao.findOnlyBy("name = ?", "name2").getValue());
+        assertTrue(filteringSettingDao.findBy("name = ?", "hidden").isEmpty());
+    }
+
+    @Test
+    public void testFindBloomFilter() {
+        for (int i = 0; i < 100; ++i) {
+            User user = new User();
+            user.setName("user" + i);
+            commonDao.insert(user);
+        }
+
+        BloomFilterUserDao bloomFilterUserDao = new BloomFilterUserDao(dataSource);
+        bloomFilterUserDao.rebuildFindBloomFilter();
+
+        for (long id = 1; id <= 100; ++id) {
+            assertEquals("user" + (id - 1), bloomFilterUserDao.find(id).getName());
+        }
+
+        for (long id = -1000; id < 0; ++id) {
+            assertNull(bloomFilterUserDao.find(id));
+        }
+
+        BloomFilterStatistics statistics = bloomFilterUserDao.getFindBloomFilterStatistics();
+        assertEquals(1100, statistics.getCheckCount());
+        assertEquals(1000, statistics.getNegativeCount() + statistics.getFalsePositiveCount());
+        assertTrue(statistics.getFalsePositiveRatio() < 0.1);
+        assertEquals(100, statistics.getIdCount());
+
+        User user = new User();
+        user.setName("inserted");
+        bloomFilterUserDao.insert(user);
+        assertEquals("inserted", bloomFilterUserDao.find(user.getId()).getName());
+
+        // Saves add the same id again, it isn't counted twice.
+        for (int i = 0; i < 10; ++i) {
+            user.setName("saved" + i);
+            bloomFilterUserDao.save(user);
+        }
+        assertEquals(101, bloomFilterUserDao.getFindBloomFilterStatistics().getIdCount());
+
+        // Rows inserted bypassing the DAO with greater ids are found at once.
+        Jacuzzi.getJacuzzi(dataSource).execute("INSERT INTO User (id, name) VALUES (?, ?)", 20000L, "direct");
+        assertEquals("direct", bloomFilterUserDao.find(20000L).getName());
+
+        // Other rows inserted bypassing the DAO are visible after rebuild.
+        Jacuzzi.getJacuzzi(dataSource).execute("INSERT INTO User (id, name) VALUES (?, ?)", -5L, "negative");
+        assertNull(bloomFilterUserDao.find(-5L));
+        bloomFilterUserDao.rebuildFindBloomFilter();
+        assertEquals("negative", bloomFilterUserDao.find(-5L).getName());
+        assertEquals(103, bloomFilterUserDao.getFindBloomFilterStatistics().getIdCount());
+    }
+
+    @Test
+    public void testOffHeapEntityCache() {
+        OffHeapUserDao offHeapUserDao = new OffHeapUserDao(dataSource);
+
+        User user = new User();
+        user.setName("name");
+        offHeapUserDao.insert(user);
+
+        for (int i = 0; i < 10; ++i) {
+            User found = offHeapUserDao.find(user.getId());
+            assertEquals(user.getId(), found.getId());
+            assertEquals("name", found.getName());
+            assertNull(found.getSurname());
+        }
+        assertNotSame(offHeapUserDao.find(user.getId()), offHeapUserDao.find(user.getId()));
+
+        CacheStatistics statistics = offHeapUserDao.getOffHeapEntityCacheStatistics();
+        assertEquals(1, statistics.getMissCount());
+        assertEquals(11, statistics.getHitCount());
+        assertEquals(1, statistics.getSize());
+        assertTrue(statistics.getWeight() > 0);
+
+        // Updates through DAO invalidate the entry.
+        user.setName("updated");
+        user.setSurname("\u0444\u0430\u043c\u0438\u043b\u0438\u044f");
+        offHeapUserDao.update(user);
+        assertEquals("\u0444\u0430\u043c\u0438\u043b\u0438\u044f", offHeapUserDao.find(user.getId()).getSurname());
+        assertEquals("updated", offHeapUserDao.find(user.getId()).getName());
+
+        // The oldest entries are overwritten when the capacity is exhausted.
+        for (int i = 0; i < 100; ++i) {
+            User other = new User();
+            other.setName("user" + i);
+            offHeapUserDao.insert(other);
+            assertEquals("user" + i, offHeapUserDao.find(other.getId()).getName());
+            assertEquals("user" + i, offHeapUserDao.find(other.getId()).getName());
+        }
+        statistics = offHeapUserDao.getOffHeapEntityCacheStatistics();
+        assertTrue(statistics.getEvictionCount() > 0);
+        assertTrue(statistics.getWeight() <= 1024);
+        assertEquals("updated", offHeapUserDao.find(user.getId()).getName());
+
+        offHeapUserDao.delete(user);
+        assertNull(offHeapUserDao.find(user.getId()));
+        assertNull(commonDao.getOffHeapEntityCacheStatistics());
+    }
+
+    @Test
+    public void testInvalidationBus() throws Exception {
+        // Two nodes sharing the database.
+        DataSource otherDataSource = newDataSource();
+        Jacuzzi jacuzzi = Jacuzzi.getJacuzzi(dataSource);
+        Jacuzzi otherJacuzzi = Jacuzzi.getJacuzzi(otherDataSource);
+
+        LoopbackInvalidationTransport transport = new LoopbackInvalidationTransport();
+        InvalidationBus bus = new InvalidationBus(transport, 1, TimeUnit.HOURS);
+        InvalidationBus otherBus = new InvalidationBus(transport.newPeer(), 1, TimeUnit.HOURS);
+        jacuzzi.setInvalidationBus(bus);
+        otherJacuzzi.setInvalidationBus(otherBus);
+
+        CachingUserDao cachingUserDao = new CachingUserDao(dataSource);
+        CachingUserDao otherCachingUserDao = new CachingUserDao(otherDataSource);
+
+        User user = new User();
+        user.setName("name");
+        otherCachingUserDao.insert(user);
+        assertEquals("name", cachingUserDao.find(user.getId()).getName());
+
+        // Updates of the other node are visible after flush, invalidations of the same row are coalesced.
+        for (int i = 0; i < 3; ++i) {
+            user.setName("updated" + i);
+            otherCachingUserDao.update(user);
+        }
+        assertEquals("name", cachingUserDao.find(user.getId()).getName());
+        otherBus.flush();
+        assertEquals("updated2", cachingUserDao.find(user.getId()).getName());
+        assertEquals(1, otherBus.getSentMessageCount());
+        assertEquals(1, bus.getReceivedMessageCount());
+
+        // Transactions publish after commit.
+        otherJacuzzi.beginTransaction();
+        user.setName("in transaction");
+        otherCachingUserDao.update(user);
+        otherBus.flush();
+        assertEquals(1, otherBus.getSentMessageCount());
+        otherJacuzzi.commit();
+        otherBus.flush();
+        assertEquals("in transaction", cachingUserDao.find(user.getId()).getName());
+
+        // Direct updates with declared tables invalidate local and remote caches.
+        assertEquals("in transaction", otherCachingUserDao.find(user.getId()).getName());
+        otherJacuzzi.execute(Collections.singletonList("User"),
+                "UPDATE User SET name = ? WHERE id = ?", "direct", user.getId());
+        assertEquals("direct", otherCachingUserDao.find(user.getId()).getName());
+        otherBus.flush();
+        assertEquals("direct", cachingUserDao.find(user.getId()).getName());
+
+        // Saved rows are published once.
+        long publishedCount = otherBus.getPublishedCount();
+        user.setName("saved");
+        otherCachingUserDao.save(user);
+        assertEquals(publishedCount + 1, otherBus.getPublishedCount());
+        otherBus.flush();
+        assertEquals("saved", cachingUserDao.find(user.getId()).getName());
+
+        // Tables of the messages which can't be sent are invalidated as a whole by the next flush.
+        InvalidationBus failingBus = new InvalidationBus(
+                new FailingOnceInvalidationTransport(transport.newPeer()), 1, TimeUnit.HOURS);
+        otherJacuzzi.setInvalidationBus(failingBus);
+        user.setName("unsent");
+        otherCachingUserDao.update(user);
+        failingBus.flush();
+        assertEquals(0, failingBus.getSentMessageCount());
+        assertEquals("saved", cachingUserDao.find(user.getId()).getName());
+        failingBus.flush();
+        assertEquals(1, failingBus.getSentMessageCount());
+        assertEquals("unsent", cachingUserDao.find(user.getId()).getName());
+
+        // Malformed messages are ignored: version, node id, table and huge number of ids.
+        ByteArrayOutputStream malformedMessage = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(malformedMessage);
+        output.writeByte(1);
+        output.writeLong(0L);
+        output.writeUTF("User");
+        output.writeInt(Integer.MAX_VALUE);
+        transport.newPeer().send(malformedMessage.toByteArray());
+        assertEquals("unsent", cachingUserDao.find(user.getId()).getName());
+
+        bus.close();
+        otherBus.close();
+        failingBus.close();
+
+        // UDP transport on localhost, the unresolved peer doesn't prevent sending to the other one.
+        UdpInvalidationTransport udpTransport = new UdpInvalidationTransport(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), Collections.<InetSocketAddress>emptyList());
+        UdpInvalidationTransport otherUdpTransport = new UdpInvalidationTransport(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), Arrays.asList(
+                        InetSocketAddress.createUnresolved("unresolved.invalid", 1),
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), udpTransport.getLocalPort())));
+
+        InvalidationBus udpBus = new InvalidationBus(udpTransport, 10, TimeUnit.MILLISECONDS);
+        InvalidationBus otherUdpBus = new InvalidationBus(otherUdpTransport, 10, TimeUnit.MILLISECONDS);
+        jacuzzi.setInvalidationBus(udpBus);
+        otherJacuzzi.setInvalidationBus(otherUdpBus);
+
+        user.setName("udp");
+        otherCachingUserDao.update(user);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!"udp".equals(cachingUserDao.find(user.getId()).getName()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("udp", cachingUserDao.find(user.getId()).getName());
+        assertTrue(udpBus.getReceivedMessageCount() >= 1);
+        assertTrue(otherUdpBus.getSentMessageCount() >= 1);
+
+        jacuzzi.setInvalidationBus(null);
+        otherJacuzzi.setInvalidationBus(null);
+        udpBus.close();
+        otherUdpBus.close();
+        Jacuzzi.release(otherDataSource);
+    }
+
+    @Test
+    public void testRelease() {
+        CachingUserDao cachingUserDao = new CachingUserDao(dataSource);
+        User user = new User();
+        user.setName("name");
+        cachingUserDao.insert(user);
+        assertEquals("name", cachingUserDao.find(user.getId()).getName());
+        assertEquals(1, new CachingUserDao(dataSource).getEntityCacheStatistics().getSize());
+
+        // New DAOs of the released DataSource don't share the caches of the old ones.
+        Jacuzzi.release(dataSource);
+        CachingUserDao releasedCachingUserDao = new CachingUserDao(dataSource);
+        assertEquals(0, releasedCachingUserDao.getEntityCacheStatistics().getSize());
+        assertEquals("name", releasedCachingUserDao.find(user.getId()).getName());
+        assertEquals(1, releasedCachingUserDao.getEntityCacheStatistics().getMissCount());
+    }
+
+    @Test
+    public void testSave() {
+        assertEquals(Dialect.HSQLDB, Jacuzzi.getJacuzzi(dataSource).getDialect());
+
+        User user = new User();
+        user.setName("name");
+        commonDao.save(user);
+        assertTrue(user.getId() > 0);
+
+        user.setName("changed");
+        commonDao.save(user);
+        assertEquals("changed", commonDao.find(user.getId()).getName());
+
+        List<User> users = new ArrayList<>();
+        users.add(user);
+        for (int i = 0; i < 2500; ++i) {
+            User newUser = new User();
+            newUser.setId(100 + i);
+            newUser.setName("name" + i);
+            users.add(newUser);
+        }
+        User userWithoutId = new User();
+        userWithoutId.setName("without id");
+        users.add(userWithoutId);
+
+        user.setSurname("surname");
+        commonDao.save(users);
+
+        assertEquals(2502, commonDao.findCountBy("TRUE"));
+        assertEquals("surname", commonDao.find(user.getId()).getSurname());
+        assertEquals("name2499", commonDao.find(2599L).getName());
+        assertTrue(userWithoutId.getId() > 0);
+        assertEquals("without id", commonDao.find(userWithoutId.getId()).getName());
+
+        // Instances with the same id are saved once, the last one wins.
+        User first = new User();
+        first.setId(5000);
+        first.setName("first");
+        User second = new User();
+        second.setId(5000);
+        second.setName("second");
+        commonDao.save(Arrays.asList(first, user, second));
+        assertEquals("second", commonDao.find(5000L).getName());
+        assertEquals(2503, commonDao.findCountBy("TRUE"));
+    }
+
+    @Test
+    public void testSaveThroughOverriddenInsertAndUpdate() {
+        AuditingUserDao auditingUserDao = new AuditingUserDao(dataSource);
+
+        User user = new User();
+        user.setId(10);
+        user.setName("name");
+        auditingUserDao.save(user);
+        assertEquals("inserted", commonDao.find(10L).getSurname());
+
+        user.setName("changed");
+        auditingUserDao.save(Collections.singletonList(user));
+        assertEquals("changed", commonDao.find(10L).getName());
+        assertEquals("updated", commonDao.find(10L).getSurname());
+    }
+
+    @Test
+    public void testFindMap() {
+        List<User> users = new ArrayList<>();
+        for (int i = 1; i <= 2500; ++i) {
+            User user = new User();
+            user.setId(i);
+            user.setName("name" + i);
+            users.add(user);
+        }
+        commonDao.insert(users);
+
+        List<Long> ids = new ArrayList<>();
+        for (long id = 2600; id >= 0; id -= 2) {
+            ids.add(id);
+        }
+        ids.add(2500L);
+
+        List<Long> missingIds = new ArrayList<>();
+        Map<Long, User> userById = commonDao.findMap(ids, missingIds);
+
+        assertEquals(1250, userById.size());
+        assertEquals(51, missingIds.size());
+        assertEquals(Long.valueOf(2600), missingIds.get(0));
+        assertEquals(Long.valueOf(0), missingIds.get(50));
+        assertEquals(Long.valueOf(2500), userById.keySet().iterator().next());
+        assertEquals("name1000", userById.get(1000L).getName());
+
+        Jacuzzi jacuzzi = Jacuzzi.getJacuzzi(dataSource);
+        jacuzzi.attachConnection();
+        try {
+            List<User> found = commonDao.findAll(ids);
+            assertEquals(1250, found.size());
+            assertEquals(2500L, found.get(0).getId());
+            assertEquals(2L, found.get(1249).getId());
+        } finally {
+            jacuzzi.detachConnection();
+        }
+    }
+
+    @Test
+    public void testFindCoalescing() throws InterruptedException {
+        CoalescingUserDao coalescingUserDao = new CoalescingUserDao(dataSource);
+
+        for (int i = 0; i < 16; ++i) {
+            User user = new User();
+            user.setName("name" + i);
+            commonDao.insert(user);
+        }
+
+        int threadCount = 32;
+        User[] found = new User[threadCount];
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < threadCount; ++i) {
+            int index = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                // Every id is requested twice, ids 17 and 18 don't exist.
+                found[index] = coalescingUserDao.find((long) (index / 2 + 3));
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int i = 0; i < threadCount; ++i) {
+            long id = i / 2 + 3;
+            if (id <= 16) {
+                assertEquals(id, found[i].getId());
+                assertEquals("name" + (id - 1), found[i].getName());
+            } else {
+                assertNull(found[i]);
+            }
+        }
+        assertNotSame(found[0], found[1]);
+
+        FindCoalescer<User> coalescer = coalescingUserDao.getFindCoalescer();
+        assertEquals(threadCount, coalescer.getRequestCount());
+        assertTrue(coalescer.getQueryCount() < threadCount);
+        assertTrue(coalescer.getCoalescingRatio() > 1.0);
+    }
+
+    @Test
+    public void testDaoScan() {
+        for (int i = 0; i < 105; ++i) {
+            User user = new User();
+            user.setName(i % 3 == 0 ? "third" + i : "other" + i);
+            commonDao.insert(user);
+        }
+
+        long expectedId = 1;
+        for (Iterator<User> iterator = commonDao.scan(10); iterator.hasNext(); ++expectedId) {
+            assertEquals(expectedId, iterator.next().getId());
+        }
+        assertEquals(106, expectedId);
+
+        List<User> thirds = new ArrayList<>();
+        commonDao.scan(7, "name LIKE ?", "third%").forEachRemaining(thirds::add);
+        assertEquals(35, thirds.size());
+        assertEquals(1L, thirds.get(0).getId());
+        assertEquals(103L, thirds.get(34).getId());
+
+        assertFalse(commonDao.scan(5, "name = ?", "nobody").hasNext());
+    }
+
+    @Test(timeout = 60000)
+    public void testParallelScan() {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 2500; ++i) {
+            User user = new User();
+            user.setId(i * 3 + 1);
+            user.setName(i % 2 == 0 ? "even" : "odd");
+            users.add(user);
+        }
+        commonDao.insert(users);
+
+        Set<Long> ids = Collections.synchronizedSet(new HashSet<>());
+        assertEquals(2500, commonDao.parallelScan(7, 3, null, user -> ids.add(user.getId())));
+        assertEquals(2500, ids.size());
+
+        ids.clear();
+        assertEquals(1250, commonDao.parallelScan(4, 4, "name = ?", user -> ids.add(user.getId()), "odd"));
+        assertTrue(ids.contains(4L));
+        assertFalse(ids.contains(1L));
+
+        RowRoll rowRoll = commonDao.parallelScanRowRoll(5, 2, "name = ?", "even");
+        assertEquals(1250, rowRoll.size());
+        for (int i = 0; i < rowRoll.size(); ++i) {
+            assertEquals((long) (i * 6 + 1), rowRoll.getRow(i).get("ID"));
+        }
+
+        assertEquals(0, commonDao.parallelScan(4, 4, "name = ?", user -> fail(), "nobody"));
+
+        // Chunked finds from the scanning threads don't wait for the busy pool.
+        List<Long> allIds = new ArrayList<>();
+        for (User user : users) {
+            allIds.add(user.getId());
+        }
+        AtomicInteger foundCount = new AtomicInteger();
+        assertEquals(2500, commonDao.parallelScan(64, 64, null, user -> {
+            if (user.getId() % 150 == 1) {
+                foundCount.addAndGet(commonDao.findMap(allIds).size());
+            }
+        }));
+        assertEquals(50 * 2500, foundCount.get());
+    }
+
+    @Test
+    public void testFindByForeignKeys() {
+        UserPostDao userPostDao = new UserPostDao(dataSource);
+
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            User user = new User();
+            user.setName("user" + i);
+            commonDao.insert(user);
+            users.add(user);
+
+            for (int j = 0; j < i; ++j) {
+                UserPost post = new UserPost();
+                post.setUserId(user.getId());
+                post.setText("post" + j);
+                userPostDao.insert(post);
+            }
+        }
+
+        Map<Long, List<UserPost>> postsByUserId = userPostDao.findByForeignKeys("userId",
+                Arrays.asList(users.get(2).getId(), 100L, users.get(1).getId()));
+        assertEquals(3, postsByUserId.size());
+        assertEquals(users.get(2).getId(), (long) postsByUserId.keySet().iterator().next());
+        assertEquals(2, postsByUserId.get(users.get(2).getId()).size());
+        assertEquals("post1", postsByUserId.get(users.get(2).getId()).get(1).getText());
+        assertTrue(postsByUserId.get(100L).isEmpty());
+
+        // Keys with the same integral value are duplicates whatever their types are.
+        Map<Object, List<UserPost>> postsByMixedUserId = userPostDao.findByForeignKeys("userId",
+                Arrays.<Object>asList((int) users.get(2).getId(), users.get(2).getId()));
+        assertEquals(1, postsByMixedUserId.size());
+        assertEquals(2, postsByMixedUserId.get((int) users.get(2).getId()).size());
+
+        userPostDao.attachByForeignKey(users, "userId", "posts");
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(i, users.get(i).getPosts().size());
+        }
+        assertEquals("post0", users.get(1).getPosts().get(0).getText());
+    }
+
+    @Test
+    public void testPrimitiveIds() {
+        for (int i = 0; i < 1500; ++i) {
+            User user = new User();
+            user.setName(i % 2 == 0 ? "even" : "odd");
+            commonDao.insert(user);
+        }
+
+        long[] evenIds = commonDao.findIds("name = ? ORDER BY id", "even");
+        assertEquals(750, evenIds.length);
+        assertEquals(1L, evenIds[0]);
+        assertEquals(1499L, evenIds[749]);
+        assertArrayEquals(new long[]{1, 2}, Jacuzzi.getJacuzzi(dataSource).findLongs(
+                "SELECT id FROM User WHERE id <= ? ORDER BY id", 2));
+
+        LongObjectMap<User> userById = commonDao.findMap(evenIds);
+        assertEquals(750, userById.size());
+        assertEquals("even", userById.get(1499L).getName());
+        assertNull(userById.get(2L));
+        assertFalse(userById.containsKey(2L));
+
+        commonDao.deleteByIds(evenIds);
+        assertEquals(750, commonDao.findCountBy("TRUE"));
+        assertEquals(0, commonDao.findIds("name = ?", "even").length);
+    }
+
+    @SuppressWarnings("unused")
+    public static int sleep(int millis) throws InterruptedException {
+        Thread.sleep(millis);
+        return millis;
+    }
+
+    @Test
+    public void testSingleFlight() throws InterruptedException {
+        User user = new User();
+        user.setName("name");
+        commonDao.insert(user);
+
+        Jacuzzi jacuzzi = Jacuzzi.getJacuzzi(dataSource);
+        jacuzzi.execute("CREATE FUNCTION sleep(millis INT) RETURNS INT LANGUAGE JAVA DETERMINISTIC NO SQL"
+                + " EXTERNAL NAME 'CLASSPATH:org.jacuzzi.JacuzziTest.sleep'");
+
+        try {
+            int threadCount = 8;
+            List<List<Row>> results = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+
+            for (int i = 0; i < threadCount; ++i) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    results.add(Jacuzzi.getJacuzzi(dataSource).findRowsShared(
+                            "SELECT name, sleep(500) FROM User WHERE id = ?", user.getId()
+                    ));
+                });
+                thread.start();
+                threads.add(thread);
+            }
+
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            assertEquals(threadCount, results.size());
+            for (List<Row> rows : results) {
+                assertEquals(1, rows.size());
+                assertTrue(rows.get(0).containsValue("name"));
+            }
+            assertNotSame(results.get(0).get(0), results.get(1).get(0));
+            assertEquals(threadCount, jacuzzi.getSingleFlightExecutionCount()
+                    + jacuzzi.getSingleFlightSuppressedExecutionCount());
+            assertTrue(jacuzzi.getSingleFlightSuppressedExecutionCount() > 0);
+
+            // Plain reads are never shared.
+            long executionCount = jacuzzi.getSingleFlightExecutionCount();
+            jacuzzi.findRows("SELECT name FROM User WHERE id = ?", user.getId());
+            assertEquals(executionCount, jacuzzi.getSingleFlightExecutionCount());
+
+            // DAO reads are shared if enabled.
+            SharedReadsUserDao sharedReadsUserDao = new SharedReadsUserDao(dataSource);
+            long suppressedExecutionCount = jacuzzi.getSingleFlightSuppressedExecutionCount();
+            List<List<User>> users = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch daoStart = new CountDownLatch(1);
+            threads.clear();
+
+            for (int i = 0; i < threadCount; ++i) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        daoStart.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    users.add(sharedReadsUserDao.findBy("id = ? AND sleep(500) >= 0", user.getId()));
+                });
+                thread.start();
+                threads.add(thread);
+            }
+
+            daoStart.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            assertEquals(threadCount, users.size());
+            for (List<User> foundUsers : users) {
+                assertEquals("name", foundUsers.get(0).getName());
+            }
+            assertNotSame(users.get(0).get(0), users.get(1).get(0));
+            assertTrue(jacuzzi.getSingleFlightSuppressedExecutionCount() > suppressedExecutionCount);
+        } finally {
+            jacuzzi.execute("DROP FUNCTION sleep");
+        }
+    }
+
     @Test
     public void testFindOnlyBy() {
         User user = new User();
@@ -744,4 +2040,179 @@ public class JacuzziTest {
             super(source);
         }
     }
+
+    private static class CoalescingUserDao extends GenericDaoImpl<User, Long> {
+        protected CoalescingUserDao(DataSource source) {
+            super(source);
+            setFindCoalescing(50000, 16);
+        }
+    }
+
+    private static class UserPostDao extends GenericDaoImpl<UserPost, Long> {
+        protected UserPostDao(DataSource source) {
+            super(source);
+        }
+    }
+
+    private static class SharedReadsUserDao extends GenericDaoImpl<User, Long> {
+        protected SharedReadsUserDao(DataSource source) {
+            super(source);
+            setSharedReads(true);
+        }
+    }
+
+    private static class CachingUserDao extends GenericDaoImpl<User, Long> {
+        protected CachingUserDao(DataSource source) {
+            super(source);
+            setEntityCache(new CacheSettings().setMaxSize(100));
+        }
+    }
+
+    private static class QueryCachingUserDao extends GenericDaoImpl<User, Long> {
+        protected QueryCachingUserDao(DataSource source) {
+            super(source);
+            setQueryCaching(true);
+        }
+    }
+
+    private static class IdentityMappingUserDao extends GenericDaoImpl<User, Long> {
+        protected IdentityMappingUserDao(DataSource source) {
+            super(source);
+            setIdentityMapping(true);
+        }
+    }
+
+    private static class ReferenceSettingDao extends GenericDaoImpl<Setting, Long> {
+        protected ReferenceSettingDao(DataSource source) {
+            super(source);
+            setReferenceTable("updateTime", 1, 1, TimeUnit.HOURS);
+            addReferenceTableIndex("name", true);
+        }
+    }
+
+    private static class DefaultIndexSettingDao extends GenericDaoImpl<Setting, Long> {
+        protected DefaultIndexSettingDao(DataSource source) {
+            super(source);
+            setReferenceTable("updateTime", 1, 1, TimeUnit.HOURS);
+            addReferenceTableIndex("name");
+            addReferenceTableIndex("id");
+        }
+    }
+
+    private static class SnapshotSettingDao extends GenericDaoImpl<Setting, Long> {
+        protected SnapshotSettingDao(DataSource source, File file) {
+            super(source);
+            setReferenceTable("updateTime", 1, 1, TimeUnit.HOURS);
+            addReferenceTableIndex("name");
+            setReferenceTableSnapshotFile(file, 1, TimeUnit.HOURS);
+        }
+    }
+
+    private static class FilteringSettingDao extends GenericDaoImpl<Setting, Long> {
+        protected FilteringSettingDao(DataSource source) {
+            super(source);
+            setReferenceTable("updateTime", 1, 1, TimeUnit.HOURS);
+            addReferenceTableIndex("name");
+        }
+
+        @Override
+        public List<Setting> findBy(String query, Object... args) {
+            List<Setting> settings = new ArrayList<>();
+            for (Setting setting : super.findBy(query, args)) {
+                if (!"hidden".equals(setting.getName())) {
+                    settings.add(setting);
+                }
+            }
+            return settings;
+        }
+    }
+
+    private static class BloomFilterUserDao extends GenericDaoImpl<User, Long> {
+        protected BloomFilterUserDao(DataSource source) {
+            super(source);
+            setFindBloomFilter(1000, 0.01, 1, TimeUnit.HOURS);
+        }
+    }
+
+    private static class OffHeapUserDao extends GenericDaoImpl<User, Long> {
+        protected OffHeapUserDao(DataSource source) {
+            super(source);
+            setOffHeapEntityCache(1024, 1, TimeUnit.HOURS);
+        }
+    }
+
+    private static class FilteringUserDao extends GenericDaoImpl<User, Long> {
+        protected FilteringUserDao(DataSource source) {
+            super(source);
+        }
+
+        @Override
+        public List<User> findBy(String query, Object... args) {
+            List<User> users = new ArrayList<>();
+            for (User user : super.findBy(query, args)) {
+                if (!"hidden".equals(user.getName())) {
+                    users.add(user);
+                }
+            }
+            return users;
+        }
+    }
+
+    private static class AuditingUserDao extends GenericDaoImpl<User, Long> {
+        protected AuditingUserDao(DataSource source) {
+            super(source);
+        }
+
+        @Override
+        public void insert(User user) {
+            user.setSurname("inserted");
+            super.insert(user);
+        }
+
+        @Override
+        public void update(User user) {
+            user.setSurname("updated");
+            super.update(user);
+        }
+    }
+
+    private static class TrackingUserDao extends GenericDaoImpl<User, Long> {
+        protected TrackingUserDao(DataSource source) {
+            super(source);
+            setChangeTracking(true);
+        }
+    }
+
+    private static class FailingOnceInvalidationTransport implements InvalidationTransport {
+        private final InvalidationTransport transport;
+        private boolean failed;
+
+        private FailingOnceInvalidationTransport(InvalidationTransport transport) {
+            this.transport = transport;
+        }
+
+        @Override
+        public void start(Consumer<byte[]> receiver) {
+            transport.start(receiver);
+        }
+
+        @Override
+        public void send(byte[] message) throws IOException {
+            if (!failed) {
+                failed = true;
+                throw new IOException("Expected failure.");
+            }
+            transport.send(message);
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return transport.getMaxMessageSize();
+        }
+
+        @Override
+        public void close() {
+            transport.close();
+        }
+    }
 }
@@ -1,6 +1,9 @@
 package org.jacuzzi;
 
 import org.jacuzzi.mapping.Id;
+import org.jacuzzi.mapping.Transient;
+
+import java.util.List;
 
 /**
  * @author Mike Mirzayanov
@@ -11,6 +14,9 @@ public class User {
     private String name;
     private String surname;
 
+    @Transient
+    private List<UserPost> posts;
+
     public long getId() {
         return id;
     }
@@ -34,4 +40,12 @@ public class User {
     public void setSurname(String surname) {
         this.surname = surname;
     }
+
+    public List<UserPost> getPosts() {
+        return posts;
+    }
+
+    public void setPosts(List<UserPost> posts) {
+        this.posts = posts;
+    }
 }
@@ -0,0 +1,34 @@
+package org.jacuzzi;
+
+import org.jacuzzi.mapping.Id;
+
+public class UserPost {
+    @Id
+    private long id;
+    private long userId;
+    private String text;
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public long getUserId() {
+        return userId;
+    }
+
+    public void setUserId(long userId) {
+        this.userId = userId;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public void setText(String text) {
+        this.text = text;
+    }
+}